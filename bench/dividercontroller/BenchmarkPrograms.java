@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.util.Random;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Generates divider programs and serial traffic for the benchmarks. The
+ * programs look like the ones made by hand and by our index plate generator,
+ * with comments, spaces and lower case letters mixed in.
+ */
+class BenchmarkPrograms {
+
+    private static final String[] LINES = {
+        "B0",
+        "b 0.5 (start angle)",
+        "G2",
+        "D36",
+        "d 120 (division)",
+        "F100",
+        "M3",
+        "P1.5,-2",
+        "p -10.25, 3 (pause)",
+        "R",
+        "R+",
+        "(comment only) G 15",
+        "  B -45.125  "
+    };
+
+    /**
+     * @return a program with the given number of lines, always the same for
+     * the same size
+     */
+    static String program(int lines) {
+        Random random = new Random(lines);
+        StringBuilder sb = new StringBuilder(lines * 12);
+        for (int i = 0; i < lines; i++) {
+            sb.append(LINES[random.nextInt(LINES.length)]).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return what the divider sends back when the program is uploaded
+     */
+    static String uploadedText(int lines) {
+        return new DividerProgram(program(lines)).getDownloadToArduinoText() + "Upload finished";
+    }
+
+    /**
+     * @return the messages the divider sends in normal operation, mostly
+     * angles
+     */
+    static String[] messages(int count) {
+        Random random = new Random(count);
+        String[] messages = new String[count];
+        for (int i = 0; i < count; i++) {
+            int kind = random.nextInt(10);
+            if (kind < 6) {
+                messages[i] = String.format(java.util.Locale.ROOT, "A%.2f", random.nextInt(36000) / 100.0);
+            } else if (kind < 8) {
+                messages[i] = "S0";
+            } else if (kind < 9) {
+                messages[i] = random.nextBoolean() ? "I0" : "I1";
+            } else {
+                messages[i] = random.nextBoolean() ? "+" : "-";
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * @return the messages as they arrive on the serial line, ETB
+     * terminated
+     */
+    static byte[] serialStream(String[] messages) {
+        StringBuilder sb = new StringBuilder();
+        for (String message : messages) {
+            sb.append(message).append((char) FrameReceiver.ETB_CHAR);
+        }
+        return sb.toString().getBytes(java.nio.charset.StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return the messages as they arrive in the binary protocol
+     */
+    static byte[] binaryStream(String[] messages) {
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        for (String message : messages) {
+            byte[] frame = BinaryProtocol.encodeMessage(message);
+            out.write(frame, 0, frame.length);
+        }
+        return out.toByteArray();
+    }
+
+}
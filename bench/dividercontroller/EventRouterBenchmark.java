@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import com.google.common.eventbus.AsyncEventBus;
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Posting a position event through the Guava EventBus that was used before
+ * and through EventRouter, with a new or a reused event, to listeners on the
+ * posting thread or behind an executor. The executor runs the task at once,
+ * so only the cost of the dispatch is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventRouterBenchmark {
+
+    @Param({"1", "4"})
+    public int listeners;
+
+    private EventBus eventBus;
+    private EventBus asyncEventBus;
+    private EventRouter eventRouter;
+    private EventRouter.Channel<FromArduinoMessageEvent> channel;
+    private EventRouter asyncEventRouter;
+    private EventRouter.Channel<FromArduinoMessageEvent> asyncChannel;
+    private final FromArduinoMessageEvent reusedEvent = new FromArduinoMessageEvent();
+    private double position;
+    private double sum;
+
+    public class GuavaListener {
+
+        @Subscribe
+        public void handle(FromArduinoMessageEvent event) {
+            sum += event.getValue();
+        }
+    }
+
+    private void handle(FromArduinoMessageEvent event) {
+        sum += event.getValue();
+    }
+
+    @Setup
+    public void setup() {
+        Executor directExecutor = Runnable::run;
+        eventBus = new EventBus();
+        asyncEventBus = new AsyncEventBus(directExecutor);
+        eventRouter = new EventRouter();
+        asyncEventRouter = new EventRouter();
+        for (int i = 0; i < listeners; i++) {
+            eventBus.register(new GuavaListener());
+            asyncEventBus.register(new GuavaListener());
+            eventRouter.subscribe(FromArduinoMessageEvent.class, this::handle);
+            asyncEventRouter.subscribe(FromArduinoMessageEvent.class, this::handle, directExecutor);
+        }
+        channel = eventRouter.channel(FromArduinoMessageEvent.class);
+        asyncChannel = asyncEventRouter.channel(FromArduinoMessageEvent.class);
+    }
+
+    private double nextPosition() {
+        position += 0.01;
+        return position;
+    }
+
+    @Benchmark
+    public double guava() {
+        eventBus.post(new FromArduinoMessageEvent(FromArduinoMessageEvent.MessageType.GOT_POSITION, nextPosition()));
+        return sum;
+    }
+
+    @Benchmark
+    public double router() {
+        eventRouter.post(new FromArduinoMessageEvent(FromArduinoMessageEvent.MessageType.GOT_POSITION, nextPosition()));
+        return sum;
+    }
+
+    @Benchmark
+    public double channelReusedEvent() {
+        channel.post(reusedEvent.set(FromArduinoMessageEvent.MessageType.GOT_POSITION, nextPosition()));
+        return sum;
+    }
+
+    @Benchmark
+    public double guavaExecutor() {
+        asyncEventBus.post(new FromArduinoMessageEvent(FromArduinoMessageEvent.MessageType.GOT_POSITION, nextPosition()));
+        return sum;
+    }
+
+    @Benchmark
+    public double channelExecutor() {
+        asyncChannel.post(reusedEvent.set(FromArduinoMessageEvent.MessageType.GOT_POSITION, nextPosition()));
+        return sum;
+    }
+
+}
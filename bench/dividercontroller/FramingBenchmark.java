@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * The receive path of SerialCommHandler: ETB framing of the bytes read from
+ * the transport, the hand over through the message ring and the conversion
+ * to a message string on the consumer side. The score is per received chunk
+ * of serial data. The binary variants receive the same messages in the
+ * frames of the binary protocol.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+
+    // Number of messages in one chunk of received data.
+    @Param({"1", "16", "256"})
+    public int messages;
+
+    private byte[] stream;
+    private FrameRing ring;
+    private FrameReceiver frameReceiver;
+    private byte[] binaryStream;
+    private BinaryProtocol.Decoder binaryReceiver;
+    private final byte[] consumerBuffer = new byte[500];
+
+    @Setup
+    public void setup() {
+        stream = BenchmarkPrograms.serialStream(BenchmarkPrograms.messages(messages));
+        ring = new FrameRing(512, 500);
+        frameReceiver = new FrameReceiver(500, (frame, length) -> {
+        });
+        binaryStream = BenchmarkPrograms.binaryStream(BenchmarkPrograms.messages(messages));
+        binaryReceiver = new BinaryProtocol.Decoder(new BinaryProtocol.MessageDecoder(500, (frame, length) -> {
+        }));
+    }
+
+    @Benchmark
+    public long framing() {
+        frameReceiver.receive(stream, 0, stream.length);
+        return frameReceiver.getFramesReceived();
+    }
+
+    @Benchmark
+    public void framingToMessages(Blackhole blackhole) {
+        FrameReceiver receiver = new FrameReceiver(500, ring::offer);
+        receiver.receive(stream, 0, stream.length);
+        String message;
+        while ((message = ring.pollString(consumerBuffer)) != null) {
+            blackhole.consume(message);
+        }
+    }
+
+    @Benchmark
+    public long binaryFraming() {
+        binaryReceiver.receive(binaryStream, 0, binaryStream.length);
+        return binaryReceiver.getFramesReceived();
+    }
+
+    @Benchmark
+    public void binaryFramingToMessages(Blackhole blackhole) {
+        BinaryProtocol.Decoder receiver = new BinaryProtocol.Decoder(new BinaryProtocol.MessageDecoder(500, ring::offer));
+        receiver.receive(binaryStream, 0, binaryStream.length);
+        String message;
+        while ((message = ring.pollString(consumerBuffer)) != null) {
+            blackhole.consume(message);
+        }
+    }
+
+}
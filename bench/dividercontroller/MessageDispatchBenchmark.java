@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Dispatch of received messages in ArduinoDivider.checkMessage, including the
+ * event router post, and the angle parsing on its own. The message mix is the
+ * one from normal operation, mostly angles. R, Q and S3 are left out as they
+ * print debug output.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageDispatchBenchmark {
+
+    private static final int MESSAGE_COUNT = 1024;
+
+    private ArduinoDivider arduinoDivider;
+    private String[] messages;
+    private String[] angleMessages;
+    private int index;
+
+    @Setup
+    public void setup() {
+        // A router of its own with one listener, like the GUI.
+        EventRouter eventBus = new EventRouter();
+        eventBus.subscribe(FromArduinoMessageEvent.class, event -> {
+        });
+        arduinoDivider = new ArduinoDivider(eventBus);
+        messages = BenchmarkPrograms.messages(MESSAGE_COUNT);
+        angleMessages = new String[MESSAGE_COUNT];
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            angleMessages[i] = String.format(java.util.Locale.ROOT, "A%.2f", i * 0.35);
+        }
+    }
+
+    @Benchmark
+    public void checkMessage() {
+        arduinoDivider.checkMessage(messages[index++ & (MESSAGE_COUNT - 1)]);
+    }
+
+    @Benchmark
+    public double getPositionFromMessage() {
+        return ArduinoDivider.getPositionFromMessage(angleMessages[index++ & (MESSAGE_COUNT - 1)]);
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Load test for many dividers in one process. Starts a number of simulated
+ * dividers, lets them poll while idle and then jogs all of them as fast as
+ * they answer. For each phase the host CPU time, the thread count and the
+ * heap in use are reported. The dividers are run with each ThreadModel in
+ * turn, or with the one given, to compare them.
+ *
+ * Usage: MultiDividerLoadTest [all|platform|virtual|pool] [units] [seconds]
+ *
+ * The default is all, 32 units and 10 seconds for each phase. Run it with
+ * ant load-test -Dload.args="pool 32 10". VIRTUAL needs Java 21, on an older
+ * JVM it is the same as PLATFORM.
+ */
+public class MultiDividerLoadTest {
+
+    private static final long STARTUP_TIME = 4000;
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+    private final int units;
+    private final long phaseTime;
+
+    private MultiDividerLoadTest(int units, long phaseTime) {
+        this.units = units;
+        this.phaseTime = phaseTime;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "all";
+        int units = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        long seconds = args.length > 2 ? Long.parseLong(args[2]) : 10;
+        MultiDividerLoadTest test = new MultiDividerLoadTest(units, TimeUnit.SECONDS.toMillis(seconds));
+        System.out.println(units + " simulated dividers, " + seconds + " s per phase, "
+                + Runtime.getRuntime().availableProcessors() + " processors");
+        for (ThreadModel threadModel : ThreadModel.values()) {
+            if (mode.equals("all") || ThreadModel.fromName(mode) == threadModel) {
+                test.run(threadModel);
+            }
+        }
+    }
+
+    private void run(ThreadModel threadModel) throws Exception {
+        DividerManager manager = new DividerManager(threadModel);
+        for (int i = 0; i < units; i++) {
+            manager.addDivider(new ComPortParameters(DividerSimulator.PORT_NAME));
+        }
+        manager.startAll();
+        String mode = threadModel.name().toLowerCase();
+        if (manager.getThreadModel() != threadModel) {
+            mode += " (" + manager.getThreadModel().name().toLowerCase() + ")";
+        }
+        run(mode, manager.getDividers());
+        manager.shutdown();
+    }
+
+    private void run(String mode, List<ArduinoDivider> dividers) throws Exception {
+        Thread.sleep(STARTUP_TIME);
+        AtomicLong messages = new AtomicLong();
+        for (ArduinoDivider divider : dividers) {
+            divider.getEventBus().subscribe(ArduinoStatusMessageEvent.class, event -> messages.incrementAndGet());
+        }
+
+        Snapshot start = new Snapshot(messages.get());
+        Thread.sleep(phaseTime);
+        report(mode, "idle", start, new Snapshot(messages.get()), 0);
+
+        AtomicLong jogs = new AtomicLong();
+        long endTime = System.currentTimeMillis() + phaseTime;
+        List<CompletableFuture<Void>> running = new ArrayList<>();
+        start = new Snapshot(messages.get());
+        for (ArduinoDivider divider : dividers) {
+            running.add(jog(divider, endTime, jogs));
+        }
+        CompletableFuture.allOf(running.toArray(new CompletableFuture<?>[0])).get();
+        report(mode, "jogging", start, new Snapshot(messages.get()), jogs.get());
+    }
+
+    // Jogs the divider one step at a time until the end time, the next step
+    // is sent when the angle of the previous one has arrived.
+    private CompletableFuture<Void> jog(ArduinoDivider divider, long endTime, AtomicLong jogs) {
+        if (System.currentTimeMillis() >= endTime) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return divider.submitCommand(CommandToDivider.DividerCommand.STEP_PLUS)
+                .thenCompose(angle -> {
+                    jogs.incrementAndGet();
+                    return jog(divider, endTime, jogs);
+                });
+    }
+
+    private void report(String mode, String phase, Snapshot start, Snapshot end, long jogs) {
+        double seconds = (end.wallTime - start.wallTime) / 1e9;
+        double cpuSeconds = (end.cpuTime - start.cpuTime) / 1e9;
+        System.out.println(String.format("%-20s %-7s: cpu %.2f s (%.1f %% of one core), %d threads, "
+                + "heap %.1f MB, %.0f messages/s, %.0f jogs/s",
+                mode, phase, cpuSeconds, 100 * cpuSeconds / seconds, end.threadCount,
+                end.heapUsed / 1e6, (end.messages - start.messages) / seconds, jogs / seconds));
+    }
+
+    private class Snapshot {
+
+        final long heapUsed;
+        final long wallTime;
+        final long cpuTime;
+        final int threadCount;
+        final long messages;
+
+        Snapshot(long messages) {
+            // Collect first so that the heap is what is really in use and
+            // the collection is not counted in the phase.
+            System.gc();
+            heapUsed = memory.getHeapMemoryUsage().getUsed();
+            wallTime = System.nanoTime();
+            cpuTime = processCpuTime();
+            threadCount = threads.getThreadCount();
+            this.messages = messages;
+        }
+    }
+
+    // The CPU time of the whole process, or of the live threads if the JVM
+    // does not tell.
+    private long processCpuTime() {
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        long total = 0;
+        for (long id : threads.getAllThreadIds()) {
+            total += Math.max(0, threads.getThreadCpuTime(id));
+        }
+        return total;
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Program checking and compilation in DividerProgram and the clean up of an
+ * uploaded program in UploadedProgramMessage, for programs from 10 to 100000
+ * lines. The big sizes are slow, run them with fewer iterations, for example
+ * -p lines=100000 -wi 1 -i 3.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProgramBenchmark {
+
+    @Param({"10", "100", "1000", "10000", "100000"})
+    public int lines;
+
+    private String program;
+    private String uploadedText;
+
+    @Setup
+    public void setup() {
+        program = BenchmarkPrograms.program(lines);
+        uploadedText = BenchmarkPrograms.uploadedText(lines);
+    }
+
+    @Benchmark
+    public boolean isSyntaxOk() {
+        return new DividerProgram(program).isSyntaxOk();
+    }
+
+    @Benchmark
+    public String getDownloadToArduinoText() {
+        return new DividerProgram(program).getDownloadToArduinoText();
+    }
+
+    @Benchmark
+    public String getCleanedUpText() {
+        // getCleanedUpText changes the message so a new one is needed each time.
+        return new UploadedProgramMessage(uploadedText).getCleanedUpText();
+    }
+
+}
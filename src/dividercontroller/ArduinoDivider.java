@@ -18,11 +18,22 @@
  */
 package dividercontroller;
 
-import com.google.common.eventbus.EventBus;
-import com.google.common.eventbus.Subscribe;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import static java.lang.Thread.sleep;
-import javafx.application.Platform;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
 
 /**
  *
@@ -42,28 +53,68 @@ import javafx.application.Platform;
  *
  * The possible commands are: 
  * D Download from PC. D followed by the program and then eof (27) 
- * U Upload to PC. Sends the program followed by eof and "Upload finished" 
+ * E Download changes from PC, see ProgramDelta. E followed by the edit script
+ * and then eof (27). Responds with "Download finished" or "Edit rejected".
+ * U Upload to PC. Sends "U", the program followed by eof and "Upload finished" 
  * R Start automatic execution of program. Sends "R" 
  * + Jog 1 step positive. Responds with "+" and "A" followed by the angle 
  * - Jog 1 step negative. Responds with "-" and "A" followed by the angle 
+ * J steps Jog a number of steps, negative for the negative direction.
+ * Responds with "J" and the steps and then "A" followed by the angle.
  * P angle Positions to angle. Responds with "Pangle" and then "Aangle" 
  * ? Request current position.  * Responds with "Aangle" 
  * S Request current status (0 or 3). Response "S0" or "S3" 
  * Z Set current position to zero. Response "Z" and then "A0.00" 
  * V Request firmware version. Sends a version string.
+ * B Switch to the binary protocol, see BinaryProtocol. Responds with "B".
+ * C Request the fingerprint of the program, see ProgramFingerprint. Responds
+ * with "C" and eight hex digits.
  *
  * All the commands is acknowledged with the command as above and all responses
  * is ended with an ETB character (23);
  *
  * This is handled in this class with a state machine
  * 
+ * The state machine and the message receiver run either on two threads of
+ * their own, platform or virtual, or as short steps on a strand of a pool
+ * that is shared with other dividers, see ThreadModel and DividerManager.
+ * Either way they only run when a command is queued, when a message arrives
+ * and when the state machine has something due.
+ *
+ * After the port is opened the divider is asked with V and S by turns until
+ * it answers, then a COMMUNICATION_STARTED event with the time it took is
+ * posted and commands are sent. A divider that does not answer is used
+ * anyway after a timeout.
+ *
+ * When the link is lost, on an I/O error or when responses stop arriving, the
+ * port is opened again with growing delays until the divider answers, see
+ * ConnectionSupervisor. Commands that were sent but not answered are sent
+ * again if that is safe, and the mode is set again. P and Z are only sent
+ * again when the angle shows that the divider was not reset.
+ *
+ * startDivider opens the port and starts the tasks, stop ends them and
+ * closes the port. stop never waits longer than the timeout it is given, so
+ * closing the program or changing the port can not hang on a task that does
+ * not end. Each start makes new task objects with their own stop flags, a
+ * task that was too slow to stop can not be mistaken for a new one.
  */
 public class ArduinoDivider {
 
     private final SerialCommHandler serialCommHandler;
 
-    private final EventBus eventBus;
-    private final long DELAY_BEFORE_GETTING_FIRST_STATUS = 3000;
+    private final EventRouter eventBus;
+    private final EventRouter.Channel<FromArduinoMessageEvent> fromArduinoChannel;
+    private final EventRouter.Channel<ArduinoStatusMessageEvent> statusMessageChannel;
+    // Reused for every message, only used by the message receiver task.
+    private final FromArduinoMessageEvent fromArduinoEvent = new FromArduinoMessageEvent();
+    private final ArduinoStatusMessageEvent statusMessageEvent = new ArduinoStatusMessageEvent(null);
+    // The divider is asked with V and S by turns until it answers, see
+    // handshakeAnswer. An Arduino is reset when the port is opened and does
+    // not listen until the bootloader is done.
+    private final long READY_PROBE_INTERVAL = 100;
+    // Without an answer the divider is taken as ready after this time, like
+    // before the handshake.
+    private final long READY_TIMEOUT = 5000;
 
     /**
      * The different states of the state machine
@@ -77,10 +128,16 @@ public class ArduinoDivider {
     };
 
     // The current state
-    private CommState currentCommState = CommState.StartingUp;
+    private volatile CommState currentCommState = CommState.StartingUp;
 
-    // Queue for commands to be sent to divider
-    private final ConcurrentLinkedQueue<CommandToDivider> commandSendQueue = new ConcurrentLinkedQueue<>();
+    // Queue for commands to be sent to divider, see CommandScheduler
+    private final CommandScheduler commandSendQueue = new CommandScheduler();
+
+    // Commands sent to the divider that wait for their responses
+    private final PendingCommands pendingCommands = new PendingCommands();
+
+    // When to ask for angle and status
+    private final PollingPolicy pollingPolicy;
 
     public enum DividerStatus {
         Unknown,
@@ -91,38 +148,708 @@ public class ArduinoDivider {
 
     private DividerStatus dividerStatus = DividerStatus.Unknown;
 
-    private long timeToGetFirstStatus;
+    // When the port was opened, in System.nanoTime() units.
+    private long portOpenedTime;
+    // Set when the first V and S probes of the handshake are sent.
+    private volatile boolean versionProbed;
+    private volatile boolean statusProbed;
+    // Set by the message receiver when the divider has answered a probe.
+    private volatile boolean readyAnswered;
+    private final LatencyHistogram timeToReady = new LatencyHistogram("Time to ready");
+
+    // Sees when the link is lost and when to try again.
+    private final ConnectionSupervisor connectionSupervisor;
+    // Runs the attempts to reconnect, made when the link is first lost.
+    private ScheduledExecutorService reconnectTimer;
+    private final Object reconnectTimerLock = new Object();
+    // Set while an attempt to reconnect waits to run.
+    private final AtomicBoolean reconnectPending = new AtomicBoolean();
+    // Commands older than this in ms are not sent after a reconnect.
+    private final long replayWindow;
+    // What the divider had when the link was lost, set again after the
+    // reconnect. Null and NaN if not known.
+    private volatile Boolean incrementalBeforeOutage;
+    private volatile double angleBeforeOutage = Double.NaN;
+    // The angle the divider was moving to when the link was lost, the same
+    // as angleBeforeOutage if it was not moving. NaN if not known.
+    private volatile double targetBeforeOutage = Double.NaN;
+    // P and Z commands to send again after an outage. They wait until the
+    // angle shows that the divider was not reset, else the table would move
+    // to the wrong place.
+    private final List<CommandToDivider> waitingForAngleCheck = new ArrayList<>();
 
-    private String programToDownload;
+    // The DOWNLOAD_PROGRAM or EDIT_PROGRAM command that is being sent, with
+    // the program or edit script.
+    private volatile CommandToDivider downloadCommand;
+    // The program the divider has, if it was down or uploaded since the
+    // start. Null if not known.
+    private volatile String confirmedProgram;
+    // The download in progress. Set by the send task, the message receiver
+    // hands it the answers to the chunks.
+    private volatile ProgramDownloader programDownloader;
+    private final EventRouter.Channel<DownloadProgressEvent> downloadProgressChannel;
+    // The upload in progress, see ProgramUploadParser.
+    private volatile ProgramUploadParser programUpload;
+    // The upload in progress only checks the program, the editor does not
+    // get it.
+    private volatile boolean quietUpload;
+    private final int maxUploadSize;
+    // What the divider has told about itself, see DeviceState. The firmware
+    // version is null until the protocol is negotiated or the version is
+    // needed for a download.
+    private final DeviceState deviceState;
 
-    public ArduinoDivider(EventBus eventBus) {
-        serialCommHandler = new SerialCommHandler();
+    // Shown instead of the download progress when the divider has the
+    // program already.
+    static final String PROGRAM_UNCHANGED_MESSAGE = "Programmet finns redan i delaren";
+
+    // Switch to the binary protocol when the firmware has it.
+    private final boolean useBinaryProtocol;
+
+    public ArduinoDivider(EventRouter eventBus) {
+        this(eventBus, null, ThreadModel.PLATFORM, null, null);
+    }
+
+    /**
+     * @param eventBus the event scope of this divider
+     * @param portParameters the port to use, null for the configured port
+     * @param threadModel how the send and receive tasks are run
+     * @param pool the pool to run on with ThreadModel.POOL. With the other
+     * models it runs the simulator, null to give it its own thread.
+     * @param selectorLoop watches the transport, null to give it its own
+     * thread
+     */
+    ArduinoDivider(EventRouter eventBus, ComPortParameters portParameters, ThreadModel threadModel,
+            ScheduledExecutorService pool, SelectorLoop selectorLoop) {
+        serialCommHandler = new SerialCommHandler(portParameters, pool, selectorLoop);
         //sendGetStatusCommand();
         // initCommandSender();
         // initMessageReceiver();
         this.eventBus = eventBus;
-        eventBus.register(this);
+        this.threadModel = threadModel;
+        this.pool = pool;
+        strand = threadModel == ThreadModel.POOL ? new Strand("ArduinoDivider", pool) : null;
+        Configuration config = Configuration.getConfiguration();
+        pollingPolicy = new PollingPolicy(config.getMinPollInterval(), config.getMaxPollInterval());
+        useBinaryProtocol = config.isBinaryProtocol();
+        maxUploadSize = config.getMaxUploadSize();
+        deviceState = new DeviceState(config.getStateMaxAge());
+        connectionSupervisor = new ConnectionSupervisor(config.getReconnectMinDelay(), config.getReconnectMaxDelay());
+        replayWindow = config.getReplayWindow();
+        serialCommHandler.setFailureListener(ex -> connectionLost("I/O error: " + ex.getMessage()));
+        fromArduinoChannel = eventBus.channel(FromArduinoMessageEvent.class);
+        statusMessageChannel = eventBus.channel(ArduinoStatusMessageEvent.class);
+        downloadProgressChannel = eventBus.channel(DownloadProgressEvent.class);
+        eventBus.subscribe(DownloadProgramMessage.class, this::handleDownloadProgramMessage);
+        eventBus.subscribe(ToArduinoMessageEvent.class, this::handleEventBusEvent);
+        eventBus.subscribe(ProgramEvent.class, this::handleProgramEvent);
+    }
+
+    /**
+     * Open the port and start the send and receive tasks. Does nothing if
+     * the divider is running.
+     */
+    public synchronized void startDivider() {
+        if (running) {
+            return;
+        }
+        currentCommState = CommState.StartingUp;
+        dividerStatus = DividerStatus.Unknown;
+        previousMessage = null;
+        deviceState.clear();
+        // Not known for the divider on the port until it tells.
+        commandSendQueue.setJogMerging(false);
+        commandSendQueue.setAbsolutePositions(null);
+        serialSendTask = new SerialSendTask();
+        messageReceiverTask = new MessageReceiverTask();
+        // The port is opened before the tasks start so that the send task
+        // sees when it was opened. Messages that arrive before
+        // the receiver runs wait in the message ring.
+        if (strand != null) {
+            serialCommHandler.setMessageListener(this::wakeUpMessageReceiver);
+            startSerial();
+            wakeUpSerialSendTask();
+            wakeUpMessageReceiver();
+        } else {
+            startSerial();
+            initMessageReceiverTask();
+            initSerialSendTask();
+        }
+        running = true;
+        if (!serialCommHandler.isUp()) {
+            connectionLost("The port could not be opened");
+        }
+    }
+
+    /**
+     * Stop the send and receive tasks and close the port. Commands that wait
+     * for their responses fail, commands still in the queue are sent when the
+     * divider is started again.
+     *
+     * @param timeout the longest time to wait for the tasks to end
+     * @param unit unit of timeout
+     * @return true if the tasks have ended, false if the timeout ran out or
+     * the calling thread was interrupted. The tasks then end by themselves
+     * as soon as they can.
+     */
+    public synchronized boolean stop(long timeout, TimeUnit unit) {
+        if (!running) {
+            return true;
+        }
+        connectionSupervisor.cancel();
+        boolean stopped = stopTasks(timeout, unit);
+        IllegalStateException stoppedException = new IllegalStateException("Divider stopped");
+        pendingCommands.cancelAll(stoppedException);
+        StateAnswer stateAnswer;
+        while ((stateAnswer = stateAnswers.poll()) != null) {
+            stateAnswer.command.getResponse().completeExceptionally(stoppedException);
+        }
+        synchronized (waitingForAngleCheck) {
+            for (CommandToDivider command : waitingForAngleCheck) {
+                command.getResponse().completeExceptionally(stoppedException);
+            }
+            waitingForAngleCheck.clear();
+        }
+        Utils.debugOutput(timeToReady.toString(), 2);
+        Utils.debugOutput(commandLatency.toString(), 2);
+        Utils.debugOutput(pendingCommands.getResponseLatency().toString(), 2);
+        Utils.debugOutput(pollingPolicy.toString() + ", total " + getBytesSent() + " bytes sent, "
+                + getBytesReceived() + " bytes received", 2);
+        Utils.debugOutput(commandSendQueue.toString(), 2);
+        Utils.debugOutput(deviceState.toString(), 2);
+        Utils.debugOutput(connectionSupervisor.toString(), 2);
+        Utils.debugOutput(connectionSupervisor.getOutageDurations().toString(), 2);
+        return stopped;
+    }
+
+    // Stop the tasks and close the port, the commands are left as they are.
+    private boolean stopTasks(long timeout, TimeUnit unit) {
+        running = false;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        serialSendTask.stopRequested = true;
+        messageReceiverTask.stopRequested = true;
+        serialCommHandler.setMessageListener(null);
+        // Closing the port also frees a task that is stuck in a write.
+        serialCommHandler.stopReader();
+        boolean stopped;
+        try {
+            stopped = strand != null ? awaitStrand(deadline) : awaitThreads(deadline);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            stopped = false;
+        }
+        if (!stopped) {
+            Utils.debugOutput("The divider tasks did not stop in time", 3);
+        }
+        return stopped;
+    }
+
+    // The link to the divider is lost, called on any thread. The first time
+    // in an outage the state is saved. A reconnect is set up unless one is
+    // waiting to run.
+    private void connectionLost(String reason) {
+        if (!running) {
+            return;
+        }
+        if (connectionSupervisor.linkLost(System.nanoTime())) {
+            incrementalBeforeOutage = deviceState.isIncremental();
+            angleBeforeOutage = deviceState.getAngle();
+            targetBeforeOutage = targetOf(pendingCommands.find(CommandScheduler::changesAngle),
+                    angleBeforeOutage);
+            Utils.debugOutput("The connection to the divider is lost: " + reason, 3);
+            statusMessageChannel.post(new ArduinoStatusMessageEvent("Förbindelsen med delaren bröts"));
+        }
+        scheduleReconnect();
+    }
+
+    private void scheduleReconnect() {
+        if (!reconnectPending.compareAndSet(false, true)) {
+            return;
+        }
+        long delay = connectionSupervisor.nextDelay();
+        Utils.debugOutput("Reconnecting in " + delay + " ms", 2);
+        synchronized (reconnectTimerLock) {
+            if (reconnectTimer == null) {
+                reconnectTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "DividerReconnect");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            reconnectTimer.schedule(this::reconnect, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Open the port again. The commands that were not answered are sent
+    // again after the handshake, or fail if that is not safe. An attempt
+    // that can not open the port, or that gets no answer to the handshake,
+    // sets up the next one.
+    private synchronized void reconnect() {
+        reconnectPending.set(false);
+        if (!running || !connectionSupervisor.isInOutage()) {
+            // Stopped while waiting.
+            return;
+        }
+        stopTasks(PORT_SWITCH_TIMEOUT, TimeUnit.MILLISECONDS);
+        replayUnanswered();
+        startDivider();
+        if (!serialCommHandler.isUp()) {
+            scheduleReconnect();
+        }
+    }
+
+    // Put the commands that were sent but not answered back in the queue.
+    // A command that would do something twice if the divider did it before
+    // the link was lost fails, and so does every command older than the
+    // replay window, the operator may not want it any more.
+    private void replayUnanswered() {
+        long oldest = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(replayWindow);
+        List<CommandToDivider> replayed = new ArrayList<>();
+        List<CommandToDivider> dropped = new ArrayList<>();
+        for (CommandToDivider command : pendingCommands.takeAll()) {
+            if (command.isPoll()) {
+                command.getResponse().cancel(false);
+            } else if (command.getCreationTime() - oldest >= 0 && isSafeToRepeat(command)) {
+                if (dependsOnAngle(command)) {
+                    synchronized (waitingForAngleCheck) {
+                        waitingForAngleCheck.add(command);
+                    }
+                } else {
+                    replayed.add(command);
+                }
+            } else {
+                dropped.add(command);
+            }
+        }
+        dropped.addAll(commandSendQueue.removeIf(command -> command.getCreationTime() - oldest < 0));
+        commandSendQueue.requeue(replayed);
+        IOException lost = new IOException("The connection to the divider was lost");
+        for (CommandToDivider command : dropped) {
+            command.getResponse().completeExceptionally(lost);
+        }
+        connectionSupervisor.commandsReplayed(replayed.size());
+        connectionSupervisor.commandsDropped(dropped.size());
+        if (!replayed.isEmpty() || !dropped.isEmpty()) {
+            Utils.debugOutput(replayed.size() + " commands sent again, " + dropped.size() + " dropped", 2);
+        }
+    }
+
+    // Where a move that was under way ends, NaN if not known.
+    private double targetOf(CommandToDivider move, double angle) {
+        if (move == null) {
+            return angle;
+        }
+        switch (move.getCommand()) {
+            case POSITION_TO:
+                return Boolean.FALSE.equals(incrementalBeforeOutage) ? move.getValue() : Double.NaN;
+            case ZERO_POSITION:
+                return 0;
+            default:
+                return Double.NaN;
+        }
+    }
+
+    private static boolean dependsOnAngle(CommandToDivider command) {
+        return command.getCommand() == CommandToDivider.DividerCommand.POSITION_TO
+                || command.getCommand() == CommandToDivider.DividerCommand.ZERO_POSITION;
+    }
+
+    private boolean isSafeToRepeat(CommandToDivider command) {
+        switch (command.getCommand()) {
+            case GET_STATUS:
+            case GET_ANGLE:
+            case GET_VERSION:
+            case GET_FINGERPRINT:
+            case SET_INCREMENTAL:
+            case SET_ABSOLUTE:
+            case STOP_RUNNING:
+            case ZERO_POSITION:
+                return true;
+            case POSITION_TO:
+                // The same position again, unless it is a step from the
+                // last one.
+                return Boolean.FALSE.equals(incrementalBeforeOutage);
+            default:
+                return false;
+        }
+    }
+
+    // The divider answers again after an outage. The mode it had is set
+    // first, before the commands sent again. The position can not be set
+    // without moving the table, if the divider was reset it is told and the
+    // P and Z commands that wait for the angle fail.
+    private void connectionRestored() {
+        connectionSupervisor.reconnected(System.nanoTime());
+        Utils.debugOutput("The connection to the divider is restored", 2);
+        List<CommandToDivider> restore = new ArrayList<>();
+        Boolean incremental = incrementalBeforeOutage;
+        if (incremental != null) {
+            restore.add(new CommandToDivider(incremental
+                    ? CommandToDivider.DividerCommand.SET_INCREMENTAL
+                    : CommandToDivider.DividerCommand.SET_ABSOLUTE));
+        }
+        double angle = angleBeforeOutage;
+        double target = targetBeforeOutage;
+        CommandToDivider angleQuery = new CommandToDivider(CommandToDivider.DividerCommand.GET_ANGLE);
+        restore.add(angleQuery);
+        // If the query is lost in another outage, the next reconnect asks
+        // again. If it fails or the answer can not be read, the commands
+        // that wait fail, they must not wait for ever.
+        angleQuery.getResponse().whenComplete((response, failure) ->
+                angleChecked(failure == null ? positionIn(response) : Double.NaN, angle, target));
+        // Before the commands sent again, they may depend on the mode.
+        commandSendQueue.requeue(restore);
+        statusMessageChannel.post(new ArduinoStatusMessageEvent("Förbindelsen med delaren är återställd"));
+    }
+
+    // The angle after an outage, NaN if the divider did not tell. If it is
+    // where the divider was, or on the way to where it was moving, the P and
+    // Z commands that wait are sent. Else the divider was reset or it can
+    // not be told, and they fail.
+    private void angleChecked(double position, double angle, double target) {
+        List<CommandToDivider> waiting;
+        synchronized (waitingForAngleCheck) {
+            waiting = new ArrayList<>(waitingForAngleCheck);
+            waitingForAngleCheck.clear();
+        }
+        boolean known = !Double.isNaN(position) && !Double.isNaN(angle) && !Double.isNaN(target);
+        if (known && position >= Math.min(angle, target) - 0.005 && position <= Math.max(angle, target) + 0.005) {
+            if (!waiting.isEmpty()) {
+                commandSendQueue.requeue(waiting);
+                connectionSupervisor.commandsReplayed(waiting.size());
+                wakeUpSerialSendTask();
+            }
+            return;
+        }
+        if (known) {
+            Utils.debugOutput("The divider was reset, the angle is " + position + " and not " + angle, 3);
+            statusMessageChannel.post(new ArduinoStatusMessageEvent(
+                    "Delaren har startats om, vinkeln är " + String.format(Locale.US, "%.2f", position)
+                    + " i stället för " + String.format(Locale.US, "%.2f", angle)));
+        }
+        IOException reset = new IOException(known ? "The divider was reset"
+                : "It is not known if the divider was reset");
+        for (CommandToDivider command : waiting) {
+            command.getResponse().completeExceptionally(reset);
+        }
+        connectionSupervisor.commandsDropped(waiting.size());
+    }
+
+    // The angle in an "A" message, NaN if there is none.
+    private static double positionIn(String response) {
+        if (response == null || !response.startsWith("A")) {
+            return Double.NaN;
+        }
+        try {
+            return getPositionFromMessage(response);
+        } catch (NumberFormatException ex) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Stop and start again, for instance to use another port.
+     *
+     * @return true if the old tasks ended in time, see stop
+     */
+    public synchronized boolean restart(long timeout, TimeUnit unit) {
+        boolean stopped = stop(timeout, unit);
+        startDivider();
+        return stopped;
+    }
+
+    /**
+     * Stop the divider for good. The simulator is stopped too if one is
+     * used.
+     *
+     * @return true if the tasks ended in time, see stop
+     */
+    public synchronized boolean shutdown(long timeout, TimeUnit unit) {
+        boolean stopped = stop(timeout, unit);
+        serialCommHandler.stopSimulator();
+        synchronized (reconnectTimerLock) {
+            if (reconnectTimer != null) {
+                reconnectTimer.shutdownNow();
+                reconnectTimer = null;
+            }
+        }
+        return stopped;
     }
 
-    public void startDivider() {
-        initMessageReceiverTask();
-        initSerialSendTask();
-        startSerial();
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    private boolean awaitThreads(long deadline) throws InterruptedException {
+        LockSupport.unpark(serialSendThread);
+        messageReceiverThread.interrupt();
+        return join(serialSendThread, deadline) && join(messageReceiverThread, deadline);
+    }
+
+    private static boolean join(Thread thread, long deadline) throws InterruptedException {
+        long remaining = deadline - System.nanoTime();
+        if (remaining > 0) {
+            TimeUnit.NANOSECONDS.timedJoin(thread, remaining);
+        }
+        return !thread.isAlive();
+    }
+
+    // The strand runs one task at a time in order, so when this marker has
+    // run no step of the stopped tasks is running any more.
+    private boolean awaitStrand(long deadline) throws InterruptedException {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        strand.execute(() -> {
+            if (sendTimer != null) {
+                sendTimer.cancel(false);
+                sendTimer = null;
+            }
+            done.complete(null);
+        });
+        try {
+            done.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            return true;
+        } catch (TimeoutException | ExecutionException ex) {
+            return false;
+        }
+    }
+
+    private synchronized void handleProgramEvent(ProgramEvent event) {
+        if (event.getCommand() == ProgramEvent.Command.NEW_SERIAL_PORT_SELECTED && running) {
+            // Open the new port.
+            restart(PORT_SWITCH_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * The event scope of this divider.
+     */
+    public EventRouter getEventBus() {
+        return eventBus;
     }
 
     void startSerial() {
         serialCommHandler.startReader();
-        timeToGetFirstStatus = System.currentTimeMillis() + DELAY_BEFORE_GETTING_FIRST_STATUS;
+        portOpenedTime = System.nanoTime();
+        versionProbed = false;
+        statusProbed = false;
+        readyAnswered = false;
     }
 
-    @Subscribe
     private void handleDownloadProgramMessage(DownloadProgramMessage downloadProgramMessage) {
-        programToDownload = downloadProgramMessage.getDividerProgram();
-        //currentCommState = CommState.DownloadProgramToArduino;
-        commandSendQueue.add(new CommandToDivider(CommandToDivider.DividerCommand.DOWNLOAD_PROGRAM));
+        downloadProgram(downloadProgramMessage.getDividerProgram());
+    }
+
+    /**
+     * Queue a command for the divider.
+     *
+     * @param command the command to send
+     * @return a future that is completed with the response to the command or
+     * fails with a TimeoutException if no response arrives in time
+     */
+    public CompletableFuture<String> submitCommand(CommandToDivider command) {
+        queueCommand(command);
+        return command.getResponse();
+    }
+
+    public CompletableFuture<String> submitCommand(CommandToDivider.DividerCommand dividerCommand) {
+        return submitCommand(new CommandToDivider(dividerCommand));
+    }
+
+    // Ask for the version to know what the firmware has, and switch to the
+    // binary protocol if it is wanted and the firmware has it. Old firmware
+    // is left in the text protocol.
+    private void negotiateProtocol() {
+        readFirmwareVersion().thenAccept(version -> {
+            if (!useBinaryProtocol) {
+                return;
+            }
+            if (!BinaryProtocol.isSupportedBy(version)) {
+                Utils.debugOutput("Firmware " + version + " uses the text protocol", 2);
+                return;
+            }
+            submitCommand(CommandToDivider.DividerCommand.SET_BINARY).whenComplete((response, failure) -> {
+                if (failure != null) {
+                    Utils.debugOutput("No answer to B, the text protocol is used", 3);
+                    serialCommHandler.switchToText();
+                } else {
+                    Utils.debugOutput("Binary protocol in use", 2);
+                }
+            });
+        });
+    }
+
+    /**
+     * @return true if the binary protocol is used
+     */
+    public boolean isBinaryProtocol() {
+        return serialCommHandler.isBinary();
+    }
+
+    // On the transport thread.
+    private void postUploadedLines(String lines, boolean first, boolean last) {
+        ProgramUploadParser upload = programUpload;
+        eventBus.post(new UploadedLinesMessage(lines, first, last,
+                last && upload != null && upload.isTruncated()));
+    }
+
+    private ProgramDownloader.Mode getDownloadMode() {
+        if (!serialCommHandler.isBinary()) {
+            return ProgramDownloader.Mode.PACED_TEXT;
+        }
+        return BinaryProtocol.isChunkedDownloadSupportedBy(deviceState.getFirmwareVersion())
+                ? ProgramDownloader.Mode.ACKNOWLEDGED : ProgramDownloader.Mode.PACED_FRAMES;
+    }
+
+    /**
+     * Queue a positioning command.
+     *
+     * @return a future that is completed with the "A" message with the new
+     * angle when the divider has reached the position
+     */
+    public CompletableFuture<String> positionTo(double angle) {
+        CommandToDivider command = new CommandToDivider(CommandToDivider.DividerCommand.POSITION_TO);
+        command.setValue(angle);
+        return submitCommand(command);
+    }
+
+    /**
+     * Queue a download of a program to the divider. If the divider confirmed
+     * the same program the last time and still has it, the program is not
+     * sent again, see ProgramFingerprint. If it has another program that was
+     * downloaded from here and the firmware takes edit scripts, only the
+     * changes are sent, see ProgramDelta.
+     *
+     * @param program the program text, as from getDownloadToArduinoText
+     * @return a future that is completed when the divider reports "Download
+     * finished", or with PROGRAM_UNCHANGED_MESSAGE when the download was not
+     * needed
+     */
+    public CompletableFuture<String> downloadProgram(String program) {
+        String port = serialCommHandler.getPortName();
+        String confirmedFingerprint = port == null ? null
+                : Configuration.getConfiguration().getProgramFingerprint(port);
+        if (confirmedFingerprint == null) {
+            return sendProgram(program);
+        }
+        if (!ProgramFingerprint.of(program).equals(confirmedFingerprint)) {
+            return sendChanges(program, confirmedFingerprint);
+        }
+        // The program may have been changed since, by another program or
+        // by a divider that was swapped. Ask the divider what it has.
+        return readProgramFingerprint().thenCompose(dividerFingerprint -> {
+            if (dividerFingerprint == null) {
+                return sendProgram(program);
+            }
+            if (!confirmedFingerprint.equals(dividerFingerprint)) {
+                return sendChanges(program, dividerFingerprint);
+            }
+            Utils.debugOutput("The divider has the program already, " + confirmedFingerprint, 2);
+            confirmedProgram = program;
+            statusMessageChannel.post(new ArduinoStatusMessageEvent(PROGRAM_UNCHANGED_MESSAGE));
+            return CompletableFuture.completedFuture(PROGRAM_UNCHANGED_MESSAGE);
+        });
+    }
+
+    // Send the changes from the program the divider has, or the whole
+    // program if the firmware does not take edit scripts, the changes are
+    // not shorter or the old program is not known here. The old program is
+    // not uploaded to find the changes, the divider sends it at the same
+    // line rate as it is downloaded, so the upload alone costs about as much
+    // as sending the whole program.
+    private CompletableFuture<String> sendChanges(String program, String confirmedFingerprint) {
+        String dividerProgram = confirmedProgram;
+        if (dividerProgram == null || !ProgramFingerprint.of(dividerProgram).equals(confirmedFingerprint)) {
+            return sendProgram(program);
+        }
+        return readFirmwareVersion().thenCompose(version -> {
+            if (!ProgramDelta.isSupportedBy(version)) {
+                return sendProgram(program);
+            }
+            String script = ProgramDelta.script(dividerProgram, program);
+            if (script == null || transferSize(script) >= transferSize(program)) {
+                return sendProgram(program);
+            }
+            Utils.debugOutput("Sending " + script.length() + " characters of changes instead of "
+                    + program.length(), 2);
+            return send(CommandToDivider.DividerCommand.EDIT_PROGRAM, script, program)
+                    .handle((response, failure) -> failure == null
+                            ? CompletableFuture.completedFuture(response) : sendProgram(program))
+                    .thenCompose(response -> response);
+        });
+    }
+
+    // The packed script may be longer than the packed program although the
+    // text is shorter.
+    private int transferSize(String text) {
+        return serialCommHandler.isBinary() ? BinaryProtocol.packProgram(text).length : text.length();
+    }
+
+    private CompletableFuture<String> sendProgram(String program) {
+        return send(CommandToDivider.DividerCommand.DOWNLOAD_PROGRAM, program, program);
+    }
+
+    // Queue a download of text, a program or an edit script, that leaves
+    // the divider with program.
+    private CompletableFuture<String> send(CommandToDivider.DividerCommand command, String text, String program) {
+        // What the divider has is not known until the download is
+        // confirmed.
+        programConfirmed(null);
+        CommandToDivider download = new CommandToDivider(command);
+        download.setPayload(text, program);
+        return submitCommand(download);
+    }
+
+    // Remember the program the divider has, null if not known.
+    private void programConfirmed(String program) {
+        confirmedProgram = program;
+        String port = serialCommHandler.getPortName();
+        if (port != null) {
+            Configuration.getConfiguration().setProgramFingerprint(port,
+                    program == null ? null : ProgramFingerprint.of(program));
+        }
+    }
+
+    // The answer to V, asked for if not known. Completed with null if the
+    // divider does not answer.
+    private CompletableFuture<String> readFirmwareVersion() {
+        String version = deviceState.getFirmwareVersion();
+        if (version != null) {
+            return CompletableFuture.completedFuture(version);
+        }
+        return submitCommand(CommandToDivider.DividerCommand.GET_VERSION).thenApply(response -> {
+            deviceState.setFirmwareVersion(response);
+            commandSendQueue.setJogMerging(CommandScheduler.isJogSupportedBy(response));
+            return response;
+        }).exceptionally(ex -> null);
+    }
+
+    // The program in the divider, without showing it in the editor.
+    // Completed with null if it can not be uploaded.
+    private CompletableFuture<String> uploadQuietly() {
+        CommandToDivider upload = new CommandToDivider(CommandToDivider.DividerCommand.UPLOAD_PROGRAM);
+        upload.setQuiet(true);
+        return submitCommand(upload).exceptionally(ex -> {
+            Utils.debugOutput("Could not upload the program: " + ex, 3);
+            return null;
+        });
+    }
+
+    // The fingerprint of the program in the divider, from the C command if
+    // the firmware has it and else from a quiet upload. Completed with null
+    // if the divider does not tell.
+    private CompletableFuture<String> readProgramFingerprint() {
+        return readFirmwareVersion().thenCompose(version -> {
+            if (ProgramFingerprint.isQuerySupportedBy(version)) {
+                return submitCommand(CommandToDivider.DividerCommand.GET_FINGERPRINT)
+                        .thenApply(ProgramFingerprint::fromResponse);
+            }
+            return uploadQuietly().thenApply(program -> program == null ? null : ProgramFingerprint.of(program));
+        }).exceptionally(ex -> {
+            Utils.debugOutput("Could not get the program fingerprint: " + ex, 3);
+            return null;
+        });
     }
 
-    @Subscribe
     private void handleEventBusEvent(ToArduinoMessageEvent event) {
         switch (event.getCommand()) {
             case QUIT_PROGRAM:
@@ -157,296 +884,762 @@ public class ArduinoDivider {
     }
 
     private void sendStopCommand() {
-        commandSendQueue.add(new CommandToDivider(CommandToDivider.DividerCommand.STOP_RUNNING));
+        queueCommand(new CommandToDivider(CommandToDivider.DividerCommand.STOP_RUNNING));
         Utils.debugOutput("Stop Running sent", 2);
     }
 
     private void sendRunCommand() {
-        commandSendQueue.add(new CommandToDivider(CommandToDivider.DividerCommand.RUN_PROGRAM));
+        queueCommand(new CommandToDivider(CommandToDivider.DividerCommand.RUN_PROGRAM));
         Utils.debugOutput("Run program sent", 2);
     }
 
     private void sendGetStatusCommand() {
-        commandSendQueue.add(new CommandToDivider(CommandToDivider.DividerCommand.GET_STATUS));
+        queueCommand(new CommandToDivider(CommandToDivider.DividerCommand.GET_STATUS));
         Utils.debugOutput("Get status sent", 2);
     }
 
     private void sendSetZeroPosition() {
-        commandSendQueue.add(new CommandToDivider(CommandToDivider.DividerCommand.ZERO_POSITION));
+        queueCommand(new CommandToDivider(CommandToDivider.DividerCommand.ZERO_POSITION));
         Utils.debugOutput("Set Zero sent", 2);
     }
 
     private void sendSetIncremental(double value) {
         if ( value == 0 ) {
-            commandSendQueue.add(new CommandToDivider(CommandToDivider.DividerCommand.SET_ABSOLUTE));
+            queueCommand(new CommandToDivider(CommandToDivider.DividerCommand.SET_ABSOLUTE));
         } else {
-            commandSendQueue.add(new CommandToDivider(CommandToDivider.DividerCommand.SET_INCREMENTAL));
+            queueCommand(new CommandToDivider(CommandToDivider.DividerCommand.SET_INCREMENTAL));
         }
     }
     
     private void sendPositionTo(double position) {
         CommandToDivider commandToDivider = new CommandToDivider(CommandToDivider.DividerCommand.POSITION_TO);
         commandToDivider.setValue(position);
-        commandSendQueue.add(commandToDivider);
+        queueCommand(commandToDivider);
         Utils.debugOutput("Position to sent" + position, 2);
     }
 
     private void sendStepNegativeCommand() {
-        commandSendQueue.add(new CommandToDivider(CommandToDivider.DividerCommand.STEP_MINUS));
+        queueCommand(new CommandToDivider(CommandToDivider.DividerCommand.STEP_MINUS));
         Utils.debugOutput("Step negative sent", 2);
     }
 
     private void sendStepPositiveCommand() {
-        commandSendQueue.add(new CommandToDivider(CommandToDivider.DividerCommand.STEP_PLUS));
+        queueCommand(new CommandToDivider(CommandToDivider.DividerCommand.STEP_PLUS));
         Utils.debugOutput("Step positive sent", 2);
     }
 
     private void sendUploadToPCCommand() {
-        commandSendQueue.add(new CommandToDivider(CommandToDivider.DividerCommand.UPLOAD_PROGRAM));
+        queueCommand(new CommandToDivider(CommandToDivider.DividerCommand.UPLOAD_PROGRAM));
         Utils.debugOutput("Upload sent", 2);
-        currentCommState = CommState.UploadProgramToPc;
+    }
+
+    private void queueCommand(CommandToDivider command) {
+        String answer = answerFromState(command);
+        if (answer != null) {
+            Utils.debugOutput("Answered without sending " + command.getCommandChar() + " : " + answer, 2);
+            stateAnswers.add(new StateAnswer(command, answer));
+            if (strand != null) {
+                wakeUpMessageReceiver();
+            } else {
+                serialCommHandler.wakeUpMessageConsumer();
+            }
+            return;
+        }
+        commandSendQueue.add(command);
+        wakeUpSerialSendTask();
+    }
+
+    // The response to a command that would not change anything in the
+    // divider, if it is known from the device state. Null if the command has
+    // to be sent. A query is only answered if no command that can change the
+    // answer is queued or waiting for its response, so a client that queues
+    // a move and then asks for the angle gets the angle after the move.
+    private String answerFromState(CommandToDivider command) {
+        if (!running || currentCommState == CommState.StartingUp) {
+            return null;
+        }
+        Predicate<CommandToDivider> changesAnswer = CommandScheduler.changesAnswerTo(command.getCommand());
+        if (changesAnswer == null || commandSendQueue.contains(changesAnswer, pendingCommands)) {
+            return null;
+        }
+        return deviceState.answer(command.getCommand(), System.nanoTime());
+    }
+
+    private void wakeUpSerialSendTask() {
+        if (strand != null) {
+            if (sendStepQueued.compareAndSet(false, true)) {
+                strand.execute(this::runSendStep);
+            }
+            return;
+        }
+        Thread thread = serialSendThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void wakeUpMessageReceiver() {
+        if (receiveStepQueued.compareAndSet(false, true)) {
+            strand.execute(this::runReceiveStep);
+        }
+    }
+
+    // Runs the state machine on the strand until it has nothing more to do
+    // now and sets a timer for the next time it has something due.
+    private void runSendStep() {
+        sendStepQueued.set(false);
+        SerialSendTask task = serialSendTask;
+        long nextTimeToRun;
+        do {
+            if (task == null || task.stopRequested) {
+                return;
+            }
+            nextTimeToRun = task.runStateMachine(System.currentTimeMillis());
+        } while (nextTimeToRun - System.currentTimeMillis() <= 0);
+        if (nextTimeToRun == Long.MAX_VALUE || (sendTimer != null && !sendTimer.isDone()
+                && sendTimerTime == nextTimeToRun)) {
+            return;
+        }
+        if (sendTimer != null) {
+            sendTimer.cancel(false);
+        }
+        sendTimerTime = nextTimeToRun;
+        sendTimer = pool.schedule(this::wakeUpSerialSendTask,
+                nextTimeToRun - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void runReceiveStep() {
+        receiveStepQueued.set(false);
+        MessageReceiverTask task = messageReceiverTask;
+        String message;
+        if (task != null && !task.stopRequested) {
+            processStateAnswers();
+        }
+        while (task != null && !task.stopRequested
+                && (message = serialCommHandler.getMessageFromReceiveQueue()) != null) {
+            processMessage(message);
+        }
+    }
+
+    /**
+     * Time from the port was opened until the divider answered the handshake.
+     */
+    public LatencyHistogram getTimeToReady() {
+        return timeToReady;
+    }
+
+    /**
+     * Time from a command was queued until it was written to the serial port.
+     */
+    public LatencyHistogram getCommandLatency() {
+        return commandLatency;
+    }
+
+    /**
+     * Time from a command was written to the serial port until its response
+     * arrived.
+     */
+    public LatencyHistogram getResponseLatency() {
+        return pendingCommands.getResponseLatency();
+    }
+
+    /**
+     * What is known about the divider, and how many commands were answered
+     * without sending them.
+     */
+    public DeviceState getDeviceState() {
+        return deviceState;
+    }
+
+    /**
+     * The outages of the link and the reconnects.
+     */
+    public ConnectionSupervisor getConnectionSupervisor() {
+        return connectionSupervisor;
+    }
+
+    /**
+     * The commands waiting to be sent and how many were merged.
+     */
+    public CommandScheduler getCommandScheduler() {
+        return commandSendQueue;
+    }
+
+    /**
+     * The number of polls and the bytes they used.
+     */
+    public PollingPolicy getPollingPolicy() {
+        return pollingPolicy;
+    }
+
+    public long getBytesSent() {
+        return serialCommHandler.getBytesSent();
+    }
+
+    public long getBytesReceived() {
+        return serialCommHandler.getBytesReceived();
     }
 
     private static final int LOOP_TIME = 500;
+    private static final long PORT_SWITCH_TIMEOUT = 2000;
 
-    private SerialSendTask serialSendTask;
-    private boolean stopSerialSendTask;
-    private volatile boolean messageReceiverTaskStopped = false;
-    private volatile boolean serialSendTaskStopped = false;
+    // Set while holding this, also read by answerFromState.
+    private volatile boolean running = false;
+
+    private final ThreadModel threadModel;
+    // Shared with other dividers, may be null when the divider has its own
+    // threads.
+    private final ScheduledExecutorService pool;
+    // Runs the send and receive steps one at a time on the pool. Null when
+    // the divider has its own threads.
+    private final Strand strand;
+    private final AtomicBoolean sendStepQueued = new AtomicBoolean();
+    private final AtomicBoolean receiveStepQueued = new AtomicBoolean();
+    // Wakes up the send step when the state machine has something due. Only
+    // used on the strand.
+    private ScheduledFuture<?> sendTimer;
+    private long sendTimerTime;
+
+    private volatile SerialSendTask serialSendTask;
+    private volatile Thread serialSendThread;
+
+    private final LatencyHistogram commandLatency = new LatencyHistogram("Command queue to wire");
 
     private void initSerialSendTask() {
-        serialSendTask = new SerialSendTask();
-        stopSerialSendTask = false;
-        Thread sST = new Thread(serialSendTask);
-        sST.setDaemon(true);
+        Thread sST = threadModel.newThread(serialSendTask, "ArduinoDivider send");
+        serialSendThread = sST;
         sST.start();
     }
 
+    /**
+     * Sends the queued commands and the periodic status requests. Instead of
+     * polling on a fixed loop time the task parks until the next deadline and
+     * is woken up when a command is queued or the state changes.
+     */
     private class SerialSendTask implements Runnable {
 
-        private long nextTimeToAskForAngle;
-        private long nextTimeToAskForStatus;
+        private CommState lastCommState = CommState.Idle;
+        private long upOrDownloadTimeOutTime;
+        private long nextReadyProbeTime;
+        private char nextReadyProbe;
+        private long timeToSendProgram;
+        private boolean uploadCommandSent;
+        // The U command taken from the queue, sent in the upload state.
+        private CommandToDivider uploadCommand;
+        private volatile boolean stopRequested = false;
 
         @Override
         public void run() {
-            int numTimesInUploadState = 0;
-            long uploadTimeOutTime = 0;
-            int numTimesInDownloadState = 0;
-            long downloadTimeOutTime = 0;
-            CommState lastCommState = CommState.Idle;
-            while (!stopSerialSendTask) {
-                if (currentCommState != lastCommState) {
-                    Utils.debugOutput("currentCommState :" + currentCommState, 2);
-                    lastCommState = currentCommState;
-                }
+            while (!stopRequested) {
                 long now = System.currentTimeMillis();
-                switch (currentCommState) {
-                    case StartingUp:
-                        if (now > timeToGetFirstStatus) {
-                            currentCommState = CommState.Idle;
-                            nextTimeToAskForAngle = now + 3000;
-                            nextTimeToAskForStatus = now + 1000;
+                long nextTimeToRun = runStateMachine(now);
+                long waitTime = nextTimeToRun - System.currentTimeMillis();
+                if (waitTime > 0) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(waitTime));
+                }
+            }
+        }
+
+        /**
+         * Do what is due in the current state.
+         *
+         * @param now the current time
+         * @return the time when the state machine needs to run again unless
+         * it is woken up before that
+         */
+        private long runStateMachine(long now) {
+            CommState commState = currentCommState;
+            if (connectionSupervisor.isInOutage() && commState != CommState.StartingUp) {
+                // Nothing is sent or times out until the reconnect starts
+                // the tasks again.
+                return Long.MAX_VALUE;
+            }
+            reportTransferProgress();
+            int expired = pendingCommands.expire(System.nanoTime());
+            if (expired > 0 && connectionSupervisor.responsesMissed(expired)) {
+                connectionLost("No responses from the divider");
+                return Long.MAX_VALUE;
+            }
+            if (commState != lastCommState) {
+                Utils.debugOutput("currentCommState :" + commState, 2);
+                enterState(commState, now);
+                lastCommState = commState;
+            }
+            switch (commState) {
+                case StartingUp:
+                    long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - portOpenedTime);
+                    if (readyAnswered) {
+                        timeToReady.record(System.nanoTime() - portOpenedTime);
+                        Utils.debugOutput("Divider ready after " + waited + " ms", 2);
+                    } else if (waited < READY_TIMEOUT) {
+                        if (now >= nextReadyProbeTime) {
+                            // V first, its answer saves the V of the
+                            // negotiation.
+                            char probe = nextReadyProbe;
+                            nextReadyProbe = probe == 'V' ? 'S' : 'V';
+                            if (probe == 'V') {
+                                versionProbed = true;
+                            } else {
+                                statusProbed = true;
+                            }
+                            serialCommHandler.sendCommand(probe);
+                            nextReadyProbeTime = now + READY_PROBE_INTERVAL;
                         }
-                        break;
+                        return nextReadyProbeTime;
+                    } else if (connectionSupervisor.isInOutage()) {
+                        Utils.debugOutput("No answer from the divider in " + waited + " ms", 3);
+                        // Try again later, the reconnect starts new tasks.
+                        scheduleReconnect();
+                        return Long.MAX_VALUE;
+                    } else {
+                        Utils.debugOutput("No answer from the divider in " + waited + " ms", 3);
+                    }
+                    if (readyAnswered && connectionSupervisor.isInOutage()) {
+                        connectionRestored();
+                    }
+                    pollingPolicy.start(now);
+                    currentCommState = CommState.Idle;
+                    if (readyAnswered) {
+                        fromArduinoChannel.post(new FromArduinoMessageEvent(
+                                FromArduinoMessageEvent.MessageType.COMMUNICATION_STARTED, waited));
+                    }
+                    negotiateProtocol();
+                    return now;
 
-                    case Idle:
-                        CommandToDivider command = commandSendQueue.poll();
-                        if (command != null) {
-                            nextTimeToAskForAngle += 2000;
-                            Utils.debugOutput("Sending command :" + command.getCommandChar(), 2);
-                            serialCommHandler.sendCommand(command.getCommandChar());
-                            if (command.getCommand() == CommandToDivider.DividerCommand.POSITION_TO) {
-                                Utils.debugOutput("Sending position value " + command.getValue(), 2);
-                                serialCommHandler.sendPosition(command.getValue());
+                case Idle:
+                    // Registered as sent while the queue is locked, see
+                    // answerFromState. An upload is registered when it is
+                    // sent.
+                    CommandToDivider command = commandSendQueue.poll(pendingCommands::canSend, taken -> {
+                        if (taken.getCommand() != CommandToDivider.DividerCommand.UPLOAD_PROGRAM) {
+                            pendingCommands.commandSent(taken);
+                        }
+                    });
+                    if (command != null) {
+                        pollingPolicy.commandSent(now);
+                        if (command.getCommand() == CommandToDivider.DividerCommand.UPLOAD_PROGRAM) {
+                            // Sent when the upload is set up.
+                            uploadCommand = command;
+                            currentCommState = CommState.UploadProgramToPc;
+                            return now;
+                        }
+                        sendCommandToDivider(command);
+                        if (command.getCommand() == CommandToDivider.DividerCommand.DOWNLOAD_PROGRAM
+                                || command.getCommand() == CommandToDivider.DividerCommand.EDIT_PROGRAM) {
+                            downloadCommand = command;
+                            currentCommState = CommState.DownloadProgramToArduino;
+                        }
+                        // There may be more commands waiting.
+                        return now;
+                    }
+                    boolean commandWaiting = !commandSendQueue.isEmpty();
+                    long nextTimeToAskForAngle = pollingPolicy.getNextTimeToAskForAngle();
+                    long nextTimeToAskForStatus = pollingPolicy.getNextTimeToAskForStatus();
+                    if (!commandWaiting) {
+                        if (now >= nextTimeToAskForAngle) {
+                            if (sendPoll(CommandToDivider.DividerCommand.GET_ANGLE)) {
+                                pollingPolicy.anglePollSent(now);
                             }
-                            if (command.getCommand() == CommandToDivider.DividerCommand.DOWNLOAD_PROGRAM) {
-                                currentCommState = CommState.DownloadProgramToArduino;
-                                downloadTimeOutTime = now + 5000;
+                        } else if (now >= nextTimeToAskForStatus) {
+                            if (sendPoll(CommandToDivider.DividerCommand.GET_STATUS)) {
+                                pollingPolicy.statusPollSent(now);
                             }
-                            command = null;
-                        } else if (now > nextTimeToAskForAngle) {
-                            serialCommHandler.sendCommand(new CommandToDivider(CommandToDivider.DividerCommand.GET_ANGLE).getCommandChar());
-                            nextTimeToAskForAngle = now + 10000;
-                        } else if (now > nextTimeToAskForStatus) {
-                            serialCommHandler.sendCommand(new CommandToDivider(CommandToDivider.DividerCommand.GET_STATUS).getCommandChar());
-                            nextTimeToAskForStatus = now + 20000;
                         }
-                        numTimesInDownloadState = 0;
-                        break;
-
-                    case UploadProgramToPc:
-                        if (numTimesInUploadState == 0) {
-                            uploadTimeOutTime = now + UP_AND_DOWNLOAD_TIMEOUT;
-                            numTimesInUploadState++;
-                        } else if (numTimesInUploadState < 5) {
-                            command = commandSendQueue.poll();  // should be upload command.
-                            if (command != null) {
-                                serialCommHandler.sendCommand(command.getCommandChar());
-                                dividerStatus = DividerStatus.UploadToPC;
-                            }
-                            numTimesInUploadState++;
-                        } else if (now > uploadTimeOutTime) {
-                            currentCommState = CommState.Idle;
-                            dividerStatus = DividerStatus.WaitingForCommand;
-                            numTimesInUploadState = 0;
+                        nextTimeToAskForAngle = pollingPolicy.getNextTimeToAskForAngle();
+                        nextTimeToAskForStatus = pollingPolicy.getNextTimeToAskForStatus();
+                    }
+                    // A command or poll that has to wait for a response is sent
+                    // when the response arrives and wakes up the task, or when
+                    // the response has timed out.
+                    long nextTimeToRun = nextResponseTimeout(now);
+                    long nextTimeToPoll = Math.min(nextTimeToAskForAngle, nextTimeToAskForStatus);
+                    if (!commandWaiting && nextTimeToPoll > now) {
+                        nextTimeToRun = Math.min(nextTimeToRun, nextTimeToPoll);
+                    }
+                    return nextTimeToRun;
+
+                case UploadProgramToPc:
+                    if (!uploadCommandSent) {
+                        command = uploadCommand;
+                        uploadCommand = null;
+                        if (command != null) {
+                            quietUpload = command.isQuiet();
+                            ProgramUploadParser upload = new ProgramUploadParser(maxUploadSize,
+                                    quietUpload ? (lines, first, last) -> {
+                                    } : ArduinoDivider.this::postUploadedLines);
+                            programUpload = upload;
+                            serialCommHandler.expectUpload(upload);
+                            pendingCommands.commandSent(command);
+                            sendCommandToDivider(command);
+                            dividerStatus = DividerStatus.UploadToPC;
+                            uploadCommandSent = true;
                         }
-                        break;
-
-                    case DownloadProgramToArduino:
-                        if (numTimesInDownloadState == 0) {
-                            downloadTimeOutTime = now + UP_AND_DOWNLOAD_TIMEOUT;
-                            numTimesInDownloadState++;
-                        } else if (numTimesInDownloadState == 1) {
-                            serialCommHandler.sendProgram(programToDownload);
-                            numTimesInDownloadState++;
-                        } else if (now > downloadTimeOutTime) {
-                            currentCommState = CommState.Idle;
-                            dividerStatus = DividerStatus.WaitingForCommand;
-                            numTimesInDownloadState = 0;
+                    }
+                    ProgramUploadParser upload = programUpload;
+                    if (upload != null) {
+                        extendTimeout(now, upload.getLastProgressTime());
+                    }
+                    if (now >= upOrDownloadTimeOutTime) {
+                        currentCommState = CommState.Idle;
+                        dividerStatus = DividerStatus.WaitingForCommand;
+                        return now;
+                    }
+                    return Math.min(upOrDownloadTimeOutTime, nextResponseTimeout(now));
+
+                case DownloadProgramToArduino:
+                    ProgramDownloader downloader = programDownloader;
+                    if (downloader == null) {
+                        if (now < timeToSendProgram) {
+                            return timeToSendProgram;
                         }
-                        break;
+                        downloader = new ProgramDownloader(downloadCommand.getPayload(), getDownloadMode(),
+                                serialCommHandler.getBaudRate(), serialCommHandler, downloadProgressChannel);
+                        programDownloader = downloader;
+                    }
+                    long nextTimeToSend = downloader.send();
+                    if (downloader.isFailed()) {
+                        pendingCommands.fail(downloadCommand.getCommand(),
+                                new IOException("The divider did not answer a chunk of the program"));
+                        currentCommState = CommState.Idle;
+                        dividerStatus = DividerStatus.WaitingForCommand;
+                        return now;
+                    }
+                    extendTimeout(now, downloader.getLastProgressTime());
+                    if (now >= upOrDownloadTimeOutTime) {
+                        currentCommState = CommState.Idle;
+                        dividerStatus = DividerStatus.WaitingForCommand;
+                        return now;
+                    }
+                    return Math.min(nextTimeToSend, Math.min(upOrDownloadTimeOutTime, nextResponseTimeout(now)));
 
-                    default:
-                        break;
-                }
-                try {
-                    sleep(LOOP_TIME);
-                } catch (InterruptedException ex) {
+                default:
+                    return now + LOOP_TIME;
+            }
+        }
 
-                }
+        // The timeouts of an up or download count from the last progress.
+        private void extendTimeout(long now, long progressTime) {
+            upOrDownloadTimeOutTime = Math.max(upOrDownloadTimeOutTime, now + UP_AND_DOWNLOAD_TIMEOUT
+                    - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - progressTime));
+        }
+
+        // Before the commands are expired, an up or download that is moving
+        // does not time out.
+        private void reportTransferProgress() {
+            ProgramDownloader downloader = programDownloader;
+            if (downloader != null) {
+                pendingCommands.progress(downloadCommand.getCommand(), downloader.getLastProgressTime());
+            }
+            ProgramUploadParser upload = programUpload;
+            if (upload != null) {
+                pendingCommands.progress(CommandToDivider.DividerCommand.UPLOAD_PROGRAM,
+                        upload.getLastProgressTime());
+            }
+        }
+
+        private void enterState(CommState commState, long now) {
+            switch (commState) {
+                case StartingUp:
+                    nextReadyProbeTime = now;
+                    nextReadyProbe = 'V';
+                    break;
+                case UploadProgramToPc:
+                    upOrDownloadTimeOutTime = now + UP_AND_DOWNLOAD_TIMEOUT;
+                    uploadCommandSent = false;
+                    programUpload = null;
+                    break;
+                case DownloadProgramToArduino:
+                    upOrDownloadTimeOutTime = now + UP_AND_DOWNLOAD_TIMEOUT;
+                    // Give the divider a moment to switch to download mode
+                    // before the program text arrives.
+                    timeToSendProgram = now + DELAY_BEFORE_SENDING_PROGRAM;
+                    programDownloader = null;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void sendCommandToDivider(CommandToDivider command) {
+            // The command is registered as sent already, the response may
+            // arrive before the write call returns.
+            Utils.debugOutput("Sending command :" + command.getCommandChar(), 2);
+            switch (command.getCommand()) {
+                case POSITION_TO:
+                    Utils.debugOutput("Sending position value " + command.getValue(), 2);
+                    serialCommHandler.sendPositionTo(command.getValue());
+                    break;
+                case JOG:
+                    // Jogs merged by the scheduler, all answered by an "A".
+                    int steps = (int) command.getValue();
+                    if (steps == 1 || steps == -1) {
+                        serialCommHandler.sendCommand(steps > 0 ? '+' : '-');
+                    } else if (steps == 0) {
+                        serialCommHandler.sendCommand(CommandToDivider.DividerCommand.GET_ANGLE.getCommandByte());
+                    } else {
+                        serialCommHandler.sendJog(steps);
+                    }
+                    break;
+                case SET_BINARY:
+                    serialCommHandler.switchToBinary();
+                    break;
+                default:
+                    serialCommHandler.sendCommand(command.getCommandChar());
+                    break;
+            }
+            commandLatency.record(System.nanoTime() - command.getCreationTime());
+        }
+
+        // The periodic requests are tracked too so that their responses are
+        // not taken for responses to queued commands.
+        private boolean sendPoll(CommandToDivider.DividerCommand dividerCommand) {
+            CommandToDivider command = new CommandToDivider(dividerCommand);
+            command.setPoll(true);
+            if (!pendingCommands.canSend(command)) {
+                return false;
+            }
+            pendingCommands.commandSent(command);
+            serialCommHandler.sendCommand(command.getCommandChar());
+            return true;
+        }
+
+        private long nextResponseTimeout(long now) {
+            long deadline = pendingCommands.nextDeadline();
+            if (deadline == Long.MAX_VALUE) {
+                return Long.MAX_VALUE;
             }
-            serialSendTaskStopped = true;
+            return now + TimeUnit.NANOSECONDS.toMillis(Math.max(0, deadline - System.nanoTime())) + 1;
         }
+
         private static final int UP_AND_DOWNLOAD_TIMEOUT = 20000;
+        private static final int DELAY_BEFORE_SENDING_PROGRAM = 100;
     }
 
-    private MessageReceiverTask messageReceiverTask;
-    private boolean stopMessageReceiverTask;
+    // Long, the receiver is interrupted when it is stopped.
+    private static final long RECEIVE_WAIT_TIME = TimeUnit.HOURS.toMillis(1);
+
+    private volatile MessageReceiverTask messageReceiverTask;
+    private volatile Thread messageReceiverThread;
 
     private void initMessageReceiverTask() {
-        messageReceiverTask = new MessageReceiverTask();
-        stopMessageReceiverTask = false;
-        Thread mRT = new Thread(messageReceiverTask);
-        mRT.setDaemon(true);
+        Thread mRT = threadModel.newThread(messageReceiverTask, "ArduinoDivider receive");
+        messageReceiverThread = mRT;
         mRT.start();
     }
 
     private class MessageReceiverTask implements Runnable {
 
+        private volatile boolean stopRequested = false;
+
         @Override
         public void run() {
-            String previousMessage = null;
-            while (!stopMessageReceiverTask) {
-                String message = serialCommHandler.getMessageFromReceiveQueue();
-                eventBus.post( new ArduinoStatusMessageEvent(message));
-
+            while (!stopRequested) {
+                // Wakes up as soon as a message arrives, an answer from the
+                // device state is queued or the thread is interrupted by
+                // stopThreads.
+                String message = serialCommHandler.waitForMessage(RECEIVE_WAIT_TIME, TimeUnit.MILLISECONDS);
+                processStateAnswers();
                 if (message != null) {
-                    if (currentCommState == CommState.UploadProgramToPc) {
-                        Utils.debugOutput("Uploadmessage is : " + message, 2);
-                        if (message.contains("Upload finished")) {
-                            Utils.debugOutput("Previous message :" + previousMessage, 2);
-                            sendMessageToGui(previousMessage);
-                            Utils.debugOutput("Upload completed :" + message, 2);
-                            currentCommState = CommState.Idle;
-                        }
-                        previousMessage = message;
-                    } else if (currentCommState == CommState.DownloadProgramToArduino) {
-                        if (message.contains("Download finished")) {
-                            Utils.debugOutput(message, 2);
-                            currentCommState = CommState.Idle;
-                        }
-                    } else {
-                        checkMessage(message);
-                    }
-
-                }
-                try {
-                    sleep(LOOP_TIME);
-                } catch (InterruptedException ex) {
-
+                    processMessage(message);
                 }
                 //System.out.println("MessageReceiverTask is running");
             }
-            messageReceiverTaskStopped = true;
-
-        }
-
-        private void checkMessage(String message) {
-            //System.out.println("CheckMessage :" + message);
-           
-            if (message.equals("R")) {
-                // Response to R command. Throw away and set status to running
-                dividerStatus = DividerStatus.RunningProgram;
-                Utils.debugOutput("dividerStatus = Running", 2);
-                eventBus.post(new FromArduinoMessageEvent(FromArduinoMessageEvent.MessageType.PROGRAM_IS_RUNNING, 0));
-            } else if (message.equals("Q")) {
-                // Response to Q command
-                dividerStatus = DividerStatus.WaitingForCommand;
-                Utils.debugOutput("dividerStatus = WaitingForCommand", 2);
-                eventBus.post(new FromArduinoMessageEvent(FromArduinoMessageEvent.MessageType.PROGRAM_IS_HALTED, 0));
-            } else if (message.startsWith("S")) {
-                if (message.length() == 2) {
-                    if (message.endsWith("0")) {
-                        eventBus.post(new FromArduinoMessageEvent(FromArduinoMessageEvent.MessageType.PROGRAM_IS_HALTED, 0));
-                    } else if (message.endsWith("3")) {
-                        dividerStatus = DividerStatus.RunningProgram;
-                        Utils.debugOutput("dividerStatus = Running", 2);
-                        eventBus.post(new FromArduinoMessageEvent(FromArduinoMessageEvent.MessageType.PROGRAM_IS_RUNNING, 0));
-                    }
-                }
-            } else if (message.startsWith("A")) {
-                try {
-                    double position = getPositionFromMessage(message);
-                    eventBus.post(new FromArduinoMessageEvent(FromArduinoMessageEvent.MessageType.GOT_POSITION, position));
-                } catch (NumberFormatException ex) {
 
-                }
+        }
 
-            } else if ( message.startsWith("I")) {
-                if (message.length() == 2) {
-                    if (message.endsWith("0")) {
-                        eventBus.post(new FromArduinoMessageEvent(FromArduinoMessageEvent.MessageType.INCREMENTAL_IS_OFF, 0));
-                    } else if (message.endsWith("1")) {
-                        eventBus.post(new FromArduinoMessageEvent(FromArduinoMessageEvent.MessageType.INCREMENTAL_IS_ON, 0));
+    }
+
+    // Only used by the message receiver.
+    private String previousMessage = null;
+
+    // A command answered from the device state, see answerFromState.
+    private static final class StateAnswer {
+
+        final CommandToDivider command;
+        final String answer;
+
+        StateAnswer(CommandToDivider command, String answer) {
+            this.command = command;
+            this.answer = answer;
+        }
+    }
+
+    // Answers from the device state wait here for the message receiver, so
+    // that their events are posted from the same thread as the messages
+    // from the divider.
+    private final Queue<StateAnswer> stateAnswers = new ConcurrentLinkedQueue<>();
+
+    private void processStateAnswers() {
+        StateAnswer stateAnswer;
+        while ((stateAnswer = stateAnswers.poll()) != null) {
+            checkMessage(stateAnswer.answer);
+            stateAnswer.command.getResponse().complete(stateAnswer.answer);
+        }
+    }
+
+    private void processMessage(String message) {
+        connectionSupervisor.messageReceived();
+        ProgramDownloader downloader = programDownloader;
+        if (downloader != null && message.startsWith("K")
+                && currentCommState == CommState.DownloadProgramToArduino) {
+            // The answer to a chunk, the progress is posted by the downloader.
+            try {
+                if (downloader.acknowledged(Integer.parseInt(message.substring(1)))) {
+                    wakeUpSerialSendTask();
+                }
+            } catch (NumberFormatException ex) {
+                Utils.debugOutput("Bad answer to a chunk: " + message, 3);
+            }
+            return;
+        }
+        statusMessageChannel.post(statusMessageEvent.setStatusMessage(message));
+        if (currentCommState == CommState.StartingUp) {
+            handshakeAnswer(message);
+        } else if (currentCommState == CommState.UploadProgramToPc) {
+            Utils.debugOutput("Uploadmessage is : " + message, 2);
+            if (message.contains("Upload finished")) {
+                ProgramUploadParser upload = programUpload;
+                programUpload = null;
+                // Before the future is completed, a command queued by the
+                // code that waits for it must not find the upload state.
+                currentCommState = CommState.Idle;
+                if (upload != null && upload.isComplete()) {
+                    // The editor has got the lines already.
+                    if (upload.isTruncated()) {
+                        pendingCommands.fail(CommandToDivider.DividerCommand.UPLOAD_PROGRAM,
+                                new IOException("The program is longer than " + upload.getMaxSize()
+                                        + " characters"));
+                    } else {
+                        programConfirmed(upload.getText());
+                        pendingCommands.complete(CommandToDivider.DividerCommand.UPLOAD_PROGRAM, upload.getText());
                     }
+                } else {
+                    // The firmware did not send "U" first.
+                    Utils.debugOutput("Previous message :" + previousMessage, 2);
+                    if (!quietUpload) {
+                        eventBus.post(new UploadedProgramMessage(previousMessage));
+                    }
+                    pendingCommands.complete(CommandToDivider.DividerCommand.UPLOAD_PROGRAM, previousMessage);
                 }
+                Utils.debugOutput("Upload completed :" + message, 2);
+                wakeUpSerialSendTask();
+            }
+            previousMessage = message;
+        } else if (currentCommState == CommState.DownloadProgramToArduino) {
+            if (message.contains("Download finished")) {
+                Utils.debugOutput(message, 2);
+                currentCommState = CommState.Idle;
+                programConfirmed(downloadCommand.getProgramAfterDownload());
+                pendingCommands.responseReceived(message);
+                wakeUpSerialSendTask();
+            } else if (message.contains("Edit rejected")) {
+                // The divider has another program than the edit script was
+                // made for.
+                currentCommState = CommState.Idle;
+                pendingCommands.fail(CommandToDivider.DividerCommand.EDIT_PROGRAM,
+                        new IOException("The divider rejected the changes to the program"));
+                wakeUpSerialSendTask();
+            }
+        } else {
+            // Before the command is completed, the code that waits for it
+            // may ask for the state.
+            deviceState.messageReceived(message, System.nanoTime());
+            checkMessage(message);
+            CommandToDivider completedCommand = pendingCommands.responseReceived(message);
+            boolean pollDueEarlier = pollingPolicy.messageReceived(System.currentTimeMillis(),
+                    message, completedCommand != null && completedCommand.isPoll());
+            if (completedCommand != null || pollDueEarlier) {
+                // The next command may be waiting for this one.
+                wakeUpSerialSendTask();
             }
-
         }
+    }
 
-        private void sendMessageToGui(String message) {
-            Platform.runLater(() -> {
-                eventBus.post(new UploadedProgramMessage(message));
-            });
+    // A message in the handshake. An answer to any probe that has been sent
+    // shows that the divider can take commands, a slow divider may answer a
+    // probe after the next one is sent. The answers to the later probes
+    // arrive after the handshake and are taken like other messages. The
+    // version is a message that answers V and no other command, see
+    // DividerCommand.isCompletedBy. Only the message receiver calls this.
+    private void handshakeAnswer(String message) {
+        if (versionProbed && CommandToDivider.DividerCommand.GET_VERSION.isCompletedBy(message)) {
+            deviceState.setFirmwareVersion(message);
+            commandSendQueue.setJogMerging(CommandScheduler.isJogSupportedBy(message));
+        } else if (!statusProbed || !(message.equals("S0") || message.equals("S3"))) {
+            // Left from before the reset.
+            return;
+        }
+        deviceState.messageReceived(message, System.nanoTime());
+        checkMessage(message);
+        if (!readyAnswered) {
+            readyAnswered = true;
+            wakeUpSerialSendTask();
         }
+    }
 
-        private double getPositionFromMessage(String message) {
-            String angularValue = message.substring(1);
-            double position = Double.parseDouble(angularValue);
-            return position;
+    /**
+     * Act on a message from the divider that is not part of an up or
+     * download.
+     */
+    void checkMessage(String message) {
+        //System.out.println("CheckMessage :" + message);
+       
+        if (message.equals("R")) {
+            // Response to R command. Throw away and set status to running
+            dividerStatus = DividerStatus.RunningProgram;
+            Utils.debugOutput("dividerStatus = Running", 2);
+            postFromArduino(FromArduinoMessageEvent.MessageType.PROGRAM_IS_RUNNING, 0);
+        } else if (message.equals("Q")) {
+            // Response to Q command
+            dividerStatus = DividerStatus.WaitingForCommand;
+            Utils.debugOutput("dividerStatus = WaitingForCommand", 2);
+            postFromArduino(FromArduinoMessageEvent.MessageType.PROGRAM_IS_HALTED, 0);
+        } else if (message.startsWith("S")) {
+            if (message.length() == 2) {
+                if (message.endsWith("0")) {
+                    postFromArduino(FromArduinoMessageEvent.MessageType.PROGRAM_IS_HALTED, 0);
+                } else if (message.endsWith("3")) {
+                    dividerStatus = DividerStatus.RunningProgram;
+                    Utils.debugOutput("dividerStatus = Running", 2);
+                    postFromArduino(FromArduinoMessageEvent.MessageType.PROGRAM_IS_RUNNING, 0);
+                }
+            }
+        } else if (message.startsWith("A")) {
+            try {
+                double position = getPositionFromMessage(message);
+                postFromArduino(FromArduinoMessageEvent.MessageType.GOT_POSITION, position);
+            } catch (NumberFormatException ex) {
 
+            }
+
+        } else if ( message.startsWith("I")) {
+            if (message.length() == 2) {
+                if (message.endsWith("0")) {
+                    commandSendQueue.setAbsolutePositions(true);
+                    postFromArduino(FromArduinoMessageEvent.MessageType.INCREMENTAL_IS_OFF, 0);
+                } else if (message.endsWith("1")) {
+                    commandSendQueue.setAbsolutePositions(false);
+                    postFromArduino(FromArduinoMessageEvent.MessageType.INCREMENTAL_IS_ON, 0);
+                }
+            }
         }
 
     }
 
-    public DividerStatus getDividerStatus() {
+    private void postFromArduino(FromArduinoMessageEvent.MessageType messageType, double value) {
+        fromArduinoChannel.post(fromArduinoEvent.set(messageType, value));
+    }
+
+    static double getPositionFromMessage(String message) {
+        String angularValue = message.substring(1);
+        double position = Double.parseDouble(angularValue);
+        return position;
 
-        return dividerStatus;
     }
 
-    void stopThreads() {
-        //messageReceiverService.cancel();
-        //commandSenderService.cancel();
-        serialCommHandler.stopReader();
-        stopMessageReceiverTask = true;
-        stopSerialSendTask = true;
-        while (!messageReceiverTaskStopped) {
-            // Wait for task stop;
-        }
+    public DividerStatus getDividerStatus() {
 
-        while (!serialSendTaskStopped) {
-            // Wait for task stop;
-        }
+        return dividerStatus;
     }
 
 }
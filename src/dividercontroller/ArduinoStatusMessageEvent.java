@@ -21,8 +21,10 @@ package dividercontroller;
 /**
  *
  * @author matsandersson
+ *
+ * The message receiver task reuses one event for all messages.
  */
-public class ArduinoStatusMessageEvent {
+public class ArduinoStatusMessageEvent implements EventRouter.Reusable<ArduinoStatusMessageEvent> {
     String message;
 
     public ArduinoStatusMessageEvent(String message) {
@@ -33,8 +35,14 @@ public class ArduinoStatusMessageEvent {
         return message;
     }
 
-    public void setStatusMessage(String statusMessage) {
+    public ArduinoStatusMessageEvent setStatusMessage(String statusMessage) {
         this.message = statusMessage;
+        return this;
+    }
+
+    @Override
+    public ArduinoStatusMessageEvent copy() {
+        return new ArduinoStatusMessageEvent(message);
     }
     
     
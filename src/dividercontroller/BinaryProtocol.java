@@ -0,0 +1,832 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * The binary protocol. It is used instead of the text protocol when the
+ * firmware has "BIN1" in its answer to V and the host then sends B. The
+ * firmware answers "B" in text and after that both sides send frames:
+ *
+ * SYNC (0xA5)  LEN  TYPE  PAYLOAD (LEN bytes)  CRC16 (2 bytes, high first)
+ *
+ * The CRC is CRC-16/CCITT-FALSE over LEN, TYPE and PAYLOAD. A frame with a
+ * bad CRC is thrown away and the receiver looks for the next SYNC, so a
+ * corrupted byte can not be taken for a command or an angle.
+ *
+ * Frames to the divider have the command character as type and no payload,
+ * except P which has the angle and the program that follows D, which is
+ * sent as PROGRAM frames and a PROGRAM_END frame. Firmware that also has
+ * "CHUNK" in its version gets the program in numbered CHUNK frames instead
+ * and answers each of them with "K" and the number, see ProgramDownloader.
+ * PROGRAM_END then has the number of chunks.
+ *
+ * Frames from the divider:
+ * A            the angle
+ * S, I         the status or the incremental mode as one byte, 0 - 9
+ * T            any other message as text
+ * PROGRAM      part of the program after U, ended by PROGRAM_END
+ *
+ * Angles are int32 in hundredths of a degree, high byte first. The program is
+ * packed one instruction at a time: the letter followed by its numbers as
+ * variable length integers, hundredths for B and P. An instruction that would
+ * not come back as the same text is sent as text, so the packing never
+ * changes the program.
+ *
+ * The host turns the frames from the divider back into the messages of the
+ * text protocol, so the rest of the program does not know which protocol is
+ * used.
+ */
+class BinaryProtocol {
+
+    static final String CAPABILITY = "BIN1";
+    static final String CHUNK_CAPABILITY = "CHUNK";
+
+    static final byte SYNC = (byte) 0xA5;
+    static final int MAX_PAYLOAD = 250;
+    // SYNC, LEN, TYPE and the CRC.
+    static final int FRAME_OVERHEAD = 5;
+
+    static final byte TYPE_ANGLE = 'A';
+    static final byte TYPE_STATUS = 'S';
+    static final byte TYPE_INCREMENTAL = 'I';
+    static final byte TYPE_TEXT = 'T';
+    static final byte TYPE_PROGRAM = 'p';
+    static final byte TYPE_PROGRAM_END = 'e';
+    // Two bytes chunk number, high first, and part of the packed program.
+    static final byte TYPE_CHUNK = 'c';
+
+    // Starts a packed instruction that is sent as text.
+    private static final int TEXT_RECORD = 1;
+
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            CRC_TABLE[i] = crc & 0xFFFF;
+        }
+    }
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * @param version the answer to V
+     * @return true if the firmware can use the binary protocol
+     */
+    static boolean isSupportedBy(String version) {
+        return version != null && version.contains(CAPABILITY);
+    }
+
+    /**
+     * @param version the answer to V
+     * @return true if the firmware answers each chunk of a download
+     */
+    static boolean isChunkedDownloadSupportedBy(String version) {
+        return isSupportedBy(version) && version.contains(CHUNK_CAPABILITY);
+    }
+
+    static int crc16(byte[] data, int offset, int length) {
+        int crc = 0xFFFF;
+        for (int i = offset; i < offset + length; i++) {
+            crc = ((crc << 8) ^ CRC_TABLE[((crc >> 8) ^ data[i]) & 0xFF]) & 0xFFFF;
+        }
+        return crc;
+    }
+
+    /**
+     * Write a frame.
+     *
+     * @return the length of the frame
+     */
+    static int writeFrame(byte type, byte[] payload, int payloadOffset, int payloadLength,
+            byte[] dest, int offset) {
+        if (payloadLength > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Payload of " + payloadLength + " bytes");
+        }
+        dest[offset] = SYNC;
+        dest[offset + 1] = (byte) payloadLength;
+        dest[offset + 2] = type;
+        System.arraycopy(payload, payloadOffset, dest, offset + 3, payloadLength);
+        int crc = crc16(dest, offset + 1, payloadLength + 2);
+        dest[offset + 3 + payloadLength] = (byte) (crc >> 8);
+        dest[offset + 4 + payloadLength] = (byte) crc;
+        return payloadLength + FRAME_OVERHEAD;
+    }
+
+    static byte[] frame(byte type) {
+        byte[] frame = new byte[FRAME_OVERHEAD];
+        writeFrame(type, frame, 0, 0, frame, 0);
+        return frame;
+    }
+
+    /**
+     * A frame with an int32 as payload.
+     */
+    static byte[] frame(byte type, int value) {
+        byte[] payload = {(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value};
+        byte[] frame = new byte[payload.length + FRAME_OVERHEAD];
+        writeFrame(type, payload, 0, payload.length, frame, 0);
+        return frame;
+    }
+
+    static byte[] chunkFrame(int chunk, byte[] data, int offset, int length) {
+        byte[] payload = new byte[length + 2];
+        payload[0] = (byte) (chunk >> 8);
+        payload[1] = (byte) chunk;
+        System.arraycopy(data, offset, payload, 2, length);
+        byte[] frame = new byte[payload.length + FRAME_OVERHEAD];
+        writeFrame(TYPE_CHUNK, payload, 0, payload.length, frame, 0);
+        return frame;
+    }
+
+    /**
+     * The end of a download in chunks.
+     */
+    static byte[] programEndFrame(int chunkCount) {
+        byte[] frame = new byte[2 + FRAME_OVERHEAD];
+        writeFrame(TYPE_PROGRAM_END, new byte[]{(byte) (chunkCount >> 8), (byte) chunkCount}, 0, 2, frame, 0);
+        return frame;
+    }
+
+    static int readShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    static int readInt(byte[] data, int offset) {
+        return (data[offset] << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    /**
+     * The frame for a message of the text protocol, as sent by the divider.
+     */
+    static byte[] encodeMessage(String message) {
+        int length = message.length();
+        char first = length > 0 ? message.charAt(0) : 0;
+        if (length == 2 && (first == TYPE_STATUS || first == TYPE_INCREMENTAL)
+                && message.charAt(1) >= '0' && message.charAt(1) <= '9') {
+            byte[] frame = new byte[1 + FRAME_OVERHEAD];
+            writeFrame((byte) first, new byte[]{(byte) (message.charAt(1) - '0')}, 0, 1, frame, 0);
+            return frame;
+        }
+        if (first == TYPE_ANGLE) {
+            long hundredths = parseHundredths(message, 1, length);
+            if (hundredths != NO_NUMBER && hundredths == (int) hundredths) {
+                return frame(TYPE_ANGLE, (int) hundredths);
+            }
+        }
+        byte[] text = message.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] frame = new byte[text.length + FRAME_OVERHEAD];
+        writeFrame(TYPE_TEXT, text, 0, text.length, frame, 0);
+        return frame;
+    }
+
+    /**
+     * The frames for a program, packed and ended by PROGRAM_END.
+     *
+     * @param downloadText the program as for the text protocol
+     */
+    static byte[] encodeProgram(String downloadText) {
+        byte[] packed = packProgram(downloadText);
+        int frameCount = (packed.length + MAX_PAYLOAD - 1) / MAX_PAYLOAD;
+        byte[] frames = new byte[packed.length + (frameCount + 1) * FRAME_OVERHEAD];
+        int length = 0;
+        for (int offset = 0; offset < packed.length; offset += MAX_PAYLOAD) {
+            length += writeFrame(TYPE_PROGRAM, packed, offset, Math.min(MAX_PAYLOAD, packed.length - offset),
+                    frames, length);
+        }
+        writeFrame(TYPE_PROGRAM_END, packed, 0, 0, frames, length);
+        return frames;
+    }
+
+    /**
+     * Pack a program. Each instruction starts with a letter and is packed
+     * by itself. The edits of a ProgramDelta script start with lower case
+     * letters, so the instructions after them are packed too.
+     */
+    static byte[] packProgram(String downloadText) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(downloadText.length());
+        StringBuilder scratch = new StringBuilder();
+        int length = downloadText.length();
+        int start = 0;
+        while (start < length) {
+            int end = start + 1;
+            while (end < length && !isLetter(downloadText.charAt(end))) {
+                end++;
+            }
+            if (!packInstruction(downloadText, start, end, out, scratch)) {
+                packText(downloadText, start, end, out);
+            }
+            start = end;
+        }
+        return out.toByteArray();
+    }
+
+    private static boolean packInstruction(String text, int start, int end, ByteArrayOutputStream out,
+            StringBuilder scratch) {
+        char code = text.charAt(start);
+        switch (code) {
+            case 'B': {
+                long value = parseExactHundredths(text, start + 1, end, scratch);
+                if (value == NO_NUMBER) {
+                    return false;
+                }
+                out.write(code);
+                writeVarint(zigzag(value), out);
+                return true;
+            }
+            case 'G':
+            case 'D':
+            case 'F':
+            case 'M': {
+                long value = parseExactInteger(text, start + 1, end);
+                if (value == NO_NUMBER) {
+                    return false;
+                }
+                out.write(code);
+                writeVarint(value, out);
+                return true;
+            }
+            case 'P': {
+                int comma = text.indexOf(',', start + 1);
+                if (comma < 0 || comma >= end) {
+                    return false;
+                }
+                long first = parseExactHundredths(text, start + 1, comma, scratch);
+                long second = parseExactHundredths(text, comma + 1, end, scratch);
+                if (first == NO_NUMBER || second == NO_NUMBER) {
+                    return false;
+                }
+                out.write(code);
+                writeVarint(zigzag(first), out);
+                writeVarint(zigzag(second), out);
+                return true;
+            }
+            case 'R':
+                if (end == start + 1) {
+                    out.write(code);
+                    return true;
+                }
+                if (end == start + 2 && (text.charAt(start + 1) == '+' || text.charAt(start + 1) == '-')) {
+                    out.write(code);
+                    out.write(text.charAt(start + 1));
+                    return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    private static void packText(String text, int start, int end, ByteArrayOutputStream out) {
+        while (start < end) {
+            int length = Math.min(255, end - start);
+            out.write(TEXT_RECORD);
+            out.write(length);
+            for (int i = start; i < start + length; i++) {
+                out.write(text.charAt(i));
+            }
+            start += length;
+        }
+    }
+
+    /**
+     * Unpack a program packed with packProgram.
+     *
+     * @throws IllegalArgumentException if the data is not a packed program
+     */
+    static String unpackProgram(byte[] data, int offset, int length) {
+        StringBuilder sb = new StringBuilder(length * 2);
+        unpackRecords(data, offset, length, sb, true);
+        return sb.toString();
+    }
+
+    /**
+     * Unpack the complete instructions of part of a packed program, for a
+     * program that is unpacked as it arrives.
+     *
+     * @param last true if this is the end of the program
+     * @return the number of bytes used. The rest is the start of an
+     * instruction and has to be given again with the bytes that follow.
+     * @throws IllegalArgumentException if the data is not a packed program
+     */
+    static int unpackRecords(byte[] data, int offset, int length, StringBuilder sb, boolean last) {
+        Reader reader = new Reader(data, offset, offset + length);
+        while (reader.hasMore()) {
+            int recordStart = reader.pos;
+            int textLength = sb.length();
+            if (unpackRecord(reader, sb, last) == NEED_MORE) {
+                if (last) {
+                    throw new IllegalArgumentException("Packed program ends too early");
+                }
+                sb.setLength(textLength);
+                return recordStart - offset;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @return the number of bytes in the instruction, or NEED_MORE if it goes
+     * past the end of the data
+     */
+    private static int unpackRecord(Reader reader, StringBuilder sb, boolean last) {
+        int recordStart = reader.pos;
+        int code = reader.readByte();
+        switch (code) {
+            case TEXT_RECORD:
+                int count = reader.readByte();
+                if (count == NEED_MORE || reader.remaining() < count) {
+                    return NEED_MORE;
+                }
+                for (; count > 0; count--) {
+                    sb.append((char) reader.readByte());
+                }
+                break;
+            case 'B':
+                long angle = reader.readVarint();
+                if (angle == NEED_MORE) {
+                    return NEED_MORE;
+                }
+                appendHundredths(unzigzag(angle), false, sb.append('B'));
+                break;
+            case 'G':
+            case 'D':
+            case 'F':
+            case 'M':
+                long number = reader.readVarint();
+                if (number == NEED_MORE) {
+                    return NEED_MORE;
+                }
+                sb.append((char) code).append(number);
+                break;
+            case 'P':
+                long first = reader.readVarint();
+                long second = reader.readVarint();
+                if (first == NEED_MORE || second == NEED_MORE) {
+                    return NEED_MORE;
+                }
+                appendHundredths(unzigzag(first), false, sb.append('P'));
+                appendHundredths(unzigzag(second), false, sb.append(','));
+                break;
+            case 'R':
+                if (!reader.hasMore() && !last) {
+                    // A direction may follow.
+                    return NEED_MORE;
+                }
+                sb.append('R');
+                if (reader.hasMore() && (reader.peekByte() == '+' || reader.peekByte() == '-')) {
+                    sb.append((char) reader.readByte());
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Bad instruction code " + code + " in packed program");
+        }
+        return reader.pos - recordStart;
+    }
+
+    // Returned by the Reader and unpackRecord when a packed instruction goes
+    // past the end of the data. Numbers are at most 63 bits so it can not be
+    // mistaken for one.
+    private static final int NEED_MORE = -1;
+
+    private static class Reader {
+
+        private final byte[] data;
+        private final int end;
+        private int pos;
+
+        Reader(byte[] data, int pos, int end) {
+            this.data = data;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        boolean hasMore() {
+            return pos < end;
+        }
+
+        int remaining() {
+            return end - pos;
+        }
+
+        int peekByte() {
+            return data[pos] & 0xFF;
+        }
+
+        /**
+         * @return the next byte, or NEED_MORE at the end of the data
+         */
+        int readByte() {
+            if (pos >= end) {
+                return NEED_MORE;
+            }
+            return data[pos++] & 0xFF;
+        }
+
+        /**
+         * @return the next number, or NEED_MORE if it goes past the end of
+         * the data
+         */
+        long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 63; shift += 7) {
+                int b = readByte();
+                if (b == NEED_MORE) {
+                    return NEED_MORE;
+                }
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Too long number in packed program");
+        }
+    }
+
+    private static void writeVarint(long value, ByteArrayOutputStream out) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+    }
+
+    private static final long NO_NUMBER = Long.MIN_VALUE;
+    // Keeps the values well inside an int32 and a long.
+    private static final int MAX_INTEGER_DIGITS = 7;
+
+    /**
+     * Parse a number with at most two decimals, like 12, -1.5 or 0.25.
+     *
+     * @return the number in hundredths or NO_NUMBER
+     */
+    static long parseHundredths(CharSequence text, int start, int end) {
+        int pos = start;
+        boolean negative = pos < end && text.charAt(pos) == '-';
+        if (negative) {
+            pos++;
+        }
+        int digitsStart = pos;
+        long value = 0;
+        while (pos < end && isDigit(text.charAt(pos))) {
+            value = value * 10 + text.charAt(pos++) - '0';
+        }
+        if (pos == digitsStart || pos - digitsStart > MAX_INTEGER_DIGITS) {
+            return NO_NUMBER;
+        }
+        value *= 100;
+        if (pos < end && text.charAt(pos) == '.') {
+            pos++;
+            if (pos < end && isDigit(text.charAt(pos))) {
+                value += (text.charAt(pos++) - '0') * 10;
+                if (pos < end && isDigit(text.charAt(pos))) {
+                    value += text.charAt(pos++) - '0';
+                }
+            } else {
+                return NO_NUMBER;
+            }
+        }
+        if (pos != end) {
+            return NO_NUMBER;
+        }
+        return negative ? -value : value;
+    }
+
+    // A number that packs to the same text as it was written with.
+    private static long parseExactHundredths(String text, int start, int end, StringBuilder scratch) {
+        long value = parseHundredths(text, start, end);
+        if (value == NO_NUMBER) {
+            return NO_NUMBER;
+        }
+        scratch.setLength(0);
+        appendHundredths(value, false, scratch);
+        if (scratch.length() != end - start || !text.regionMatches(start, scratch.toString(), 0, end - start)) {
+            return NO_NUMBER;
+        }
+        return value;
+    }
+
+    private static long parseExactInteger(String text, int start, int end) {
+        if (end == start || end - start > MAX_INTEGER_DIGITS || (text.charAt(start) == '0' && end - start > 1)) {
+            return NO_NUMBER;
+        }
+        long value = 0;
+        for (int pos = start; pos < end; pos++) {
+            if (!isDigit(text.charAt(pos))) {
+                return NO_NUMBER;
+            }
+            value = value * 10 + text.charAt(pos) - '0';
+        }
+        return value;
+    }
+
+    /**
+     * Append a number of hundredths as a decimal number.
+     *
+     * @param twoDecimals true to always write two decimals as in 1.50, false
+     * to write only the decimals needed as in 1.5
+     */
+    static StringBuilder appendHundredths(long hundredths, boolean twoDecimals, StringBuilder sb) {
+        if (hundredths < 0) {
+            sb.append('-');
+            hundredths = -hundredths;
+        }
+        sb.append(hundredths / 100);
+        int decimals = (int) (hundredths % 100);
+        if (twoDecimals || decimals != 0) {
+            sb.append('.').append((char) ('0' + decimals / 10));
+            if (twoDecimals || decimals % 10 != 0) {
+                sb.append((char) ('0' + decimals % 10));
+            }
+        }
+        return sb;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Called for each frame with a good CRC.
+     */
+    interface FrameHandler {
+
+        void onFrame(byte type, byte[] data, int offset, int length);
+    }
+
+    /**
+     * Finds the frames in the received bytes. Like FrameReceiver nothing is
+     * allocated for a good frame, the data passed to the handler is reused
+     * for the next frame.
+     */
+    static class Decoder {
+
+        private static final int WAIT_FOR_SYNC = 0;
+        private static final int LENGTH = 1;
+        private static final int TYPE = 2;
+        private static final int PAYLOAD = 3;
+        private static final int CRC_HIGH = 4;
+        private static final int CRC_LOW = 5;
+
+        private final FrameHandler handler;
+        // The bytes after SYNC, LEN first.
+        private final byte[] frame = new byte[MAX_PAYLOAD + 4];
+        private int count = 0;
+        private int payloadLength;
+        private int state = WAIT_FOR_SYNC;
+
+        private long framesReceived = 0;
+        private long badFrames = 0;
+
+        Decoder(FrameHandler handler) {
+            this.handler = handler;
+        }
+
+        void receive(byte[] data, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                receive(data[i]);
+            }
+        }
+
+        private void receive(byte b) {
+            switch (state) {
+                case WAIT_FOR_SYNC:
+                    if (b == SYNC) {
+                        count = 0;
+                        state = LENGTH;
+                    }
+                    return;
+                case LENGTH:
+                    frame[count++] = b;
+                    payloadLength = b & 0xFF;
+                    if (payloadLength > MAX_PAYLOAD) {
+                        resync();
+                    } else {
+                        state = TYPE;
+                    }
+                    return;
+                case TYPE:
+                    frame[count++] = b;
+                    state = payloadLength > 0 ? PAYLOAD : CRC_HIGH;
+                    return;
+                case PAYLOAD:
+                    frame[count++] = b;
+                    if (count == payloadLength + 2) {
+                        state = CRC_HIGH;
+                    }
+                    return;
+                case CRC_HIGH:
+                    frame[count++] = b;
+                    state = CRC_LOW;
+                    return;
+                default:
+                    frame[count++] = b;
+                    int crc = ((frame[count - 2] & 0xFF) << 8) | (b & 0xFF);
+                    if (crc != crc16(frame, 0, count - 2)) {
+                        resync();
+                        return;
+                    }
+                    state = WAIT_FOR_SYNC;
+                    framesReceived++;
+                    handler.onFrame(frame[1], frame, 2, payloadLength);
+            }
+        }
+
+        // The SYNC was not the start of a frame. A frame may start in the
+        // bytes after it, so they are scanned again.
+        private void resync() {
+            badFrames++;
+            byte[] rest = Arrays.copyOf(frame, count);
+            state = WAIT_FOR_SYNC;
+            for (byte b : rest) {
+                receive(b);
+            }
+        }
+
+        /**
+         * Throw away a partially received frame.
+         */
+        void reset() {
+            state = WAIT_FOR_SYNC;
+            count = 0;
+        }
+
+        long getFramesReceived() {
+            return framesReceived;
+        }
+
+        /**
+         * @return the number of frames thrown away for a bad CRC or length
+         */
+        long getBadFrames() {
+            return badFrames;
+        }
+    }
+
+    /**
+     * Turns the frames from the divider into the messages of the text
+     * protocol and hands them to a FrameReceiver.FrameListener, as the
+     * FrameReceiver does for the text protocol.
+     */
+    static class MessageDecoder implements FrameHandler {
+
+        private final FrameReceiver.FrameListener listener;
+        private final byte[] message;
+        // The program frames received since the last PROGRAM_END. With an
+        // upload parser only the start of an instruction that continues in
+        // the next frame.
+        private final ByteArrayOutputStream program = new ByteArrayOutputStream();
+        // Gets the program as it arrives, null to hand it to the listener as
+        // one message.
+        private volatile ProgramUploadParser upload;
+        private final StringBuilder uploadText = new StringBuilder();
+
+        MessageDecoder(int bufferSize, FrameReceiver.FrameListener listener) {
+            this.message = new byte[bufferSize];
+            this.listener = listener;
+        }
+
+        @Override
+        public void onFrame(byte type, byte[] data, int offset, int length) {
+            switch (type) {
+                case TYPE_ANGLE:
+                    if (length == 4) {
+                        message[0] = TYPE_ANGLE;
+                        listener.onFrame(message, writeAngle(readInt(data, offset), message, 1));
+                    }
+                    break;
+                case TYPE_STATUS:
+                case TYPE_INCREMENTAL:
+                    if (length == 1) {
+                        message[0] = type;
+                        message[1] = (byte) ('0' + data[offset]);
+                        listener.onFrame(message, 2);
+                    }
+                    break;
+                case TYPE_TEXT:
+                    if (length > 0) {
+                        int messageLength = Math.min(length, message.length);
+                        System.arraycopy(data, offset, message, 0, messageLength);
+                        listener.onFrame(message, messageLength);
+                    }
+                    break;
+                case TYPE_PROGRAM:
+                    program.write(data, offset, length);
+                    if (upload != null) {
+                        unpackToUpload(false);
+                    }
+                    break;
+                case TYPE_PROGRAM_END:
+                    try {
+                        if (upload != null) {
+                            unpackToUpload(true);
+                            upload.finish();
+                            upload = null;
+                        } else {
+                            deliver(unpackProgram(program.toByteArray(), 0, program.size()));
+                        }
+                    } catch (IllegalArgumentException ex) {
+                        Utils.debugOutput("Bad program from the divider: " + ex.getMessage(), 3);
+                        upload = null;
+                    }
+                    program.reset();
+                    break;
+                default:
+                    Utils.debugOutput("Unknown frame type " + type, 3);
+                    break;
+            }
+        }
+
+        // Writes the angle with two decimals, as appendHundredths.
+        private static int writeAngle(long hundredths, byte[] dest, int pos) {
+            if (hundredths < 0) {
+                dest[pos++] = '-';
+                hundredths = -hundredths;
+            }
+            int digits = 3;
+            for (long rest = hundredths / 1000; rest > 0; rest /= 10) {
+                digits++;
+            }
+            int end = pos + digits + 1;
+            int i = end;
+            for (int digit = 0; digit < digits; digit++) {
+                if (digit == 2) {
+                    dest[--i] = '.';
+                }
+                dest[--i] = (byte) ('0' + hundredths % 10);
+                hundredths /= 10;
+            }
+            return end;
+        }
+
+        private void deliver(CharSequence messageText) {
+            int length = Math.min(messageText.length(), message.length);
+            for (int i = 0; i < length; i++) {
+                message[i] = (byte) messageText.charAt(i);
+            }
+            listener.onFrame(message, length);
+        }
+
+        private void unpackToUpload(boolean last) {
+            byte[] packed = program.toByteArray();
+            uploadText.setLength(0);
+            int used = unpackRecords(packed, 0, packed.length, uploadText, last);
+            program.reset();
+            program.write(packed, used, packed.length - used);
+            upload.receive(uploadText);
+        }
+
+        /**
+         * Hand the next uploaded program to a parser as it arrives.
+         */
+        void setUpload(ProgramUploadParser upload) {
+            this.upload = upload;
+        }
+
+        void reset() {
+            program.reset();
+            upload = null;
+        }
+    }
+
+}
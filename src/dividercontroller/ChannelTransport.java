@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Base for the transports that are built on NIO channels. The read channel is
+ * non-blocking and watched by a SelectorLoop, which calls the listener when
+ * the channel becomes readable. The loop is either given to the constructor
+ * and shared with other transports, or the transport starts its own.
+ */
+abstract class ChannelTransport implements SerialTransport {
+
+    private final String name;
+    // Null when the transport has its own loop.
+    private final SelectorLoop sharedSelectorLoop;
+
+    private ReadableByteChannel readChannel;
+    private WritableByteChannel writeChannel;
+    private SelectorLoop selectorLoop;
+    private SelectionKey readKey;
+    private volatile boolean open = false;
+    private volatile Listener listener;
+
+    // Wrappers of the last used arrays, to avoid a new ByteBuffer per call.
+    private ByteBuffer readByteBuffer = ByteBuffer.allocate(0);
+    private ByteBuffer writeByteBuffer = ByteBuffer.allocate(0);
+
+    ChannelTransport(String name) {
+        this(name, null);
+    }
+
+    /**
+     * @param selectorLoop the loop to watch the read channel with, null to
+     * start a loop for this transport only
+     */
+    ChannelTransport(String name, SelectorLoop selectorLoop) {
+        this.name = name;
+        this.sharedSelectorLoop = selectorLoop;
+    }
+
+    /**
+     * Start watching the channels. Called by the subclass when it has opened
+     * them.
+     *
+     * @param readChannel must be a SelectableChannel, it is made non-blocking
+     * @param writeChannel may be the same channel as readChannel
+     */
+    protected void startChannels(ReadableByteChannel readChannel, WritableByteChannel writeChannel) throws IOException {
+        this.readChannel = readChannel;
+        this.writeChannel = writeChannel;
+        SelectableChannel selectableChannel = (SelectableChannel) readChannel;
+        selectableChannel.configureBlocking(false);
+        selectorLoop = sharedSelectorLoop != null ? sharedSelectorLoop
+                : new SelectorLoop(getClass().getSimpleName() + " " + name);
+        open = true;
+        readKey = selectorLoop.register(selectableChannel, listener != null ? SelectionKey.OP_READ : 0, this::readable);
+    }
+
+    // Called on the selector thread.
+    private void readable() {
+        Listener currentListener = listener;
+        if (open && currentListener != null) {
+            currentListener.dataAvailable();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        open = false;
+        if (readKey != null) {
+            selectorLoop.cancel(readKey);
+        }
+        if (selectorLoop != null && selectorLoop != sharedSelectorLoop) {
+            selectorLoop.close();
+        }
+        closeChannels();
+    }
+
+    /**
+     * Close the channels opened by the subclass.
+     */
+    protected abstract void closeChannels() throws IOException;
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (!open) {
+            throw new IOException("Transport " + name + " is not open");
+        }
+        if (readByteBuffer.array() != buffer) {
+            readByteBuffer = ByteBuffer.wrap(buffer);
+        }
+        readByteBuffer.limit(offset + length).position(offset);
+        int count = readChannel.read(readByteBuffer);
+        if (count < 0) {
+            throw new IOException("Transport " + name + " closed by the other end");
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized void write(byte[] data, int offset, int length) throws IOException {
+        if (!open) {
+            throw new IOException("Transport " + name + " is not open");
+        }
+        if (writeByteBuffer.array() != data) {
+            writeByteBuffer = ByteBuffer.wrap(data);
+        }
+        writeByteBuffer.limit(offset + length).position(offset);
+        while (writeByteBuffer.hasRemaining()) {
+            if (writeChannel.write(writeByteBuffer) == 0) {
+                // Non-blocking channel with a full send buffer.
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+            }
+        }
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+        if (readKey != null) {
+            selectorLoop.setInterestOps(readKey, listener != null ? SelectionKey.OP_READ : 0);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+}
@@ -24,11 +24,36 @@ package dividercontroller;
  */
 public class ComPortParameters {
     Configuration config = Configuration.getConfiguration();
-    private final String comPort = config.getComport();
-    private final int baudRate = config.getCommBaudRate();
-    private final int dataBits = config.getCommDataBits();
-    private final int stopBits = config.getCommStopBits();
-    private final int parity = config.getCommParity();
+    private final String comPort;
+    private final int baudRate;
+    private final int dataBits;
+    private final int stopBits;
+    private final int parity;
+
+    /**
+     * The port settings from the configuration.
+     */
+    public ComPortParameters() {
+        this(Configuration.getConfiguration().getComport());
+    }
+
+    /**
+     * Another port with the serial settings from the configuration.
+     */
+    public ComPortParameters(String comPort) {
+        this(comPort, Configuration.getConfiguration().getCommBaudRate(),
+                Configuration.getConfiguration().getCommDataBits(),
+                Configuration.getConfiguration().getCommStopBits(),
+                Configuration.getConfiguration().getCommParity());
+    }
+
+    public ComPortParameters(String comPort, int baudRate, int dataBits, int stopBits, int parity) {
+        this.comPort = comPort;
+        this.baudRate = baudRate;
+        this.dataBits = dataBits;
+        this.stopBits = stopBits;
+        this.parity = parity;
+    }
 
     public Configuration getConfig() {
         return config;
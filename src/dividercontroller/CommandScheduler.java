@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * The commands waiting to be sent to the divider. Commands are sent in the
+ * order they were queued, except that a command may be merged with one that
+ * is already waiting when the divider ends up the same either way:
+ *
+ * Jogs queued after each other become one J command for the sum of the
+ * steps, if the firmware has it.
+ * A query for status, angle or version that is already waiting is not
+ * queued again, unless a command queued after it can change the answer.
+ * A P command replaces the P commands before it while the positions are
+ * absolute. Commands that change what a position means, like Z or a switch
+ * to incremental mode, are not passed.
+ * Q, which stops the program, goes before all waiting commands.
+ *
+ * A command that is merged into another gets the response of that command.
+ * The number of commands each rule kept off the wire is counted.
+ *
+ * Commands are queued from any thread and taken by the send task, so all
+ * methods are synchronized.
+ */
+class CommandScheduler {
+
+    // In the answer to V when the firmware has the J command.
+    static final String JOG_CAPABILITY = "JOG";
+
+    private final ArrayDeque<CommandToDivider> queue = new ArrayDeque<>();
+
+    // Merge jogs into J commands, set when the firmware is known to have J.
+    private boolean jogMerging = false;
+    // True when the divider reported absolute positions, false for
+    // incremental positions and null when not known.
+    private Boolean absolutePositions = null;
+
+    // Statistics
+    private long commandsQueued;
+    private long jogsMerged;
+    private long queriesDeduplicated;
+    private long positionsSuperseded;
+    private long stopsPreempted;
+    private long commandsPassedByStops;
+
+    /**
+     * Queue a command, merged with a waiting command when possible.
+     */
+    synchronized void add(CommandToDivider command) {
+        commandsQueued++;
+        switch (command.getCommand()) {
+            case STOP_RUNNING:
+                if (!queue.isEmpty()) {
+                    stopsPreempted++;
+                    commandsPassedByStops += queue.size();
+                }
+                queue.addFirst(command);
+                return;
+            case STEP_PLUS:
+            case STEP_MINUS:
+            case JOG:
+                if (jogMerging && mergeJog(command)) {
+                    jogsMerged++;
+                    return;
+                }
+                break;
+            case GET_STATUS:
+            case GET_ANGLE:
+            case GET_VERSION:
+                if (mergeQuery(command)) {
+                    queriesDeduplicated++;
+                    return;
+                }
+                break;
+            case POSITION_TO:
+                positionsSuperseded += supersedePositions(command);
+                break;
+            default:
+                break;
+        }
+        queue.addLast(command);
+    }
+
+    // Jogs are merged into the last command if it is a jog too, the
+    // movement is the same.
+    private boolean mergeJog(CommandToDivider command) {
+        CommandToDivider last = queue.peekLast();
+        if (last == null || !isJog(last)) {
+            return false;
+        }
+        CommandToDivider merged = new CommandToDivider(CommandToDivider.DividerCommand.JOG);
+        merged.setValue(stepsOf(last) + stepsOf(command));
+        relay(merged, last);
+        relay(merged, command);
+        queue.pollLast();
+        queue.addLast(merged);
+        return true;
+    }
+
+    // A query is merged into the newest waiting query of the same kind, if
+    // no command after that one can change the answer.
+    private boolean mergeQuery(CommandToDivider command) {
+        Predicate<CommandToDivider> changesAnswer = changesAnswerTo(command.getCommand());
+        Iterator<CommandToDivider> it = queue.descendingIterator();
+        while (it.hasNext()) {
+            CommandToDivider waiting = it.next();
+            if (waiting.getCommand() == command.getCommand()) {
+                relay(waiting, command);
+                return true;
+            }
+            if (changesAnswer.test(waiting)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isJog(CommandToDivider command) {
+        switch (command.getCommand()) {
+            case STEP_PLUS:
+            case STEP_MINUS:
+            case JOG:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static int stepsOf(CommandToDivider command) {
+        switch (command.getCommand()) {
+            case STEP_PLUS:
+                return 1;
+            case STEP_MINUS:
+                return -1;
+            default:
+                return (int) command.getValue();
+        }
+    }
+
+    // Removes the waiting P commands that the new one makes pointless and
+    // returns how many.
+    private int supersedePositions(CommandToDivider command) {
+        Boolean absolute = absolutePositions;
+        // The last mode switch in the queue decides for the commands after it.
+        Iterator<CommandToDivider> it = queue.descendingIterator();
+        while (it.hasNext()) {
+            CommandToDivider.DividerCommand waiting = it.next().getCommand();
+            if (waiting == CommandToDivider.DividerCommand.SET_ABSOLUTE) {
+                absolute = true;
+                break;
+            } else if (waiting == CommandToDivider.DividerCommand.SET_INCREMENTAL) {
+                absolute = false;
+                break;
+            }
+        }
+        if (absolute == null || !absolute) {
+            // An incremental P adds to the ones before.
+            return 0;
+        }
+        int superseded = 0;
+        it = queue.descendingIterator();
+        while (it.hasNext()) {
+            CommandToDivider waiting = it.next();
+            switch (waiting.getCommand()) {
+                case POSITION_TO:
+                    it.remove();
+                    relay(command, waiting);
+                    superseded++;
+                    break;
+                case STEP_PLUS:
+                case STEP_MINUS:
+                case JOG:
+                case GET_STATUS:
+                case GET_ANGLE:
+                case GET_VERSION:
+                case GET_FINGERPRINT:
+                    // Moving before going to an absolute position makes no
+                    // difference.
+                    break;
+                default:
+                    return superseded;
+            }
+        }
+        return superseded;
+    }
+
+    /**
+     * @return what can change the answer to a command that only reports or
+     * sets a state of the divider, null for other commands
+     */
+    static Predicate<CommandToDivider> changesAnswerTo(CommandToDivider.DividerCommand command) {
+        switch (command) {
+            case SET_INCREMENTAL:
+            case SET_ABSOLUTE:
+                return CommandScheduler::changesMode;
+            case GET_STATUS:
+                return CommandScheduler::changesStatus;
+            case GET_ANGLE:
+                return CommandScheduler::changesAngle;
+            case GET_VERSION:
+                return waiting -> false;
+            default:
+                return null;
+        }
+    }
+
+    static boolean changesMode(CommandToDivider command) {
+        switch (command.getCommand()) {
+            case SET_INCREMENTAL:
+            case SET_ABSOLUTE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    static boolean changesStatus(CommandToDivider command) {
+        switch (command.getCommand()) {
+            case RUN_PROGRAM:
+            case STOP_RUNNING:
+            case DOWNLOAD_PROGRAM:
+            case EDIT_PROGRAM:
+            case UPLOAD_PROGRAM:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    static boolean changesAngle(CommandToDivider command) {
+        switch (command.getCommand()) {
+            case STEP_PLUS:
+            case STEP_MINUS:
+            case JOG:
+            case POSITION_TO:
+            case ZERO_POSITION:
+            case RUN_PROGRAM:
+            case STOP_RUNNING:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // The merged command is completed with the response of the one it was
+    // merged into.
+    private static void relay(CommandToDivider from, CommandToDivider to) {
+        CompletableFuture<String> response = to.getResponse();
+        from.getResponse().whenComplete((message, failure) -> {
+            if (failure != null) {
+                response.completeExceptionally(failure);
+            } else {
+                response.complete(message);
+            }
+        });
+    }
+
+    /**
+     * @param version the answer to V
+     * @return true if the firmware has the J command
+     */
+    static boolean isJogSupportedBy(String version) {
+        return version != null && version.contains(JOG_CAPABILITY);
+    }
+
+    /**
+     * @return the next command to send, null if there is none
+     */
+    synchronized CommandToDivider peek() {
+        return queue.peekFirst();
+    }
+
+    /**
+     * Take the next command if it may be sent now.
+     *
+     * @return the command or null if there is none or it has to wait
+     */
+    synchronized CommandToDivider poll(Predicate<CommandToDivider> canSend) {
+        CommandToDivider command = queue.peekFirst();
+        if (command == null || !canSend.test(command)) {
+            return null;
+        }
+        return queue.pollFirst();
+    }
+
+    /**
+     * Take the next command if it may be sent now and hand it to taken while
+     * the queue is still locked, see contains.
+     *
+     * @return the command or null if there is none or it has to wait
+     */
+    synchronized CommandToDivider poll(Predicate<CommandToDivider> canSend, Consumer<CommandToDivider> taken) {
+        CommandToDivider command = poll(canSend);
+        if (command != null) {
+            taken.accept(command);
+        }
+        return command;
+    }
+
+    /**
+     * Check if a matching command is queued or sent and waiting for its
+     * response. A command that poll hands to the pending commands is found
+     * in one of them.
+     */
+    synchronized boolean contains(Predicate<CommandToDivider> filter, PendingCommands pendingCommands) {
+        for (CommandToDivider command : queue) {
+            if (filter.test(command)) {
+                return true;
+            }
+        }
+        return pendingCommands.contains(filter);
+    }
+
+    /**
+     * Put commands back first in the queue in the given order, like commands
+     * that were sent but not answered before the link was lost. They are not
+     * merged with the queued commands.
+     */
+    synchronized void requeue(List<CommandToDivider> commands) {
+        for (int i = commands.size() - 1; i >= 0; i--) {
+            queue.addFirst(commands.get(i));
+        }
+    }
+
+    /**
+     * Take out the queued commands that match.
+     *
+     * @return the commands taken out, in queue order
+     */
+    synchronized List<CommandToDivider> removeIf(Predicate<CommandToDivider> filter) {
+        List<CommandToDivider> removed = new ArrayList<>();
+        Iterator<CommandToDivider> it = queue.iterator();
+        while (it.hasNext()) {
+            CommandToDivider command = it.next();
+            if (filter.test(command)) {
+                it.remove();
+                removed.add(command);
+            }
+        }
+        return removed;
+    }
+
+    synchronized boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    synchronized int size() {
+        return queue.size();
+    }
+
+    /**
+     * @param jogMerging true if the firmware has the J command
+     */
+    synchronized void setJogMerging(boolean jogMerging) {
+        this.jogMerging = jogMerging;
+    }
+
+    /**
+     * @param absolutePositions the mode reported by the divider, null if not
+     * known
+     */
+    synchronized void setAbsolutePositions(Boolean absolutePositions) {
+        this.absolutePositions = absolutePositions;
+    }
+
+    synchronized long getCommandsQueued() {
+        return commandsQueued;
+    }
+
+    synchronized long getJogsMerged() {
+        return jogsMerged;
+    }
+
+    synchronized long getQueriesDeduplicated() {
+        return queriesDeduplicated;
+    }
+
+    synchronized long getPositionsSuperseded() {
+        return positionsSuperseded;
+    }
+
+    synchronized long getStopsPreempted() {
+        return stopsPreempted;
+    }
+
+    /**
+     * @return the number of commands that were not sent because they were
+     * merged into others
+     */
+    synchronized long getCommandsSaved() {
+        return jogsMerged + queriesDeduplicated + positionsSuperseded;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Command scheduler: " + commandsQueued + " commands queued, "
+                + getCommandsSaved() + " not sent (" + jogsMerged + " jogs merged, "
+                + queriesDeduplicated + " queries deduplicated, " + positionsSuperseded
+                + " positions superseded), " + stopsPreempted + " stops sent before "
+                + commandsPassedByStops + " waiting commands";
+    }
+
+}
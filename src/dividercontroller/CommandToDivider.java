@@ -18,42 +18,137 @@
  */
 package dividercontroller;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  *
  * @author Mats Andersson <mats.andersson@mecona.se>
  */
 public class CommandToDivider {
 
+    /**
+     * How a command may be mixed with other commands waiting for their
+     * responses.
+     */
+    public enum Pipelining {
+        // Sent only when nothing else is waiting and nothing is sent until
+        // its response has arrived.
+        EXCLUSIVE,
+        // May be sent while other SHARED commands are waiting.
+        SHARED,
+        // Always sent at once, whatever is waiting.
+        ALWAYS
+    }
+
     // Divider commands
     public enum DividerCommand {
-        DOWNLOAD_PROGRAM('D'),
-        UPLOAD_PROGRAM('U'),
-        RUN_PROGRAM('R'),
-        STEP_PLUS('+'),
-        STEP_MINUS('-'),
-        POSITION_TO('P'),
-        SET_INCREMENTAL('I'),
-        SET_ABSOLUTE('A'),
-        ZERO_POSITION('Z'),
-        GET_STATUS('S'),
-        GET_ANGLE('?'),
-        STOP_RUNNING('Q'),
-        GET_VERSION('V');
+        DOWNLOAD_PROGRAM('D', "Download finished", 20000, Pipelining.EXCLUSIVE),
+        // Downloads the changes to the program, see ProgramDelta.
+        EDIT_PROGRAM('E', "Download finished", 20000, Pipelining.EXCLUSIVE),
+        UPLOAD_PROGRAM('U', "Upload finished", 20000, Pipelining.EXCLUSIVE),
+        RUN_PROGRAM('R', "R", 2000, Pipelining.EXCLUSIVE),
+        STEP_PLUS('+', "A", 5000, Pipelining.SHARED),
+        STEP_MINUS('-', "A", 5000, Pipelining.SHARED),
+        // Several steps at once, the value is the number of steps.
+        JOG('J', "A", 60000, Pipelining.SHARED),
+        POSITION_TO('P', "A", 60000, Pipelining.EXCLUSIVE),
+        SET_INCREMENTAL('I', "I", 2000, Pipelining.SHARED),
+        SET_ABSOLUTE('A', "I", 2000, Pipelining.SHARED),
+        ZERO_POSITION('Z', "A", 2000, Pipelining.EXCLUSIVE),
+        GET_STATUS('S', "S", 2000, Pipelining.SHARED),
+        GET_ANGLE('?', "A", 2000, Pipelining.SHARED),
+        STOP_RUNNING('Q', "Q", 2000, Pipelining.ALWAYS),
+        GET_VERSION('V', null, 2000, Pipelining.EXCLUSIVE),
+        // Switches to the binary protocol, see BinaryProtocol.
+        SET_BINARY('B', "B", 2000, Pipelining.EXCLUSIVE),
+        // Asks for the fingerprint of the program, see ProgramFingerprint.
+        GET_FINGERPRINT('C', "C", 2000, Pipelining.SHARED);
         
         private final char commandChar;
+        // The response that completes the command. Null means any message
+        // that is not a response or an acknowledgement of another command.
+        // The divider acknowledges a command with its own character followed
+        // by the value, if any.
+        private final String response;
+        private final long responseTimeout;
+        private final Pipelining pipelining;
         
-        DividerCommand(char commandChar) {
+        DividerCommand(char commandChar, String response, long responseTimeout, Pipelining pipelining) {
             this.commandChar = commandChar;
+            this.response = response;
+            this.responseTimeout = responseTimeout;
+            this.pipelining = pipelining;
         }
         
         public char getCommandByte() {
             return commandChar;
         }
 
+        /**
+         * Check if a message from the divider is the response that completes
+         * this command.
+         */
+        public boolean isCompletedBy(String message) {
+            if (response == null) {
+                for (DividerCommand other : values()) {
+                    if (other != this && other.claims(message)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            if (response.length() > 1) {
+                return message.contains(response);
+            }
+            return message.startsWith(response);
+        }
+
+        // Check if a message is the response or the acknowledgement of this
+        // command. "A12.5" and "Z" are, "Arduino divider 1.2" is not.
+        private boolean claims(String message) {
+            if (response != null && response.length() > 1) {
+                return message.contains(response);
+            }
+            return isAcknowledgement(message, commandChar)
+                    || (response != null && isAcknowledgement(message, response.charAt(0)));
+        }
+
+        private static boolean isAcknowledgement(String message, char c) {
+            return message.length() > 0 && message.charAt(0) == c
+                    && (message.length() == 1 || !Character.isLowerCase(message.charAt(1)));
+        }
+
+        /**
+         * @return the time in ms to wait for the response
+         */
+        public long getResponseTimeout() {
+            return responseTimeout;
+        }
+
+        public Pipelining getPipelining() {
+            return pipelining;
+        }
+
     }
     
     private DividerCommand command;
     private double value;
+    // When the command was created, in System.nanoTime() units.
+    private final long creationTime = System.nanoTime();
+    private long sentTime;
+    // When the command last reported progress, 0 if never.
+    private long progressTime;
+    private long responseTimeout;
+    // Sent by the send task to keep angle and status up to date.
+    private boolean poll;
+    // Only the future gets the response, no events are posted for it.
+    private boolean quiet;
+    // For D and E, the program or edit script to send and the program the
+    // divider has when the download is finished.
+    private String payload;
+    private String programAfterDownload;
+    // Completed with the response from the divider.
+    private final CompletableFuture<String> response = new CompletableFuture<>();
 
     public char getCommandChar() {
         return command.commandChar;
@@ -61,6 +156,7 @@ public class CommandToDivider {
 
     public CommandToDivider(DividerCommand command) {
         this.command = command;
+        this.responseTimeout = command.getResponseTimeout();
     }
 
     public double getValue() {
@@ -74,6 +170,90 @@ public class CommandToDivider {
     public DividerCommand getCommand() {
         return command;
     }
+
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    /**
+     * @return the time the command was written to the divider, in
+     * System.nanoTime() units. 0 if not sent yet.
+     */
+    public long getSentTime() {
+        return sentTime;
+    }
+
+    void setSentTime(long sentTime) {
+        this.sentTime = sentTime;
+    }
+
+    long getProgressTime() {
+        return progressTime;
+    }
+
+    void setProgressTime(long progressTime) {
+        this.progressTime = progressTime;
+    }
+
+    /**
+     * @return the time in ms to wait for the response before the command
+     * fails with a TimeoutException
+     */
+    public long getResponseTimeout() {
+        return responseTimeout;
+    }
+
+    public void setResponseTimeout(long responseTimeout) {
+        this.responseTimeout = responseTimeout;
+    }
+
+    boolean isPoll() {
+        return poll;
+    }
+
+    void setPoll(boolean poll) {
+        this.poll = poll;
+    }
+
+    boolean isQuiet() {
+        return quiet;
+    }
+
+    void setQuiet(boolean quiet) {
+        this.quiet = quiet;
+    }
+
+    String getPayload() {
+        return payload;
+    }
+
+    String getProgramAfterDownload() {
+        return programAfterDownload;
+    }
+
+    /**
+     * Set what a D or E command sends.
+     *
+     * @param payload the program or edit script
+     * @param programAfterDownload the program the divider has when the
+     * download is finished
+     */
+    void setPayload(String payload, String programAfterDownload) {
+        this.payload = payload;
+        this.programAfterDownload = programAfterDownload;
+    }
+
+    /**
+     * The future is completed with the message that acknowledges the command.
+     * For the moving commands (+, -, P, Z) and ? that is the "A" message with
+     * the new angle, for U it is the uploaded program. It fails with a
+     * TimeoutException if no response arrives in time.
+     *
+     * Note that the future is completed on the message receiver thread.
+     */
+    public CompletableFuture<String> getResponse() {
+        return response;
+    }
     
     
     
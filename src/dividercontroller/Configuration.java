@@ -20,7 +20,9 @@ package dividercontroller;
 
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.prefs.Preferences;
 import javafx.collections.FXCollections;
@@ -61,6 +63,46 @@ public class Configuration {
     private final String COMM_PARITY_KEY = "CommParity";
     private final int DEFAULT_COMM_PARITY = SerialPort.PARITY_NONE;
 
+    // Settings for the simulated divider, used when the port is SIMULATOR
+    private final String SIM_STEPS_PER_REVOLUTION_KEY = "SimStepsPerRevolution";
+    private final String SIM_DEGREES_PER_SECOND_KEY = "SimDegreesPerSecond";
+    private final String SIM_RESPONSE_DELAY_KEY = "SimResponseDelay";
+    private final String SIM_BOOT_TIME_KEY = "SimBootTime";
+
+    // Bounds in ms for the time between the requests for angle and status
+    private final String MIN_POLL_INTERVAL_KEY = "MinPollInterval";
+    private final String MAX_POLL_INTERVAL_KEY = "MaxPollInterval";
+
+    // How the divider tasks are run, the name of a ThreadModel
+    private final String THREAD_MODEL_KEY = "ThreadModel";
+
+    // Use the binary protocol with firmware that has it
+    private final String BINARY_PROTOCOL_KEY = "BinaryProtocol";
+
+    // The longest program in characters that is taken from the divider
+    private final String MAX_UPLOAD_SIZE_KEY = "MaxUploadSize";
+    private final int DEFAULT_MAX_UPLOAD_SIZE = 65536;
+
+    // The fingerprint of the program last confirmed by the divider on each
+    // port, see ProgramFingerprint. The key is the port name.
+    private final String PROGRAM_FINGERPRINTS_NODE = "ProgramFingerprints";
+
+    // The age in ms up to which the angle and status the divider last
+    // reported are used instead of asking, see DeviceState
+    private final String STATE_MAX_AGE_KEY = "StateMaxAge";
+
+    // The time in ms a port is given to answer when looking for dividers,
+    // see PortDiscovery
+    private final String DISCOVERY_TIMEOUT_KEY = "DiscoveryTimeout";
+
+    // Delays in ms between the attempts to open the port again when the
+    // link is lost, and the age in ms up to which the commands that were
+    // not answered are sent again, see ConnectionSupervisor
+    private final String RECONNECT_MIN_DELAY_KEY = "ReconnectMinDelay";
+    private final String RECONNECT_MAX_DELAY_KEY = "ReconnectMaxDelay";
+    private final String REPLAY_WINDOW_KEY = "ReplayWindow";
+    private final long DEFAULT_REPLAY_WINDOW = 10000;
+
     private String initialPath = null;
 
     private final Preferences prefs = Preferences.userNodeForPackage(getClass());
@@ -69,6 +111,22 @@ public class Configuration {
     private final int commDataBits;
     private final int commStopBits;
     private final int commParity;
+    private final int simulatorStepsPerRevolution;
+    private final double simulatorDegreesPerSecond;
+    private final long simulatorResponseDelay;
+    private final long simulatorBootTime;
+    private final long minPollInterval;
+    private final long maxPollInterval;
+    private final ThreadModel threadModel;
+    private final boolean binaryProtocol;
+    private final int maxUploadSize;
+    private final long stateMaxAge;
+    private final long discoveryTimeout;
+    private final long reconnectMinDelay;
+    private final long reconnectMaxDelay;
+    private final long replayWindow;
+    // Set when the ports are searched for dividers.
+    private volatile PortDiscovery portDiscovery;
 
     private static final Configuration INSTANCE = new Configuration();
 
@@ -84,6 +142,20 @@ public class Configuration {
         commDataBits = prefs.getInt(COMM_DATABITS_KEY, DEFAULT_COMM_DATABITS);
         commStopBits = prefs.getInt(COMM_STOPBITS_KEY, DEFAULT_COMM_STOPBITS);
         commParity = prefs.getInt(COMM_PARITY_KEY, DEFAULT_COMM_PARITY);
+        simulatorStepsPerRevolution = prefs.getInt(SIM_STEPS_PER_REVOLUTION_KEY, DividerSimulator.DEFAULT_STEPS_PER_REVOLUTION);
+        simulatorDegreesPerSecond = prefs.getDouble(SIM_DEGREES_PER_SECOND_KEY, DividerSimulator.DEFAULT_DEGREES_PER_SECOND);
+        simulatorResponseDelay = prefs.getLong(SIM_RESPONSE_DELAY_KEY, DividerSimulator.DEFAULT_RESPONSE_DELAY);
+        simulatorBootTime = prefs.getLong(SIM_BOOT_TIME_KEY, DividerSimulator.DEFAULT_BOOT_TIME);
+        minPollInterval = prefs.getLong(MIN_POLL_INTERVAL_KEY, PollingPolicy.DEFAULT_MIN_POLL_INTERVAL);
+        maxPollInterval = prefs.getLong(MAX_POLL_INTERVAL_KEY, PollingPolicy.DEFAULT_MAX_POLL_INTERVAL);
+        threadModel = ThreadModel.fromName(prefs.get(THREAD_MODEL_KEY, ThreadModel.PLATFORM.name()));
+        binaryProtocol = prefs.getBoolean(BINARY_PROTOCOL_KEY, false);
+        maxUploadSize = prefs.getInt(MAX_UPLOAD_SIZE_KEY, DEFAULT_MAX_UPLOAD_SIZE);
+        stateMaxAge = prefs.getLong(STATE_MAX_AGE_KEY, DeviceState.DEFAULT_MAX_AGE);
+        discoveryTimeout = prefs.getLong(DISCOVERY_TIMEOUT_KEY, PortDiscovery.DEFAULT_TIMEOUT);
+        reconnectMinDelay = prefs.getLong(RECONNECT_MIN_DELAY_KEY, ConnectionSupervisor.DEFAULT_MIN_DELAY);
+        reconnectMaxDelay = prefs.getLong(RECONNECT_MAX_DELAY_KEY, ConnectionSupervisor.DEFAULT_MAX_DELAY);
+        replayWindow = prefs.getLong(REPLAY_WINDOW_KEY, DEFAULT_REPLAY_WINDOW);
     }
 
     public static Configuration getConfiguration() {
@@ -98,6 +170,18 @@ public class Configuration {
         return commPort;
     }
 
+    /**
+     * Use another port, for instance one where a divider was found. The
+     * divider is told with a NEW_SERIAL_PORT_SELECTED event.
+     */
+    public void setCommPort(String newCommPort) {
+        if (!newCommPort.equals(commPort)) {
+            commPort = newCommPort;
+            ProjectEventBus.getInstance().post(new ProgramEvent(ProgramEvent.Command.NEW_SERIAL_PORT_SELECTED, 0));
+            prefs.put(COMPORT_KEY, commPort);
+        }
+    }
+
     public int getCommBaudRate() {
         return commBaudRate;
     }
@@ -114,6 +198,88 @@ public class Configuration {
         return commParity;
     }
 
+    public int getSimulatorStepsPerRevolution() {
+        return simulatorStepsPerRevolution;
+    }
+
+    public double getSimulatorDegreesPerSecond() {
+        return simulatorDegreesPerSecond;
+    }
+
+    public long getSimulatorResponseDelay() {
+        return simulatorResponseDelay;
+    }
+
+    public long getSimulatorBootTime() {
+        return simulatorBootTime;
+    }
+
+    public long getMinPollInterval() {
+        return minPollInterval;
+    }
+
+    public long getMaxPollInterval() {
+        return maxPollInterval;
+    }
+
+    public ThreadModel getThreadModel() {
+        return threadModel;
+    }
+
+    public boolean isBinaryProtocol() {
+        return binaryProtocol;
+    }
+
+    public int getMaxUploadSize() {
+        return maxUploadSize;
+    }
+
+    public long getStateMaxAge() {
+        return stateMaxAge;
+    }
+
+    public long getDiscoveryTimeout() {
+        return discoveryTimeout;
+    }
+
+    public long getReconnectMinDelay() {
+        return reconnectMinDelay;
+    }
+
+    public long getReconnectMaxDelay() {
+        return reconnectMaxDelay;
+    }
+
+    public long getReplayWindow() {
+        return replayWindow;
+    }
+
+    void setPortDiscovery(PortDiscovery portDiscovery) {
+        this.portDiscovery = portDiscovery;
+    }
+
+    /**
+     * @return the fingerprint of the program the divider on the port last
+     * confirmed, null if not known
+     */
+    public String getProgramFingerprint(String port) {
+        return prefs.node(PROGRAM_FINGERPRINTS_NODE).get(port, null);
+    }
+
+    /**
+     * Remember the program the divider on the port has.
+     *
+     * @param fingerprint the fingerprint, null if the program is not known
+     */
+    public void setProgramFingerprint(String port, String fingerprint) {
+        Preferences fingerprints = prefs.node(PROGRAM_FINGERPRINTS_NODE);
+        if (fingerprint == null) {
+            fingerprints.remove(port);
+        } else {
+            fingerprints.put(port, fingerprint);
+        }
+    }
+
     public String getInitialDirectoryName() {
         return initialPath;
     }
@@ -127,6 +293,14 @@ public class Configuration {
         ChoiceBox<String> cbCommPort = new ChoiceBox<>();
         cbCommPort.setItems(FXCollections.observableList(portList));
         cbCommPort.getSelectionModel().select(currentData.commPort);
+        Map<String, String> dividers = portDiscovery != null
+                ? portDiscovery.getDividers() : Collections.<String, String>emptyMap();
+        if (!portList.contains(currentData.commPort) && !dividers.isEmpty()) {
+            // The port is gone, suggest one where a divider was found.
+            cbCommPort.getSelectionModel().select(dividers.keySet().iterator().next());
+        }
+        Label label3 = new Label("Hittade delare:");
+        Label lbDividers = new Label(dividers.isEmpty() ? "Inga" : String.join(", ", dividers.keySet()));
         TextField tfDefaultPath = new TextField(currentData.initialPath);
         tfDefaultPath.setPrefWidth(300);
         
@@ -137,6 +311,9 @@ public class Configuration {
         GridPane.setHalignment(label2, HPos.RIGHT);
         gridPane.add(cbCommPort, 1, 0);
         gridPane.add(tfDefaultPath, 1, 1);
+        gridPane.add(label3, 0, 2);
+        GridPane.setHalignment(label3, HPos.RIGHT);
+        gridPane.add(lbDividers, 1, 2);
         gridPane.setPadding(new Insets(30));
         gridPane.setVgap(20);
         gridPane.setHgap(20);
@@ -164,11 +341,7 @@ public class Configuration {
             SettingsDialogData newSettings = result.get();
             String newCommPort = newSettings.commPort;
             System.out.println("Comport : " + newCommPort);
-            if (!newCommPort.equals(commPort)) {
-                commPort = newCommPort;
-                ProjectEventBus.getInstance().post(new ProgramEvent(ProgramEvent.Command.NEW_SERIAL_PORT_SELECTED, 0));
-                prefs.put(COMPORT_KEY, commPort);
-            }
+            setCommPort(newCommPort);
             String newInitialPath = newSettings.initialPath;
             if (newInitialPath != null) {
                 if (Files.isDirectory(Paths.get(newSettings.initialPath))) {
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.util.Random;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Keeps track of the link to the divider for ArduinoDivider. The link is
+ * lost on an I/O error on the port or when several commands in a row get no
+ * response while nothing at all arrives. The divider then tries to open the
+ * port again after a delay that doubles for each attempt up to the max
+ * delay. Each delay is drawn between half and all of that, so dividers that
+ * lost the link at the same time, like on a shared USB hub, do not all try
+ * at once.
+ *
+ * The time from the link was lost until the divider answered again is
+ * recorded for each outage.
+ *
+ * The methods are called from the transport, the send task and the
+ * reconnect timer, so they are synchronized.
+ */
+class ConnectionSupervisor {
+
+    static final long DEFAULT_MIN_DELAY = 250;
+    static final long DEFAULT_MAX_DELAY = 10000;
+
+    // Responses in a row that may be missing before the link is taken as
+    // lost.
+    private static final int MISSED_RESPONSES_FOR_LOSS = 3;
+
+    private final long minDelay;
+    private final long maxDelay;
+    private final Random random = new Random();
+
+    private int missedResponses;
+    private volatile boolean inOutage;
+    private long outageStart;
+    private int attempts;
+
+    private long outages;
+    private long reconnectAttempts;
+    private long commandsReplayed;
+    private long commandsDropped;
+    private final LatencyHistogram outageDurations = new LatencyHistogram("Outage");
+
+    /**
+     * @param minDelay the delay in ms before the first attempt
+     * @param maxDelay the longest delay in ms between attempts
+     */
+    ConnectionSupervisor(long minDelay, long maxDelay) {
+        this.minDelay = Math.max(1, minDelay);
+        this.maxDelay = Math.max(this.minDelay, maxDelay);
+    }
+
+    /**
+     * A message arrived, the link works.
+     */
+    synchronized void messageReceived() {
+        missedResponses = 0;
+    }
+
+    /**
+     * Commands got no response in time.
+     *
+     * @return true if so many responses are missing that the link is lost
+     */
+    synchronized boolean responsesMissed(int count) {
+        missedResponses += count;
+        return missedResponses >= MISSED_RESPONSES_FOR_LOSS;
+    }
+
+    /**
+     * The link is lost.
+     *
+     * @return true if this starts an outage, false if one is going on
+     */
+    synchronized boolean linkLost(long nowNanos) {
+        if (inOutage) {
+            return false;
+        }
+        inOutage = true;
+        outageStart = nowNanos;
+        attempts = 0;
+        missedResponses = 0;
+        outages++;
+        return true;
+    }
+
+    /**
+     * @return the time in ms to wait before the next attempt to reconnect
+     */
+    synchronized long nextDelay() {
+        long delay = minDelay << Math.min(attempts, 30);
+        if (delay <= 0 || delay > maxDelay) {
+            delay = maxDelay;
+        }
+        attempts++;
+        reconnectAttempts++;
+        return delay / 2 + (long) (random.nextDouble() * (delay - delay / 2));
+    }
+
+    /**
+     * The divider answers again, the outage is over.
+     */
+    synchronized void reconnected(long nowNanos) {
+        if (inOutage) {
+            inOutage = false;
+            outageDurations.record(nowNanos - outageStart);
+        }
+    }
+
+    /**
+     * The divider was stopped during an outage, no more attempts are made.
+     */
+    synchronized void cancel() {
+        inOutage = false;
+    }
+
+    boolean isInOutage() {
+        return inOutage;
+    }
+
+    synchronized void commandsReplayed(int count) {
+        commandsReplayed += count;
+    }
+
+    synchronized void commandsDropped(int count) {
+        commandsDropped += count;
+    }
+
+    synchronized long getOutages() {
+        return outages;
+    }
+
+    synchronized long getReconnectAttempts() {
+        return reconnectAttempts;
+    }
+
+    synchronized long getCommandsReplayed() {
+        return commandsReplayed;
+    }
+
+    synchronized long getCommandsDropped() {
+        return commandsDropped;
+    }
+
+    /**
+     * Time from the link was lost until the divider answered again.
+     */
+    LatencyHistogram getOutageDurations() {
+        return outageDurations;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Connection supervisor: " + outages + " outages, " + reconnectAttempts
+                + " reconnect attempts, " + commandsReplayed + " commands replayed, "
+                + commandsDropped + " commands dropped";
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * What is known about the divider from its responses: the mode, the angle,
+ * if a program is running and the firmware version. Every change makes a new
+ * version, so a client can tell if anything happened since it last looked.
+ *
+ * Commands that would not change anything are answered from here instead of
+ * being sent, see answer. The mode only changes by the I and A commands so it
+ * is known until the divider is started again. The angle and the run status
+ * also change by themselves while a program runs, they are only used while
+ * they are younger than the max age.
+ *
+ * The message receiver updates the state and the threads that queue commands
+ * read it, so all methods are synchronized.
+ */
+class DeviceState {
+
+    static final long DEFAULT_MAX_AGE = 250;
+
+    private final long maxAgeNanos;
+
+    private long version;
+    private Boolean incremental;
+    private String angleMessage;
+    private double angle = Double.NaN;
+    private long angleTime;
+    private Boolean running;
+    private long runningTime;
+    private String firmwareVersion;
+
+    private long commandsElided;
+
+    /**
+     * @param maxAge the age in ms at which the angle and the run status are
+     * asked for again
+     */
+    DeviceState(long maxAge) {
+        maxAgeNanos = maxAge * 1_000_000;
+    }
+
+    /**
+     * Update the state from a message from the divider.
+     *
+     * @return true if the state changed
+     */
+    synchronized boolean messageReceived(String message, long nowNanos) {
+        if (message.equals("R") || message.equals("S3")) {
+            runningTime = nowNanos;
+            return setRunning(true);
+        } else if (message.equals("Q") || message.equals("S0")) {
+            runningTime = nowNanos;
+            return setRunning(false);
+        } else if (message.equals("I0")) {
+            return setIncremental(false);
+        } else if (message.equals("I1")) {
+            return setIncremental(true);
+        } else if (message.startsWith("A")) {
+            double position;
+            try {
+                position = ArduinoDivider.getPositionFromMessage(message);
+            } catch (NumberFormatException ex) {
+                return false;
+            }
+            angleTime = nowNanos;
+            if (message.equals(angleMessage)) {
+                return false;
+            }
+            angleMessage = message;
+            angle = position;
+            version++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean setRunning(boolean running) {
+        if (this.running != null && this.running == running) {
+            return false;
+        }
+        this.running = running;
+        version++;
+        return true;
+    }
+
+    private boolean setIncremental(boolean incremental) {
+        if (this.incremental != null && this.incremental == incremental) {
+            return false;
+        }
+        this.incremental = incremental;
+        version++;
+        return true;
+    }
+
+    synchronized void setFirmwareVersion(String firmwareVersion) {
+        if (firmwareVersion != null && !firmwareVersion.equals(this.firmwareVersion)) {
+            this.firmwareVersion = firmwareVersion;
+            version++;
+        }
+    }
+
+    /**
+     * Forget everything, for a divider that is started again. The version
+     * goes on counting.
+     */
+    synchronized void clear() {
+        incremental = null;
+        angleMessage = null;
+        angle = Double.NaN;
+        running = null;
+        firmwareVersion = null;
+        version++;
+    }
+
+    /**
+     * The response the divider would give to a command, if the command would
+     * not change anything and the answer is known. The caller checks that no
+     * command that changes the answer is queued or waiting for a response.
+     *
+     * @return the response or null if the command has to be sent
+     */
+    synchronized String answer(CommandToDivider.DividerCommand command, long nowNanos) {
+        String response = null;
+        switch (command) {
+            case SET_INCREMENTAL:
+                if (incremental != null && incremental) {
+                    response = "I1";
+                }
+                break;
+            case SET_ABSOLUTE:
+                if (incremental != null && !incremental) {
+                    response = "I0";
+                }
+                break;
+            case GET_STATUS:
+                if (running != null && nowNanos - runningTime < maxAgeNanos) {
+                    response = running ? "S3" : "S0";
+                }
+                break;
+            case GET_ANGLE:
+                if (angleMessage != null && nowNanos - angleTime < maxAgeNanos) {
+                    response = angleMessage;
+                }
+                break;
+            case GET_VERSION:
+                response = firmwareVersion;
+                break;
+            default:
+                break;
+        }
+        if (response != null) {
+            commandsElided++;
+        }
+        return response;
+    }
+
+    synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return true if the divider counts positions from the last one, false
+     * if from zero, null if not known
+     */
+    synchronized Boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * @return the last reported angle, NaN if not known
+     */
+    synchronized double getAngle() {
+        return angle;
+    }
+
+    /**
+     * @return the age in ms of the angle, -1 if not known
+     */
+    synchronized long getAngleAge(long nowNanos) {
+        return angleMessage == null ? -1 : (nowNanos - angleTime) / 1_000_000;
+    }
+
+    /**
+     * @return true if a program runs, null if not known
+     */
+    synchronized Boolean isRunning() {
+        return running;
+    }
+
+    synchronized String getFirmwareVersion() {
+        return firmwareVersion;
+    }
+
+    /**
+     * @return the number of commands that were answered from the state
+     * instead of being sent
+     */
+    synchronized long getCommandsElided() {
+        return commandsElided;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Device state version " + version + ": incremental " + incremental + ", angle "
+                + angle + ", running " + running + ", firmware " + firmwareVersion + ", "
+                + commandsElided + " commands answered without sending";
+    }
+
+}
@@ -18,7 +18,6 @@
  */
 package dividercontroller;
 
-import com.google.common.eventbus.EventBus;
 import javafx.application.Application;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
@@ -32,8 +31,10 @@ import javafx.stage.Stage;
 public class DividerController extends Application {
 
     FXMLDocumentController controller;
+    DividerManager dividerManager;
     ArduinoDivider arduinoDivider;
-    EventBus eventBus;
+    EventRouter eventBus;
+    PortDiscovery portDiscovery;
 
     @Override
     public void start(Stage stage) throws Exception {
@@ -45,14 +46,45 @@ public class DividerController extends Application {
 
         controller = loader.<FXMLDocumentController>getController();
         eventBus = ProjectEventBus.getInstance();
-        arduinoDivider = new ArduinoDivider(eventBus);
+        dividerManager = new DividerManager(getThreadModel());
+        arduinoDivider = dividerManager.addDivider(eventBus, null);
         arduinoDivider.startDivider();
         controller.setArduinoDivider(arduinoDivider);
+        startPortDiscovery();
 
         stage.show();
 
     }
 
+    // Look for dividers on the other ports. If the configured serial port is
+    // gone and one divider is found, that port is used.
+    private void startPortDiscovery() {
+        Configuration config = Configuration.getConfiguration();
+        portDiscovery = new PortDiscovery(port -> arduinoDivider.isRunning() && port.equals(config.getCommPort()));
+        portDiscovery.setListener(dividers -> {
+            String commPort = config.getCommPort();
+            if (dividers.size() != 1 || SerialCommHandler.getAvailablePorts().contains(commPort)
+                    || TcpTransport.isTcpPortName(commPort) || PtyTransport.isPtyPortName(commPort)) {
+                return;
+            }
+            String port = dividers.keySet().iterator().next();
+            Utils.debugOutput("Using the divider found on " + port, 2);
+            config.setCommPort(port);
+        });
+        config.setPortDiscovery(portDiscovery);
+        portDiscovery.startWatching();
+    }
+
+    // The thread model from the configuration, or from --threadModel=NAME
+    // on the command line.
+    private ThreadModel getThreadModel() {
+        String name = getParameters().getNamed().get("threadModel");
+        if (name != null) {
+            return ThreadModel.fromName(name);
+        }
+        return Configuration.getConfiguration().getThreadModel();
+    }
+
     /**
      * @param args the command line arguments
      */
@@ -62,6 +94,8 @@ public class DividerController extends Application {
 
     @Override
     public void stop() {
-        arduinoDivider.stopThreads();
+        controller.stopThreads();
+        portDiscovery.close();
+        dividerManager.shutdown();
     }
 }
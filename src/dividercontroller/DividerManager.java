@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Runs several dividers in one process. Each divider has its own port
+ * settings, state machine and EventRouter, so events from one divider are
+ * only seen by those that subscribe to its router.
+ *
+ * With ThreadModel.POOL all of them share one small scheduling pool and one
+ * selector thread instead of having threads of their own. With VIRTUAL each
+ * divider has two virtual threads, and the pool and the selector thread are
+ * shared by the simulators and transports. With PLATFORM each divider, its
+ * transport and its simulator have their own threads like a single divider
+ * always had. Dividers on jSSC serial ports and pseudo terminals get the
+ * reader thread of their port in every model.
+ */
+public class DividerManager {
+
+    // The longest time in ms to wait for all dividers to stop.
+    private static final long STOP_TIMEOUT = 2000;
+
+    private final ThreadModel threadModel;
+    // Null with ThreadModel.PLATFORM.
+    private final ScheduledExecutorService pool;
+    private final SelectorLoop selectorLoop;
+    private final List<ArduinoDivider> dividers = new ArrayList<>();
+
+    /**
+     * A manager with one pool thread per processor, but at least two.
+     */
+    public DividerManager(ThreadModel threadModel) throws IOException {
+        this(threadModel, Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @param threadModel how the divider tasks are run. VIRTUAL falls back
+     * to PLATFORM if the JVM has no virtual threads.
+     * @param poolSize the number of threads in the shared pool
+     */
+    public DividerManager(ThreadModel threadModel, int poolSize) throws IOException {
+        this.threadModel = threadModel.supported();
+        if (this.threadModel == ThreadModel.PLATFORM) {
+            pool = null;
+            selectorLoop = null;
+            return;
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(poolSize, r -> {
+            Thread thread = new Thread(r, "DividerPool-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // The send timers are cancelled and set again all the time.
+        executor.setRemoveOnCancelPolicy(true);
+        pool = executor;
+        selectorLoop = new SelectorLoop("DividerSelector");
+    }
+
+    /**
+     * Add a divider on the given port. It is started with startDivider or
+     * startAll.
+     */
+    public ArduinoDivider addDivider(ComPortParameters portParameters) {
+        return addDivider(new EventRouter(), portParameters);
+    }
+
+    /**
+     * Add a divider with a given event scope.
+     *
+     * @param portParameters the port, null for the port in the configuration
+     */
+    public synchronized ArduinoDivider addDivider(EventRouter eventBus, ComPortParameters portParameters) {
+        ArduinoDivider divider = new ArduinoDivider(eventBus, portParameters, threadModel, pool, selectorLoop);
+        dividers.add(divider);
+        return divider;
+    }
+
+    /**
+     * @return the model in use, which may differ from the one asked for
+     */
+    public ThreadModel getThreadModel() {
+        return threadModel;
+    }
+
+    public synchronized List<ArduinoDivider> getDividers() {
+        return Collections.unmodifiableList(new ArrayList<>(dividers));
+    }
+
+    public synchronized void startAll() {
+        for (ArduinoDivider divider : dividers) {
+            divider.startDivider();
+        }
+    }
+
+    /**
+     * Stop all dividers, waiting at most STOP_TIMEOUT ms in all.
+     *
+     * @return true if the tasks of all dividers ended in time
+     */
+    public synchronized boolean stopAll() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STOP_TIMEOUT);
+        boolean stopped = true;
+        for (ArduinoDivider divider : dividers) {
+            stopped &= divider.stop(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+        return stopped;
+    }
+
+    /**
+     * Stop the dividers for good and then the shared threads. Waits at most
+     * STOP_TIMEOUT ms for the dividers and a second for the pool.
+     */
+    public synchronized void shutdown() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STOP_TIMEOUT);
+        for (ArduinoDivider divider : dividers) {
+            divider.shutdown(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+        if (pool == null) {
+            return;
+        }
+        pool.shutdownNow();
+        try {
+            selectorLoop.close();
+            pool.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (IOException ex) {
+            Utils.debugOutput("IOException " + ex.getMessage(), 3);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -24,10 +24,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.List;
 import javafx.stage.FileChooser;
 
 /**
@@ -37,58 +34,50 @@ import javafx.stage.FileChooser;
 class DividerProgram {
 
     private String program;
-    private String dividerProgramText;
+    private ProgramParser parser;
 
     public DividerProgram(String program) {
         this.program = program;
-        errString = "";
     }
 
     public DividerProgram() {
-        errString = "";
         program = "";
     }
 
-    private static final String SYNTAX_CHECK_REGEX = "^((B-*\\d+\\.?\\d*)|(G\\d+)|(D\\d+)|(F\\d+)|(M\\d+)|(P-*\\d+\\.?\\d*,-*\\d+\\.?\\d*)|R|R[\\+-])$";
+    private ProgramParser getParser() {
+        if (parser == null) {
+            parser = new ProgramParser(program);
+        }
+        return parser;
+    }
 
     public boolean isSyntaxOk() {
-        boolean syntaxIsOk = true;
-        if (!program.isEmpty()) {
-            String text[] = program.split("\\\n");
-            for (int i = 0; i < text.length; i++) {
-                // first remove all comments and whitespace
-                String s = text[i].replaceAll("\\((.*?)\\)|\\s", "");
-                s = s.toUpperCase();
-                Pattern allowed = Pattern.compile(SYNTAX_CHECK_REGEX);
-                Matcher matcher = allowed.matcher(s);
-                if (!matcher.find()) {
-                    errString += "Syntaxfel i rad: " + text[i] + "\n";
-                    syntaxIsOk = false;
-                }
-            }
-        } else {
-            errString = "Filen tom.";
-            syntaxIsOk = false;
-        }
-        return syntaxIsOk;
+        return !program.isEmpty() && getParser().getSyntaxErrors().isEmpty();
     }
-    private String errString;
 
     String getDownloadToArduinoText() {
-        String text[] = program.split("\\\n");
-        dividerProgramText = "";
-        for (int i = 0; i < text.length; i++) {
-            // first remove all comments and whitespace
-            String s = text[i].replaceAll("\\((.*?)\\)|\\s", "");
-            s = s.toUpperCase();
-            dividerProgramText += s;
-        }
+        String dividerProgramText = getParser().getDownloadText();
         Utils.debugOutput("DPT :" + dividerProgramText,2);
         return dividerProgramText;
     }
 
+    List<ProgramParser.Instruction> getInstructions() {
+        return getParser().getInstructions();
+    }
+
+    List<ProgramParser.SyntaxError> getSyntaxErrors() {
+        return getParser().getSyntaxErrors();
+    }
+
     public String getSyntaxErrorMessage() {
-        return errString;
+        if (program.isEmpty()) {
+            return "Filen tom.";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (ProgramParser.SyntaxError syntaxError : getParser().getSyntaxErrors()) {
+            sb.append(syntaxError).append('\n');
+        }
+        return sb.toString();
     }
 
     public void openFromDisc() {
@@ -100,6 +89,7 @@ class DividerProgram {
         File file = fc.showOpenDialog(null);
         if (file != null) {
             program = readFromFile(file.getAbsolutePath()).replaceAll("\\r", "");
+            parser = null;
 
         }
     }
@@ -0,0 +1,547 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Software model of the Arduino divider. It speaks the same protocol as the
+ * firmware, see the class comment of ArduinoDivider, so the host side can be
+ * run and measured without the hardware.
+ *
+ * Bytes written by the host are handled in order on the simulator strand,
+ * which runs on the simulator's own thread or on a pool shared with other
+ * simulators.
+ * Like the firmware the simulator does one thing at a time, a command that
+ * arrives while the table is moving is handled when the move is finished.
+ * Every response is delayed by the configured response delay and moves take
+ * the time given by the configured speed. Angles are rounded to whole motor
+ * steps.
+ *
+ * The simulator can also use the binary protocol, see BinaryProtocol. It
+ * starts in the text protocol each time the port is opened.
+ *
+ * With a boot time the simulator throws away what the host sends for a while
+ * after the port is opened, like an Arduino that is reset by the port and
+ * runs its bootloader.
+ */
+class DividerSimulator {
+
+    static final String PORT_NAME = "SIMULATOR";
+    static final String FIRMWARE_VERSION = "V1.2 SIM " + BinaryProtocol.CAPABILITY + " "
+            + BinaryProtocol.CHUNK_CAPABILITY + " " + ProgramFingerprint.CAPABILITY + " "
+            + ProgramDelta.CAPABILITY + " " + CommandScheduler.JOG_CAPABILITY;
+
+    static final int DEFAULT_STEPS_PER_REVOLUTION = 14400;
+    static final double DEFAULT_DEGREES_PER_SECOND = 90;
+    static final long DEFAULT_RESPONSE_DELAY = 2;
+    static final long DEFAULT_BOOT_TIME = 0;
+
+    // Time without new digits that ends a position value.
+    private static final long POSITION_VALUE_TIMEOUT = 20;
+
+    private static final byte ETB_CHAR = FrameReceiver.ETB_CHAR;
+    private static final byte EOF_CHAR = FrameReceiver.EOF_CHAR;
+
+    /**
+     * Receives the bytes the simulated divider sends to the host.
+     */
+    interface OutputListener {
+
+        void onOutput(byte[] data);
+    }
+
+    private enum InputState {
+        Command,
+        PositionValue,
+        Program
+    }
+
+    private final int stepsPerRevolution;
+    private final double degreesPerSecond;
+    private final long responseDelay;
+    // Time in ms after the port is opened that the bootloader runs. Set
+    // before the port is opened.
+    private long bootTime = DEFAULT_BOOT_TIME;
+
+    // Set when the simulator has its own thread.
+    private final ScheduledExecutorService ownExecutor;
+    private final Strand strand;
+    private volatile OutputListener outputListener;
+
+    // Divider state. Only touched on the simulator strand.
+    private InputState inputState = InputState.Command;
+    private final StringBuilder positionValue = new StringBuilder();
+    // The command the value is for, P or J.
+    private char valueCommand;
+    private ScheduledFuture<?> positionValueTimeout;
+    private final ByteArrayOutputStream programBuffer = new ByteArrayOutputStream();
+    // The chunks of a download in the binary protocol, by number.
+    private final TreeMap<Integer, byte[]> programChunks = new TreeMap<>();
+    private String program = "";
+    // The program being received is an edit script.
+    private boolean editScript = false;
+    private long positionInSteps = 0;
+    private boolean incrementalMode = false;
+    private boolean runningProgram = false;
+    // Set when the host has switched to the binary protocol.
+    private boolean binaryInput = false;
+    private boolean binaryOutput = false;
+    private final BinaryProtocol.Decoder frameDecoder = new BinaryProtocol.Decoder(this::handleFrame);
+    // Everything that arrives before this time, in System.nanoTime() units,
+    // is thrown away by the bootloader.
+    private long bootedAt = 0;
+    // The simulated divider is busy until this time, in System.nanoTime()
+    // units.
+    private long busyUntil = 0;
+
+    private static class PendingOutput {
+
+        final long time;
+        final byte[] data;
+
+        PendingOutput(long time, byte[] data) {
+            this.time = time;
+            this.data = data;
+        }
+    }
+
+    private final ArrayDeque<PendingOutput> outputQueue = new ArrayDeque<>();
+    private long lastOutputTime = 0;
+
+    DividerSimulator() {
+        this(DEFAULT_STEPS_PER_REVOLUTION, DEFAULT_DEGREES_PER_SECOND, DEFAULT_RESPONSE_DELAY);
+    }
+
+    /**
+     * @param stepsPerRevolution motor steps for one turn of the table
+     * @param degreesPerSecond speed of the table when moving
+     * @param responseDelay time in ms from a command is received until it is
+     * acknowledged
+     */
+    DividerSimulator(int stepsPerRevolution, double degreesPerSecond, long responseDelay) {
+        this(stepsPerRevolution, degreesPerSecond, responseDelay, null);
+    }
+
+    /**
+     * @param pool the pool to run on, null to start a thread for this
+     * simulator only
+     */
+    DividerSimulator(int stepsPerRevolution, double degreesPerSecond, long responseDelay,
+            ScheduledExecutorService pool) {
+        this.stepsPerRevolution = stepsPerRevolution;
+        this.degreesPerSecond = degreesPerSecond;
+        this.responseDelay = responseDelay;
+        if (pool == null) {
+            ownExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "DividerSimulator");
+                thread.setDaemon(true);
+                return thread;
+            });
+            pool = ownExecutor;
+        } else {
+            ownExecutor = null;
+        }
+        strand = new Strand("DividerSimulator", pool);
+    }
+
+    /**
+     * @param bootTime time in ms after the port is opened that the simulated
+     * divider does not listen, like an Arduino that is reset by the port
+     */
+    void setBootTime(long bootTime) {
+        this.bootTime = bootTime;
+    }
+
+    void setOutputListener(OutputListener outputListener) {
+        this.outputListener = outputListener;
+    }
+
+    /**
+     * Bytes written by the host.
+     */
+    void receive(byte[] data, int length) {
+        byte[] copy = Arrays.copyOf(data, length);
+        strand.execute(() -> {
+            if (System.nanoTime() - bootedAt < 0) {
+                return;
+            }
+            for (int i = 0; i < copy.length; i++) {
+                if (binaryInput) {
+                    frameDecoder.receive(copy, i, copy.length - i);
+                    return;
+                }
+                handleByte(copy[i]);
+            }
+        });
+    }
+
+    /**
+     * Called when the port is opened.
+     */
+    void connected() {
+        long now = System.nanoTime();
+        strand.execute(() -> {
+            bootedAt = now + TimeUnit.MILLISECONDS.toNanos(bootTime);
+            binaryInput = false;
+            binaryOutput = false;
+            frameDecoder.reset();
+            inputState = InputState.Command;
+        });
+    }
+
+    void shutdown() {
+        outputListener = null;
+        if (ownExecutor != null) {
+            ownExecutor.shutdownNow();
+        }
+    }
+
+    private void handleByte(byte b) {
+        switch (inputState) {
+            case Program:
+                if (b == EOF_CHAR) {
+                    inputState = InputState.Command;
+                    programReceived(new String(programBuffer.toByteArray(), StandardCharsets.ISO_8859_1));
+                    programBuffer.reset();
+                } else {
+                    programBuffer.write(b);
+                }
+                return;
+
+            case PositionValue:
+                if ((b >= '0' && b <= '9') || b == '.' || b == '-') {
+                    positionValue.append((char) b);
+                    restartPositionValueTimeout();
+                    return;
+                }
+                // Something else ends the value and is handled as a command.
+                endPositionValue();
+                break;
+
+            default:
+                break;
+        }
+        handleCommand((char) b);
+    }
+
+    private void handleCommand(char commandChar) {
+        long time;
+        switch (commandChar) {
+            case 'D':
+            case 'E':
+                programBuffer.reset();
+                editScript = commandChar == 'E';
+                inputState = InputState.Program;
+                respond(startCommand(), String.valueOf(commandChar));
+                break;
+            case 'U':
+                time = startCommand();
+                respond(time, "U");
+                if (binaryOutput) {
+                    respondRaw(time, BinaryProtocol.encodeProgram(program));
+                } else {
+                    respond(time, program);
+                    respondRaw(time, new byte[]{EOF_CHAR});
+                }
+                respond(time, "Upload finished");
+                break;
+            case 'R':
+                runningProgram = true;
+                respond(startCommand(), "R");
+                break;
+            case 'Q':
+                // Handled at once, also while moving.
+                runningProgram = false;
+                respond(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(responseDelay), "Q");
+                break;
+            case '+':
+                move(startCommand(), "+", positionInSteps + 1);
+                break;
+            case '-':
+                move(startCommand(), "-", positionInSteps - 1);
+                break;
+            case 'P':
+            case 'J':
+                positionValue.setLength(0);
+                valueCommand = commandChar;
+                inputState = InputState.PositionValue;
+                restartPositionValueTimeout();
+                break;
+            case '?':
+                respond(startCommand(), angleMessage());
+                break;
+            case 'S':
+                respond(startCommand(), runningProgram ? "S3" : "S0");
+                break;
+            case 'Z':
+                positionInSteps = 0;
+                time = startCommand();
+                respond(time, "Z");
+                respond(time, angleMessage());
+                break;
+            case 'I':
+                incrementalMode = true;
+                respond(startCommand(), "I1");
+                break;
+            case 'A':
+                incrementalMode = false;
+                respond(startCommand(), "I0");
+                break;
+            case 'V':
+                respond(startCommand(), FIRMWARE_VERSION);
+                break;
+            case 'C':
+                respond(startCommand(), "C" + ProgramFingerprint.of(program));
+                break;
+            case 'B':
+                // The answer is the last message in text, the host reads
+                // frames after it.
+                binaryInput = true;
+                respond(startCommand(), "B");
+                binaryOutput = true;
+                break;
+            default:
+                // Unknown bytes are ignored like in the firmware.
+                break;
+        }
+    }
+
+    private void handleFrame(byte type, byte[] data, int offset, int length) {
+        switch (type) {
+            case BinaryProtocol.TYPE_PROGRAM:
+                programBuffer.write(data, offset, length);
+                break;
+            case BinaryProtocol.TYPE_CHUNK:
+                if (length >= 2) {
+                    int chunk = BinaryProtocol.readShort(data, offset);
+                    // A chunk that is sent again replaces the first one.
+                    programChunks.put(chunk, Arrays.copyOfRange(data, offset + 2, offset + length));
+                    respond(startCommand(), "K" + chunk);
+                }
+                break;
+            case BinaryProtocol.TYPE_PROGRAM_END:
+                if (length == 2) {
+                    int chunkCount = BinaryProtocol.readShort(data, offset);
+                    if (programChunks.size() != chunkCount
+                            || (chunkCount > 0 && programChunks.lastKey() != chunkCount - 1)) {
+                        Utils.debugOutput("Simulator is missing chunks of the program", 3);
+                        programChunks.clear();
+                        break;
+                    }
+                    for (Map.Entry<Integer, byte[]> entry : programChunks.entrySet()) {
+                        programBuffer.write(entry.getValue(), 0, entry.getValue().length);
+                    }
+                    programChunks.clear();
+                }
+                try {
+                    programReceived(BinaryProtocol.unpackProgram(programBuffer.toByteArray(), 0, programBuffer.size()));
+                } catch (IllegalArgumentException ex) {
+                    Utils.debugOutput("Simulator got a bad program: " + ex.getMessage(), 3);
+                }
+                programBuffer.reset();
+                break;
+            case 'J':
+                if (length == 4) {
+                    int steps = BinaryProtocol.readInt(data, offset);
+                    move(startCommand(), "J" + steps, positionInSteps + steps);
+                }
+                break;
+            case 'P':
+                if (length == 4) {
+                    int hundredths = BinaryProtocol.readInt(data, offset);
+                    StringBuilder acknowledge = BinaryProtocol.appendHundredths(hundredths, true,
+                            new StringBuilder("P"));
+                    positionTo(hundredths / 100.0, acknowledge.toString());
+                }
+                break;
+            case 'D':
+            case 'E':
+                // The program or edit script comes in frames.
+                programBuffer.reset();
+                programChunks.clear();
+                editScript = type == 'E';
+                respond(startCommand(), String.valueOf((char) type));
+                break;
+            default:
+                if (length == 0) {
+                    handleCommand((char) type);
+                }
+                break;
+        }
+    }
+
+    // A program after D replaces the program, after E it is an edit script
+    // for it, see ProgramDelta.
+    private void programReceived(String text) {
+        if (!editScript) {
+            program = text;
+            respond(startCommand(), "Download finished");
+            return;
+        }
+        String editedProgram;
+        try {
+            editedProgram = ProgramDelta.apply(program, text);
+        } catch (IllegalArgumentException ex) {
+            Utils.debugOutput("Simulator got a bad edit script: " + ex.getMessage(), 3);
+            editedProgram = null;
+        }
+        if (editedProgram == null) {
+            respond(startCommand(), "Edit rejected");
+            return;
+        }
+        program = editedProgram;
+        respond(startCommand(), "Download finished");
+    }
+
+    private void restartPositionValueTimeout() {
+        if (positionValueTimeout != null) {
+            positionValueTimeout.cancel(false);
+        }
+        positionValueTimeout = strand.schedule(() -> {
+            if (inputState == InputState.PositionValue) {
+                endPositionValue();
+            }
+        }, POSITION_VALUE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    private void endPositionValue() {
+        inputState = InputState.Command;
+        if (positionValueTimeout != null) {
+            positionValueTimeout.cancel(false);
+            positionValueTimeout = null;
+        }
+        if (valueCommand == 'J') {
+            int steps;
+            try {
+                steps = Integer.parseInt(positionValue.toString());
+            } catch (NumberFormatException ex) {
+                return;
+            }
+            move(startCommand(), "J" + steps, positionInSteps + steps);
+            return;
+        }
+        double angle;
+        try {
+            angle = Double.parseDouble(positionValue.toString());
+        } catch (NumberFormatException ex) {
+            return;
+        }
+        positionTo(angle, "P" + positionValue);
+    }
+
+    private void positionTo(double angle, String acknowledge) {
+        long targetSteps = angleToSteps(angle);
+        if (incrementalMode) {
+            targetSteps += positionInSteps;
+        }
+        move(startCommand(), acknowledge, targetSteps);
+    }
+
+    // Acknowledge a move at once and report the new angle when the move is
+    // finished.
+    private void move(long time, String acknowledge, long targetSteps) {
+        respond(time, acknowledge);
+        double degrees = Math.abs(targetSteps - positionInSteps) * 360.0 / stepsPerRevolution;
+        long moveTime = (long) (degrees / degreesPerSecond * 1e9);
+        positionInSteps = targetSteps;
+        busyUntil = time + moveTime;
+        respond(busyUntil, angleMessage());
+    }
+
+    /**
+     * @return the time the response to a command just received is sent
+     */
+    private long startCommand() {
+        long time = Math.max(System.nanoTime(), busyUntil) + TimeUnit.MILLISECONDS.toNanos(responseDelay);
+        busyUntil = time;
+        return time;
+    }
+
+    private void respond(long time, String message) {
+        if (binaryOutput) {
+            respondRaw(time, BinaryProtocol.encodeMessage(message));
+            return;
+        }
+        byte[] text = message.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] frame = new byte[text.length + 1];
+        System.arraycopy(text, 0, frame, 0, text.length);
+        frame[text.length] = ETB_CHAR;
+        respondRaw(time, frame);
+    }
+
+    // The responses are sent in the order they were made, also when a later
+    // one would be due earlier.
+    private void respondRaw(long time, byte[] data) {
+        time = Math.max(time, lastOutputTime);
+        lastOutputTime = time;
+        outputQueue.add(new PendingOutput(time, data));
+        if (outputQueue.size() == 1) {
+            scheduleOutput();
+        }
+    }
+
+    private void scheduleOutput() {
+        long delay = outputQueue.peek().time - System.nanoTime();
+        strand.schedule(this::flushOutput, Math.max(0, delay), TimeUnit.NANOSECONDS);
+    }
+
+    private void flushOutput() {
+        long now = System.nanoTime();
+        while (!outputQueue.isEmpty() && outputQueue.peek().time - now <= 0) {
+            output(outputQueue.poll().data);
+        }
+        if (!outputQueue.isEmpty()) {
+            scheduleOutput();
+        }
+    }
+
+    private void output(byte[] data) {
+        OutputListener listener = outputListener;
+        if (listener != null) {
+            listener.onOutput(data);
+        }
+    }
+
+    private String angleMessage() {
+        return "A" + String.format(Locale.ROOT, "%.2f", positionInSteps * 360.0 / stepsPerRevolution);
+    }
+
+    private long angleToSteps(double angle) {
+        return Math.round(angle * stepsPerRevolution / 360.0);
+    }
+
+    String getProgram() {
+        return program;
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Posted for each chunk of a program download, see ProgramDownloader.
+ */
+public class DownloadProgressEvent {
+
+    private final long bytesDone;
+    private final long totalBytes;
+    private final long bytesPerSecond;
+    private final int retransmissions;
+
+    public DownloadProgressEvent(long bytesDone, long totalBytes, long bytesPerSecond, int retransmissions) {
+        this.bytesDone = bytesDone;
+        this.totalBytes = totalBytes;
+        this.bytesPerSecond = bytesPerSecond;
+        this.retransmissions = retransmissions;
+    }
+
+    /**
+     * @return the bytes written, or answered by the divider when it answers
+     * each chunk
+     */
+    public long getBytesDone() {
+        return bytesDone;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return the average speed since the download started
+     */
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @return the number of chunks that had to be sent again
+     */
+    public int getRetransmissions() {
+        return retransmissions;
+    }
+
+    /**
+     * @return done in percent
+     */
+    public int getPercent() {
+        return totalBytes == 0 ? 100 : (int) (bytesDone * 100 / totalBytes);
+    }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Delivers events to listeners, one channel per event class. A channel keeps
+ * its listeners in an array that is copied when a listener is added or
+ * removed, so posting is a loop over the array without locks, reflection or
+ * allocation. Code that posts often should keep the channel instead of
+ * looking it up for each event.
+ *
+ * A listener is called on the thread that posts the event, unless it was
+ * subscribed with an executor. An exception in a listener is logged and does
+ * not stop the delivery to the other listeners.
+ *
+ * Events that implement Reusable may be reused by the poster as soon as post
+ * returns. Listeners that are called on the posting thread must not keep the
+ * event, listeners with an executor get a copy.
+ */
+public class EventRouter {
+
+    private final ConcurrentHashMap<Class<?>, Channel<?>> channels = new ConcurrentHashMap<>();
+
+    /**
+     * An event that the poster reuses for the next event.
+     */
+    interface Reusable<E> {
+
+        /**
+         * @return a new event with the same content
+         */
+        E copy();
+    }
+
+    /**
+     * The listeners of one event class.
+     */
+    public static class Channel<E> {
+
+        private final Class<E> eventType;
+        private volatile Subscriber<E>[] subscribers = newArray(0);
+
+        private Channel(Class<E> eventType) {
+            this.eventType = eventType;
+        }
+
+        /**
+         * Deliver the event to all listeners.
+         */
+        public void post(E event) {
+            for (Subscriber<E> subscriber : subscribers) {
+                subscriber.deliver(event);
+            }
+        }
+
+        /**
+         * Add a listener that is called on the posting thread.
+         */
+        public void subscribe(Consumer<? super E> listener) {
+            subscribe(listener, null);
+        }
+
+        /**
+         * Add a listener that is called by the executor.
+         */
+        public synchronized void subscribe(Consumer<? super E> listener, Executor executor) {
+            Subscriber<E>[] newSubscribers = Arrays.copyOf(subscribers, subscribers.length + 1);
+            newSubscribers[subscribers.length] = new Subscriber<>(eventType, listener, executor);
+            subscribers = newSubscribers;
+        }
+
+        /**
+         * Remove a listener, the same instance as was subscribed.
+         */
+        public synchronized void unsubscribe(Consumer<? super E> listener) {
+            for (int i = 0; i < subscribers.length; i++) {
+                if (subscribers[i].listener == listener) {
+                    Subscriber<E>[] newSubscribers = newArray(subscribers.length - 1);
+                    System.arraycopy(subscribers, 0, newSubscribers, 0, i);
+                    System.arraycopy(subscribers, i + 1, newSubscribers, i, subscribers.length - i - 1);
+                    subscribers = newSubscribers;
+                    return;
+                }
+            }
+        }
+
+        public int getSubscriberCount() {
+            return subscribers.length;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <E> Subscriber<E>[] newArray(int length) {
+            return (Subscriber<E>[]) new Subscriber<?>[length];
+        }
+    }
+
+    private static class Subscriber<E> {
+
+        private final Class<E> eventType;
+        private final Consumer<? super E> listener;
+        private final Executor executor;
+
+        Subscriber(Class<E> eventType, Consumer<? super E> listener, Executor executor) {
+            this.eventType = eventType;
+            this.listener = listener;
+            this.executor = executor;
+        }
+
+        void deliver(E event) {
+            if (executor == null) {
+                call(event);
+            } else {
+                E eventToDeliver = event instanceof Reusable ? eventType.cast(((Reusable<?>) event).copy()) : event;
+                executor.execute(() -> call(eventToDeliver));
+            }
+        }
+
+        private void call(E event) {
+            try {
+                listener.accept(event);
+            } catch (RuntimeException ex) {
+                Utils.debugOutput("Exception in listener for " + eventType.getSimpleName() + ": " + ex, 3);
+            }
+        }
+    }
+
+    /**
+     * Get the channel for an event class. The same channel is returned for
+     * each call with the same class.
+     */
+    @SuppressWarnings("unchecked")
+    public <E> Channel<E> channel(Class<E> eventType) {
+        return (Channel<E>) channels.computeIfAbsent(eventType, Channel::new);
+    }
+
+    public <E> void subscribe(Class<E> eventType, Consumer<? super E> listener) {
+        channel(eventType).subscribe(listener);
+    }
+
+    public <E> void subscribe(Class<E> eventType, Consumer<? super E> listener, Executor executor) {
+        channel(eventType).subscribe(listener, executor);
+    }
+
+    /**
+     * Deliver an event to the listeners of its class. Events without
+     * listeners are dropped.
+     */
+    @SuppressWarnings("unchecked")
+    public void post(Object event) {
+        Channel<Object> channel = (Channel<Object>) channels.get(event.getClass());
+        if (channel != null) {
+            channel.post(event);
+        }
+    }
+
+}
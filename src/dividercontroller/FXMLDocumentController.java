@@ -18,11 +18,8 @@
  */
 package dividercontroller;
 
-import com.google.common.eventbus.EventBus;
-import com.google.common.eventbus.Subscribe;
 import static dividercontroller.Utils.showError;
 import java.net.URL;
-import java.text.DecimalFormat;
 import java.util.ResourceBundle;
 import javafx.application.Platform;
 import javafx.fxml.FXML;
@@ -34,6 +31,7 @@ import javafx.scene.control.CheckBox;
 import javafx.scene.control.Label;
 import javafx.scene.control.TextArea;
 import javafx.scene.control.TextField;
+import javafx.scene.control.TextFormatter;
 import javafx.scene.layout.Pane;
 
 /**
@@ -42,8 +40,19 @@ import javafx.scene.layout.Pane;
  */
 public class FXMLDocumentController implements Initializable {
 
-    private final EventBus eventBus = ProjectEventBus.getInstance();
+    private final EventRouter eventBus = ProjectEventBus.getInstance();
     private ArduinoDivider arduinoDivider;
+    private final ProgramValidator programValidator = new ProgramValidator(this::handleProgramValidated);
+
+    // Updates from the divider are shown once per pulse, only the latest of each.
+    private final UiUpdater uiUpdater = new UiUpdater();
+    private UiUpdater.DoubleSlot positionSlot;
+    private UiUpdater.ValueSlot<ArduinoDivider.DividerStatus> dividerStatusSlot;
+    private UiUpdater.ValueSlot<Boolean> incrementalSlot;
+    private UiUpdater.ValueSlot<String> statusMessageSlot;
+    private UiUpdater.ValueSlot<String> programErrorSlot;
+    // Reused for every position shown.
+    private final StringBuilder positionText = new StringBuilder();
 
     
     @FXML
@@ -57,6 +66,8 @@ public class FXMLDocumentController implements Initializable {
     @FXML
     private TextArea programTextArea;
     @FXML
+    private Label programErrorLabel;
+    @FXML
     private Button runBtn;
     @FXML
     private Button stopBtn;
@@ -177,12 +188,14 @@ public class FXMLDocumentController implements Initializable {
     
     @FXML 
     private void onSendButtonClicked() {
-        DividerProgram dividerProgram = new DividerProgram(programTextArea.getText());
-        if ( dividerProgram.isSyntaxOk() ) {
-            eventBus.post(new DownloadProgramMessage( dividerProgram.getDownloadToArduinoText()));
-        } else {
-            showError( dividerProgram.getSyntaxErrorMessage());
-        }
+        // The program is already checked, only the edits not yet done are waited for.
+        programValidator.getProgram().thenAcceptAsync(result -> {
+            if ( result.isSyntaxOk() ) {
+                eventBus.post(new DownloadProgramMessage( result.getDownloadText()));
+            } else {
+                showError( result.getSyntaxErrorMessage());
+            }
+        }, Platform::runLater);
     }
     
     @FXML
@@ -217,11 +230,34 @@ public class FXMLDocumentController implements Initializable {
     
     private void actionSaveProgram() {
         DividerProgram dividerProgram = new DividerProgram(programTextArea.getText());
-        if ( dividerProgram.isSyntaxOk() ) {
-            dividerProgram.saveToDisc();
+        programValidator.getProgram().thenAcceptAsync(result -> {
+            if ( result.isSyntaxOk() ) {
+                dividerProgram.saveToDisc();
+            } else {
+                showError("Syntaxfel. Kan inte sparas");
+            }
+        }, Platform::runLater);
+    }
+
+    // Called on the validator thread.
+    private void handleProgramValidated(ProgramValidator.Result result) {
+        String errorText;
+        if (result.getErrorCount() == 0) {
+            errorText = "";
         } else {
-            showError("Syntaxfel. Kan inte sparas");
+            StringBuilder sb = new StringBuilder("Syntaxfel i rad ");
+            for (int i = 0; i < result.getSyntaxErrors().size(); i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(result.getSyntaxErrors().get(i).getLineNumber());
+            }
+            if (result.getErrorCount() > result.getSyntaxErrors().size()) {
+                sb.append(" ... (").append(result.getErrorCount()).append(" rader)");
+            }
+            errorText = sb.toString();
         }
+        programErrorSlot.set(errorText);
     }
     
     @FXML
@@ -239,7 +275,6 @@ public class FXMLDocumentController implements Initializable {
         showAboutBox();
     }
     
-    @Subscribe
     private void handleEventBusEvent(FromArduinoMessageEvent event) {
         switch (event.getCommand()) {
             case COMMUNICATION_STARTED:
@@ -249,51 +284,29 @@ public class FXMLDocumentController implements Initializable {
 
             case PROGRAM_IS_HALTED:
                 //System.out.println("Got event Program is halted");
-                Platform.runLater(() -> {
-                    setControlsForHaltedProgram();
-                });
-
+                dividerStatusSlot.set(ArduinoDivider.DividerStatus.WaitingForCommand);
                 break;
 
             case PROGRAM_IS_RUNNING:
                 //System.out.println("Got event Program is running");
-                Platform.runLater(() -> {
-                    setControlsForRunningProgram();
-                });
-
+                dividerStatusSlot.set(ArduinoDivider.DividerStatus.RunningProgram);
                 break;
 
             case GOT_STATUS:
                 // System.out.println("got event " + event.getMessageType());
-                Platform.runLater(() -> {
-                    enableOrDisableUIControls(arduinoDivider.getDividerStatus());
-                });
-                
+                dividerStatusSlot.set(arduinoDivider.getDividerStatus());
                 break;
 
             case GOT_POSITION:
-                double position = event.getValue();
-                //System.out.println("Position :" + position);
-                //System.out.println("Got event " + event.getMessageType());
-                DecimalFormat df = new DecimalFormat("0.00");
-                String positionText = df.format(position).replaceAll(",", ".");
-               
-                //System.out.println("positionText :" + positionText);
-                Platform.runLater(() -> {
-                    currPosLabel.setText(positionText);
-                });
+                positionSlot.set(event.getValue());
                 break;
                 
             case INCREMENTAL_IS_OFF:
-                Platform.runLater(() -> {
-                    incCheckBox.setSelected(false);
-                });
+                incrementalSlot.set(false);
                 break;
 
             case INCREMENTAL_IS_ON:
-                Platform.runLater(() -> {
-                    incCheckBox.setSelected(true);
-                });
+                incrementalSlot.set(true);
                 break;
 
             default:
@@ -301,24 +314,46 @@ public class FXMLDocumentController implements Initializable {
         }
     }
     
-    @Subscribe
     private void handleUploadedProgramMessage( UploadedProgramMessage message ) {
         programTextArea.clear();
         programTextArea.setText(message.getCleanedUpText());
     }
     
-    @Subscribe
+    private void handleUploadedLinesMessage(UploadedLinesMessage message) {
+        if (message.isFirst()) {
+            programTextArea.clear();
+        }
+        programTextArea.appendText(message.getLines());
+        if (message.isTruncated()) {
+            statusMessageSlot.set("Programmet är för långt, slutet saknas");
+        }
+    }
+
     private void handleArduinoStatusMessageEvent( ArduinoStatusMessageEvent asmEvent ) {
-        Platform.runLater( () -> {
-            String message = asmEvent.getStatusMessage();
-            if ( message!=null ) {
-                statusLabel.setText(asmEvent.getStatusMessage());
-            }
-        });
+        String message = asmEvent.getStatusMessage();
+        if ( message!=null ) {
+            statusMessageSlot.set(message);
+        }
+    }
+
+    private void handleDownloadProgressEvent(DownloadProgressEvent event) {
+        statusMessageSlot.set("Skickar program " + event.getPercent() + " % ("
+                + event.getBytesPerSecond() + " B/s)");
+    }
+
+    // On the FX thread.
+    private void showPosition(double position) {
+        positionText.setLength(0);
+        Utils.formatPosition(position, positionText);
+        // Only a changed position makes a new string.
+        if (!currPosLabel.getText().contentEquals(positionText)) {
+            currPosLabel.setText(positionText.toString());
+        }
     }
 
     void stopThreads() {
-        arduinoDivider.stopThreads();
+        programValidator.shutdown();
+        Utils.debugOutput(uiUpdater.toString(), 2);
     }
 
     private void setControlsForRunningProgram() {
@@ -371,8 +406,41 @@ public class FXMLDocumentController implements Initializable {
 
     @Override
     public void initialize(URL location, ResourceBundle resources) {
-        eventBus.register(this);
+        positionSlot = uiUpdater.addDoubleSlot(this::showPosition);
+        dividerStatusSlot = uiUpdater.addSlot(this::enableOrDisableUIControls);
+        incrementalSlot = uiUpdater.addSlot(incCheckBox::setSelected);
+        statusMessageSlot = uiUpdater.addSlot(statusLabel::setText);
+        programErrorSlot = uiUpdater.addSlot(programErrorLabel::setText);
+        eventBus.subscribe(FromArduinoMessageEvent.class, this::handleEventBusEvent);
+        eventBus.subscribe(UploadedProgramMessage.class, this::handleUploadedProgramMessage, Platform::runLater);
+        eventBus.subscribe(UploadedLinesMessage.class, this::handleUploadedLinesMessage, Platform::runLater);
+        eventBus.subscribe(ArduinoStatusMessageEvent.class, this::handleArduinoStatusMessageEvent);
+        eventBus.subscribe(DownloadProgressEvent.class, this::handleDownloadProgressEvent);
         disableAllControls();
+        // Every change of the program text goes to the validator. The text
+        // area leaves out the control characters after the formatter, they
+        // are taken out here so that the validator gets the same text.
+        programTextArea.setTextFormatter(new TextFormatter<String>(change -> {
+            change.setText(withoutControlCharacters(change.getText()));
+            programValidator.edit(change.getRangeStart(), change.getRangeEnd(), change.getText());
+            return change;
+        }));
+    }
+
+    // The characters a TextArea does not keep: control characters except
+    // tab and newline, and DEL. A pasted "\r\n" becomes "\n".
+    private static String withoutControlCharacters(String text) {
+        StringBuilder sb = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            boolean kept = c != 0x7F && (c >= 0x20 || c == '\n' || c == '\t');
+            if (!kept && sb == null) {
+                sb = new StringBuilder(text.length()).append(text, 0, i);
+            } else if (kept && sb != null) {
+                sb.append(c);
+            }
+        }
+        return sb == null ? text : sb.toString();
     }
 
     void setRoot(Parent root) {
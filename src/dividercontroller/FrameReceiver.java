@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Receive engine for the serial line. Bytes are fed in bulk as they are read
+ * from the port and copied into a reusable frame buffer. EOF, CR and LF are
+ * filtered out on the way in, and each ETB (23) completes a frame which is
+ * handed to the FrameListener. No objects are allocated per byte or per frame
+ * in here, the listener decides what to do with the bytes.
+ */
+class FrameReceiver {
+
+    static final byte ETB_CHAR = 23;
+    static final byte EOF_CHAR = 27;
+    static final byte LF_CHAR = 10;
+    static final byte CR_CHAR = 13;
+
+    /**
+     * Called for each complete frame. The buffer is reused for the next frame
+     * so the listener must copy what it wants to keep before returning.
+     */
+    interface FrameListener {
+
+        void onFrame(byte[] frame, int length);
+    }
+
+    private final byte[] frameBuffer;
+    private final FrameListener frameListener;
+    private int numBytesInBuffer = 0;
+    // Set by the listener to make receive return after the current frame.
+    private boolean stopAfterFrame = false;
+
+    // Statistics
+    private long bytesReceived = 0;
+    private long framesReceived = 0;
+    private long bufferOverruns = 0;
+
+    FrameReceiver(int bufferSize, FrameListener frameListener) {
+        this.frameBuffer = new byte[bufferSize];
+        this.frameListener = frameListener;
+    }
+
+    /**
+     * Scan a chunk of received bytes in one pass.
+     *
+     * @param data the bytes read from the port
+     * @param offset start of the received bytes in data
+     * @param length number of received bytes
+     * @return the number of bytes used, less than length only if the listener
+     * called stopAfterFrame
+     */
+    int receive(byte[] data, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            byte readByte = data[i];
+            switch (readByte) {
+                case ETB_CHAR:
+                    // etb received. The frame is complete.
+                    if (numBytesInBuffer > 0) {
+                        framesReceived++;
+                        frameListener.onFrame(frameBuffer, numBytesInBuffer);
+                        numBytesInBuffer = 0;
+                        if (stopAfterFrame) {
+                            stopAfterFrame = false;
+                            bytesReceived += i + 1 - offset;
+                            return i + 1 - offset;
+                        }
+                    }
+                    break;
+                case EOF_CHAR:
+                case CR_CHAR:
+                case LF_CHAR:
+                    break;
+                default:
+                    frameBuffer[numBytesInBuffer++] = readByte;
+                    if (numBytesInBuffer >= frameBuffer.length) {
+                        Utils.debugOutput("Buffer Overrun!!", 3);
+                        bufferOverruns++;
+                        numBytesInBuffer = 0;
+                    }
+                    break;
+            }
+        }
+        bytesReceived += length;
+        return length;
+    }
+
+    /**
+     * Called by the listener to make receive return after the frame it is
+     * given, so that the bytes after it can be handed to another receiver.
+     * Used when the divider switches to the binary protocol.
+     */
+    void stopAfterFrame() {
+        stopAfterFrame = true;
+    }
+
+    /**
+     * Throw away a partially received frame, for instance when the port is
+     * reopened.
+     */
+    void reset() {
+        numBytesInBuffer = 0;
+        stopAfterFrame = false;
+    }
+
+    long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    long getFramesReceived() {
+        return framesReceived;
+    }
+
+    long getBufferOverruns() {
+        return bufferOverruns;
+    }
+
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Bounded single producer / single consumer ring of received frames. The
+ * serial event thread is the only producer and the message receiver task the
+ * only consumer. All slots are allocated up front and hold the raw bytes of a
+ * frame, so nothing is allocated when a frame passes through the ring.
+ *
+ * When the ring is full the newest frame is dropped and counted, the producer
+ * never blocks. A consumer that finds the ring empty parks until the producer
+ * publishes a frame, the timeout runs out or it is woken up.
+ */
+class FrameRing {
+
+    private final byte[][] slots;
+    private final int[] slotLengths;
+    private final int mask;
+
+    // Next slot to read. Only written by the consumer.
+    private final AtomicLong head = new AtomicLong();
+    // Next slot to write. Only written by the producer.
+    private final AtomicLong tail = new AtomicLong();
+
+    private volatile Thread waitingConsumer;
+    // Set by wakeUp, makes take return without a frame.
+    private volatile boolean wakeUpRequested;
+
+    // Statistics
+    private final AtomicLong framesOffered = new AtomicLong();
+    private final AtomicLong framesDropped = new AtomicLong();
+    private final AtomicLong framesTruncated = new AtomicLong();
+    private volatile int highWaterMark;
+
+    /**
+     * @param capacity number of frames the ring can hold. Rounded up to a
+     * power of two.
+     * @param slotSize maximum number of bytes in one frame
+     */
+    FrameRing(int capacity, int slotSize) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        slots = new byte[size][slotSize];
+        slotLengths = new int[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Called by the producer. Copies the frame into the next free slot.
+     *
+     * @return false if the ring was full and the frame was dropped
+     */
+    boolean offer(byte[] frame, int length) {
+        framesOffered.incrementAndGet();
+        long currentTail = tail.get();
+        int used = (int) (currentTail - head.get());
+        if (used >= slots.length) {
+            framesDropped.incrementAndGet();
+            return false;
+        }
+        int index = (int) currentTail & mask;
+        byte[] slot = slots[index];
+        if (length > slot.length) {
+            framesTruncated.incrementAndGet();
+            length = slot.length;
+        }
+        System.arraycopy(frame, 0, slot, 0, length);
+        slotLengths[index] = length;
+        tail.set(currentTail + 1);
+        if (used + 1 > highWaterMark) {
+            highWaterMark = used + 1;
+        }
+
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * Called by the consumer. Copies the oldest frame into dest without
+     * waiting.
+     *
+     * @return the frame length or -1 if the ring is empty
+     */
+    int poll(byte[] dest) {
+        long currentHead = head.get();
+        if (currentHead == tail.get()) {
+            return -1;
+        }
+        int index = (int) currentHead & mask;
+        int length = Math.min(slotLengths[index], dest.length);
+        System.arraycopy(slots[index], 0, dest, 0, length);
+        head.lazySet(currentHead + 1);
+        return length;
+    }
+
+    /**
+     * Called by the consumer. Copies the oldest frame into dest, parking until
+     * one arrives if the ring is empty.
+     *
+     * @return the frame length or -1 if the timeout ran out, the thread was
+     * interrupted or wakeUp was called
+     */
+    int take(byte[] dest, long timeout, TimeUnit unit) {
+        int length = poll(dest);
+        if (length >= 0) {
+            return length;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        waitingConsumer = Thread.currentThread();
+        try {
+            while ((length = poll(dest)) < 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+                    return -1;
+                }
+                if (wakeUpRequested) {
+                    wakeUpRequested = false;
+                    return -1;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+            return length;
+        } finally {
+            waitingConsumer = null;
+        }
+    }
+
+    /**
+     * Make the consumer return from take, at once if it is waiting or else
+     * the next time it finds the ring empty. Can be called from any thread.
+     */
+    void wakeUp() {
+        wakeUpRequested = true;
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Convenience for consumers that want the frame as a string.
+     *
+     * @return the oldest frame or null if the ring is empty
+     */
+    String pollString(byte[] scratch) {
+        int length = poll(scratch);
+        return length < 0 ? null : new String(scratch, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Blocking variant of pollString.
+     *
+     * @return the oldest frame or null if nothing arrived before the timeout
+     */
+    String takeString(byte[] scratch, long timeout, TimeUnit unit) {
+        int length = take(scratch, timeout, unit);
+        return length < 0 ? null : new String(scratch, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    int getSlotSize() {
+        return slots[0].length;
+    }
+
+    long getFramesOffered() {
+        return framesOffered.get();
+    }
+
+    long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    long getFramesTruncated() {
+        return framesTruncated.get();
+    }
+
+    int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+}
@@ -21,8 +21,10 @@ package dividercontroller;
 /**
  *
  * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * The message receiver task reuses one event for all messages.
  */
-class FromArduinoMessageEvent {
+class FromArduinoMessageEvent implements EventRouter.Reusable<FromArduinoMessageEvent> {
 
     MessageType getCommand() {
         return messageType;
@@ -72,4 +74,18 @@ class FromArduinoMessageEvent {
         this.value = value;
     }
 
+    /**
+     * Set both fields, for reuse of the event.
+     */
+    public FromArduinoMessageEvent set(MessageType messageType, double value) {
+        this.messageType = messageType;
+        this.value = value;
+        return this;
+    }
+
+    @Override
+    public FromArduinoMessageEvent copy() {
+        return new FromArduinoMessageEvent(messageType, value);
+    }
+
 }
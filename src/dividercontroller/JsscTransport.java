@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.io.IOException;
+import java.util.Arrays;
+import jssc.SerialPort;
+import jssc.SerialPortException;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Transport over a real serial port using jSSC.
+ */
+class JsscTransport implements SerialTransport {
+
+    private final SerialPort serialPort;
+    private volatile Listener listener;
+
+    JsscTransport(String portName) {
+        serialPort = new SerialPort(portName);
+    }
+
+    @Override
+    public void open(ComPortParameters parameters) throws IOException {
+        try {
+            serialPort.openPort();
+            serialPort.setParams(parameters.getBaudRate(),
+                    parameters.getDataBits(),
+                    parameters.getStopBits(),
+                    parameters.getParity());
+            serialPort.addEventListener(event -> {
+                Listener currentListener = listener;
+                if (event.isRXCHAR() && currentListener != null) {
+                    currentListener.dataAvailable();
+                }
+            }, SerialPort.MASK_RXCHAR);
+        } catch (SerialPortException ex) {
+            throw new IOException(ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (serialPort.isOpened()) {
+                serialPort.removeEventListener();
+                serialPort.closePort();
+            }
+        } catch (SerialPortException ex) {
+            throw new IOException(ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return serialPort.isOpened();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        try {
+            int availableBytes = serialPort.getInputBufferBytesCount();
+            if (availableBytes <= 0) {
+                return 0;
+            }
+            // jSSC always hands out a new array, copy it into the caller's.
+            byte[] readBytes = serialPort.readBytes(Math.min(availableBytes, length));
+            System.arraycopy(readBytes, 0, buffer, offset, readBytes.length);
+            return readBytes.length;
+        } catch (SerialPortException ex) {
+            throw new IOException(ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        try {
+            if (offset == 0 && length == data.length) {
+                serialPort.writeBytes(data);
+            } else {
+                serialPort.writeBytes(Arrays.copyOfRange(data, offset, offset + length));
+            }
+        } catch (SerialPortException ex) {
+            throw new IOException(ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public void write(byte singleByte) throws IOException {
+        try {
+            serialPort.writeByte(singleByte);
+        } catch (SerialPortException ex) {
+            throw new IOException(ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public String getName() {
+        return serialPort.getPortName();
+    }
+
+}
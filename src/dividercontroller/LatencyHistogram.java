@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Simple thread safe latency histogram with fixed 1-2-5 buckets from 100 us
+ * up to 10 s. Used to keep track of how long commands wait before they are
+ * written to the serial port.
+ */
+class LatencyHistogram {
+
+    // Upper bounds of the buckets in microseconds. The last bucket takes
+    // everything above the last bound.
+    private static final long[] BUCKET_LIMITS_US = {
+        100, 200, 500,
+        1000, 2000, 5000,
+        10000, 20000, 50000,
+        100000, 200000, 500000,
+        1000000, 2000000, 5000000,
+        10000000
+    };
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_LIMITS_US.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    void record(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+        int bucket = 0;
+        while (bucket < BUCKET_LIMITS_US.length && micros > BUCKET_LIMITS_US[bucket]) {
+            bucket++;
+        }
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    double getMeanMicros() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) totalMicros.get() / n;
+    }
+
+    /**
+     * Get the upper bound of the bucket that holds the given percentile.
+     *
+     * @param percentile 0 - 100
+     * @return the bucket limit in microseconds, or the max value for the
+     * open ended bucket
+     */
+    long getPercentileMicros(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long wanted = (long) Math.ceil(n * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_LIMITS_US.length; i++) {
+            seen += buckets.get(i);
+            if (seen >= wanted) {
+                return BUCKET_LIMITS_US[i];
+            }
+        }
+        return maxMicros.get();
+    }
+
+    void reset() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        totalMicros.set(0);
+        maxMicros.set(0);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(name).append(": n=").append(getCount())
+                .append(String.format(" mean=%.1f ms", getMeanMicros() / 1000))
+                .append(" p50<=").append(formatMicros(getPercentileMicros(50)))
+                .append(" p99<=").append(formatMicros(getPercentileMicros(99)))
+                .append(" max=").append(formatMicros(getMaxMicros()))
+                .append('\n');
+        long lowerLimit = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            long n = buckets.get(i);
+            if (n > 0) {
+                if (i < BUCKET_LIMITS_US.length) {
+                    sb.append(String.format("  %8s - %8s : %d%n",
+                            formatMicros(lowerLimit), formatMicros(BUCKET_LIMITS_US[i]), n));
+                } else {
+                    sb.append(String.format("  %8s -          : %d%n", formatMicros(lowerLimit), n));
+                }
+            }
+            if (i < BUCKET_LIMITS_US.length) {
+                lowerLimit = BUCKET_LIMITS_US[i];
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String formatMicros(long micros) {
+        if (micros < 1000) {
+            return micros + " us";
+        } else if (micros < 1000000) {
+            return micros / 1000 + " ms";
+        }
+        return micros / 1000000 + " s";
+    }
+
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * The commands that are sent to the divider and are waiting for their
+ * responses, oldest first. The divider answers the commands in the order they
+ * were sent so a message completes the oldest waiting command that it is a
+ * response to.
+ *
+ * The send task adds commands and the message receiver task completes them,
+ * so all methods are synchronized.
+ */
+class PendingCommands {
+
+    private static final int MAX_OUTSTANDING_COMMANDS = 4;
+
+    private final ArrayDeque<CommandToDivider> pending = new ArrayDeque<>();
+
+    private final LatencyHistogram responseLatency = new LatencyHistogram("Command response time");
+
+    /**
+     * Check if a command may be sent now with regard to the commands that are
+     * already waiting for a response.
+     */
+    synchronized boolean canSend(CommandToDivider command) {
+        switch (command.getCommand().getPipelining()) {
+            case ALWAYS:
+                return true;
+            case EXCLUSIVE:
+                return pending.isEmpty();
+            default:
+                if (pending.size() >= MAX_OUTSTANDING_COMMANDS) {
+                    return false;
+                }
+                for (CommandToDivider waiting : pending) {
+                    if (waiting.getCommand().getPipelining() == CommandToDivider.Pipelining.EXCLUSIVE) {
+                        return false;
+                    }
+                }
+                return true;
+        }
+    }
+
+    /**
+     * Register a command that is about to be written to the divider.
+     */
+    synchronized void commandSent(CommandToDivider command) {
+        command.setSentTime(System.nanoTime());
+        pending.add(command);
+    }
+
+    /**
+     * Check if a matching command is waiting for its response.
+     */
+    synchronized boolean contains(Predicate<CommandToDivider> filter) {
+        return find(filter) != null;
+    }
+
+    /**
+     * @return the oldest matching command that is waiting for its response,
+     * or null if there is none
+     */
+    synchronized CommandToDivider find(Predicate<CommandToDivider> filter) {
+        for (CommandToDivider command : pending) {
+            if (filter.test(command)) {
+                return command;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Complete the oldest waiting command that the message is a response to.
+     *
+     * @return the completed command or null if the message did not complete
+     * any command
+     */
+    CommandToDivider responseReceived(String message) {
+        CommandToDivider completed = null;
+        synchronized (this) {
+            Iterator<CommandToDivider> it = pending.iterator();
+            while (it.hasNext()) {
+                CommandToDivider command = it.next();
+                if (command.getCommand().isCompletedBy(message)) {
+                    it.remove();
+                    completed = command;
+                    break;
+                }
+            }
+        }
+        if (completed != null) {
+            complete(completed, message);
+        }
+        return completed;
+    }
+
+    /**
+     * Complete the oldest waiting command of the given type with a result
+     * that is not a single message, like an uploaded program.
+     *
+     * @return the completed command or null if no such command was waiting
+     */
+    CommandToDivider complete(CommandToDivider.DividerCommand dividerCommand, String result) {
+        CommandToDivider completed = null;
+        synchronized (this) {
+            Iterator<CommandToDivider> it = pending.iterator();
+            while (it.hasNext()) {
+                CommandToDivider command = it.next();
+                if (command.getCommand() == dividerCommand) {
+                    it.remove();
+                    completed = command;
+                    break;
+                }
+            }
+        }
+        if (completed != null) {
+            complete(completed, result);
+        }
+        return completed;
+    }
+
+    /**
+     * Start the response timeout of the oldest waiting command of the given
+     * type again, for a command that is making progress like a download.
+     */
+    synchronized void progress(CommandToDivider.DividerCommand dividerCommand, long nowNanos) {
+        for (CommandToDivider command : pending) {
+            if (command.getCommand() == dividerCommand) {
+                command.setProgressTime(nowNanos);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Fail the oldest waiting command of the given type.
+     *
+     * @return the failed command or null if no such command was waiting
+     */
+    CommandToDivider fail(CommandToDivider.DividerCommand dividerCommand, Throwable cause) {
+        CommandToDivider failed = null;
+        synchronized (this) {
+            Iterator<CommandToDivider> it = pending.iterator();
+            while (it.hasNext()) {
+                CommandToDivider command = it.next();
+                if (command.getCommand() == dividerCommand) {
+                    it.remove();
+                    failed = command;
+                    break;
+                }
+            }
+        }
+        if (failed != null) {
+            failed.getResponse().completeExceptionally(cause);
+        }
+        return failed;
+    }
+
+    private void complete(CommandToDivider command, String result) {
+        responseLatency.record(System.nanoTime() - command.getSentTime());
+        // Complete outside the lock, the caller may chain the next command.
+        command.getResponse().complete(result);
+    }
+
+    /**
+     * Fail the commands whose response timeout has passed.
+     *
+     * @return the number of commands that timed out
+     */
+    int expire(long nowNanos) {
+        List<CommandToDivider> expired = new ArrayList<>();
+        synchronized (this) {
+            Iterator<CommandToDivider> it = pending.iterator();
+            while (it.hasNext()) {
+                CommandToDivider command = it.next();
+                if (nowNanos - deadlineOf(command) >= 0) {
+                    it.remove();
+                    expired.add(command);
+                }
+            }
+        }
+        for (CommandToDivider command : expired) {
+            Utils.debugOutput("No response to command " + command.getCommandChar(), 3);
+            command.getResponse().completeExceptionally(
+                    new TimeoutException("No response to command " + command.getCommandChar()
+                            + " within " + command.getResponseTimeout() + " ms"));
+        }
+        return expired.size();
+    }
+
+    /**
+     * Take out all waiting commands without completing them, oldest first.
+     */
+    synchronized List<CommandToDivider> takeAll() {
+        List<CommandToDivider> taken = new ArrayList<>(pending);
+        pending.clear();
+        return taken;
+    }
+
+    /**
+     * Fail all waiting commands, for instance when the port is closed.
+     */
+    void cancelAll(Throwable cause) {
+        List<CommandToDivider> cancelled;
+        synchronized (this) {
+            cancelled = new ArrayList<>(pending);
+            pending.clear();
+        }
+        for (CommandToDivider command : cancelled) {
+            command.getResponse().completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * @return the time in System.nanoTime() units when the next waiting
+     * command times out, or Long.MAX_VALUE if nothing is waiting
+     */
+    synchronized long nextDeadline() {
+        long next = Long.MAX_VALUE;
+        for (CommandToDivider command : pending) {
+            long deadline = deadlineOf(command);
+            if (next == Long.MAX_VALUE || deadline - next < 0) {
+                next = deadline;
+            }
+        }
+        return next;
+    }
+
+    synchronized int size() {
+        return pending.size();
+    }
+
+    LatencyHistogram getResponseLatency() {
+        return responseLatency;
+    }
+
+    private static long deadlineOf(CommandToDivider command) {
+        long start = command.getSentTime();
+        if (command.getProgressTime() != 0 && command.getProgressTime() - start > 0) {
+            start = command.getProgressTime();
+        }
+        return start + TimeUnit.MILLISECONDS.toNanos(command.getResponseTimeout());
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.io.IOException;
+import java.nio.channels.Pipe;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * In-memory transport. Two ends are created together with createPair and
+ * what is written to one end can be read from the other. Used to connect the
+ * host to the simulator and for benchmarks.
+ */
+class PipeTransport extends ChannelTransport {
+
+    private final Pipe inPipe;
+    private final Pipe outPipe;
+
+    private PipeTransport(String name, Pipe inPipe, Pipe outPipe, SelectorLoop selectorLoop) {
+        super(name, selectorLoop);
+        this.inPipe = inPipe;
+        this.outPipe = outPipe;
+    }
+
+    /**
+     * Create two connected ends.
+     *
+     * @param selectorLoop watches both ends, null to give each end its own
+     * loop
+     */
+    static PipeTransport[] createPair(String name, SelectorLoop selectorLoop) throws IOException {
+        Pipe aToB = Pipe.open();
+        Pipe bToA = Pipe.open();
+        return new PipeTransport[]{
+            new PipeTransport(name, bToA, aToB, selectorLoop),
+            new PipeTransport(name + " (other end)", aToB, bToA, selectorLoop)
+        };
+    }
+
+    @Override
+    public void open(ComPortParameters parameters) throws IOException {
+        startChannels(inPipe.source(), outPipe.sink());
+    }
+
+    @Override
+    protected void closeChannels() throws IOException {
+        inPipe.source().close();
+        outPipe.sink().close();
+    }
+
+}
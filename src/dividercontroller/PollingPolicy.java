@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Decides when the divider is asked for its angle (?) and status (S). The
+ * angle is asked for often while a program runs or the divider has just been
+ * moved, and less and less often while it stands still, down to the slowest
+ * rate. The status is asked for at a quarter of the angle rate. Any message
+ * that carries the angle or the status, like the "A" after a step or the "R"
+ * after a run command, moves the next request forward so nothing is asked
+ * for that was just received.
+ *
+ * Times are in ms as from System.currentTimeMillis. The send task asks for
+ * the poll times and the message receiver task reports the messages, so all
+ * methods are synchronized.
+ */
+class PollingPolicy {
+
+    public static final long DEFAULT_MIN_POLL_INTERVAL = 250;
+    public static final long DEFAULT_MAX_POLL_INTERVAL = 30000;
+
+    private static final int STATUS_INTERVAL_FACTOR = 4;
+
+    private final long minPollInterval;
+    private final long maxPollInterval;
+
+    // Grows while the angle stays the same and the divider is not running.
+    private long angleInterval;
+    private boolean running;
+    private String lastAngleMessage;
+
+    private long nextTimeToAskForAngle;
+    private long nextTimeToAskForStatus;
+
+    private long anglePollsSent;
+    private long statusPollsSent;
+    private long pollsSuppressed;
+    private long pollBytesReceived;
+
+    /**
+     * @param minPollInterval the shortest time in ms between two requests for
+     * the angle
+     * @param maxPollInterval the longest time in ms between two requests for
+     * the angle, twice this for the status
+     */
+    PollingPolicy(long minPollInterval, long maxPollInterval) {
+        this.minPollInterval = Math.max(1, minPollInterval);
+        this.maxPollInterval = Math.max(this.minPollInterval, maxPollInterval);
+        angleInterval = this.minPollInterval;
+    }
+
+    /**
+     * Start polling, status and angle are asked for at once.
+     */
+    synchronized void start(long now) {
+        angleInterval = minPollInterval;
+        lastAngleMessage = null;
+        nextTimeToAskForStatus = now;
+        nextTimeToAskForAngle = now;
+    }
+
+    synchronized long getNextTimeToAskForAngle() {
+        return nextTimeToAskForAngle;
+    }
+
+    synchronized long getNextTimeToAskForStatus() {
+        return nextTimeToAskForStatus;
+    }
+
+    synchronized void anglePollSent(long now) {
+        anglePollsSent++;
+        // Asked again if no answer arrives.
+        nextTimeToAskForAngle = now + getAngleInterval();
+    }
+
+    synchronized void statusPollSent(long now) {
+        statusPollsSent++;
+        nextTimeToAskForStatus = now + getStatusInterval();
+    }
+
+    /**
+     * A command was sent to the divider. It will probably move, so the angle
+     * is followed closely again.
+     */
+    synchronized void commandSent(long now) {
+        angleInterval = minPollInterval;
+        nextTimeToAskForAngle = Math.min(nextTimeToAskForAngle, now + angleInterval);
+    }
+
+    /**
+     * Update the poll times from a message from the divider.
+     *
+     * @param now the time the message was received
+     * @param message the message
+     * @param pollResponse true if the message is the response to a poll
+     * @return true if a poll is now due earlier than before
+     */
+    synchronized boolean messageReceived(long now, String message, boolean pollResponse) {
+        if (pollResponse) {
+            // The message and its etb.
+            pollBytesReceived += message.length() + 1;
+        }
+        long previousNextPoll = Math.min(nextTimeToAskForAngle, nextTimeToAskForStatus);
+        if (message.startsWith("A")) {
+            angleReceived(now, message, pollResponse);
+        } else if (message.equals("R") || message.equals("S3")) {
+            statusReceived(now, true, pollResponse);
+        } else if (message.equals("Q") || message.equals("S0")) {
+            statusReceived(now, false, pollResponse);
+        }
+        return Math.min(nextTimeToAskForAngle, nextTimeToAskForStatus) < previousNextPoll;
+    }
+
+    private void angleReceived(long now, String message, boolean pollResponse) {
+        if (!message.equals(lastAngleMessage)) {
+            angleInterval = minPollInterval;
+        } else if (pollResponse && !running) {
+            angleInterval = Math.min(angleInterval * 2, maxPollInterval);
+        }
+        lastAngleMessage = message;
+        if (!pollResponse) {
+            pollsSuppressed++;
+        }
+        nextTimeToAskForAngle = now + getAngleInterval();
+    }
+
+    private void statusReceived(long now, boolean isRunning, boolean pollResponse) {
+        if (isRunning != running) {
+            running = isRunning;
+            angleInterval = minPollInterval;
+            nextTimeToAskForAngle = Math.min(nextTimeToAskForAngle, now + angleInterval);
+        }
+        if (!pollResponse) {
+            pollsSuppressed++;
+        }
+        nextTimeToAskForStatus = now + getStatusInterval();
+    }
+
+    private long getAngleInterval() {
+        return running ? minPollInterval : angleInterval;
+    }
+
+    private long getStatusInterval() {
+        return Math.min(getAngleInterval() * STATUS_INTERVAL_FACTOR, 2 * maxPollInterval);
+    }
+
+    public synchronized long getAnglePollsSent() {
+        return anglePollsSent;
+    }
+
+    public synchronized long getStatusPollsSent() {
+        return statusPollsSent;
+    }
+
+    /**
+     * @return the number of times a poll was put off because the angle or
+     * status came with another message
+     */
+    public synchronized long getPollsSuppressed() {
+        return pollsSuppressed;
+    }
+
+    /**
+     * @return the bytes sent for polls, one per poll
+     */
+    public synchronized long getPollBytesSent() {
+        return anglePollsSent + statusPollsSent;
+    }
+
+    /**
+     * @return the bytes received in responses to polls
+     */
+    public synchronized long getPollBytesReceived() {
+        return pollBytesReceived;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Polling: " + anglePollsSent + " angle polls, " + statusPollsSent + " status polls, "
+                + pollsSuppressed + " suppressed, " + getPollBytesSent() + " bytes sent, "
+                + pollBytesReceived + " bytes received";
+    }
+
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Finds the ports that have a divider on them. Each port is opened by a
+ * divider of its own that makes the ready handshake, see ArduinoDivider, and
+ * a port whose device answers S with a status and V with a version is taken
+ * to have a divider.
+ * All ports are probed at the same time and each probe is given up after the
+ * discovery timeout, so a scan takes about as long as the slowest device
+ * needs to boot.
+ *
+ * What was found is kept by port name, a scan only probes the ports that
+ * are new since the last one. A port that did not answer, or could not be
+ * opened, is probed again by a later scan, at first after RETRY_DELAY and
+ * then twice as long each time up to MAX_RETRY_DELAY, the device may still
+ * have been booting or the port busy. A port that is gone is forgotten so
+ * that another device on it is probed again. With startWatching a scan is made
+ * each time a device is added to or removed from /dev.
+ *
+ * Ports in use by a running divider are not probed, opening them again
+ * would take the messages from that divider.
+ */
+class PortDiscovery {
+
+    /**
+     * Told when the dividers found have changed, on a discovery thread.
+     */
+    interface Listener {
+
+        void dividersChanged(Map<String, String> dividers);
+    }
+
+    static final long DEFAULT_TIMEOUT = 3000;
+
+    // Time to let a new device node settle, udev sets the permissions
+    // after the node is made.
+    private static final long DEVICE_SETTLE_TIME = 500;
+    private static final long STOP_TIMEOUT = 1000;
+    private static final long RETRY_DELAY = 10000;
+    private static final long MAX_RETRY_DELAY = 600000;
+    private static final Path DEVICE_DIRECTORY = Paths.get("/dev");
+
+    private final Predicate<String> portInUse;
+    private final Supplier<List<String>> candidates;
+    private final Path watchedDirectory;
+    private final long timeout;
+
+    // Runs the probing dividers and the timeouts.
+    private final ScheduledThreadPoolExecutor pool;
+    // Opens and closes the ports, which may block.
+    private final ExecutorService portExecutor;
+
+    // The firmware version of the divider on each port.
+    private final Map<String, String> dividers = new TreeMap<>();
+    // Ports probed that answered but not as a divider.
+    private final Set<String> otherPorts = new HashSet<>();
+    // Ports probed that did not answer, by port name.
+    private final Map<String, Retry> retries = new TreeMap<>();
+    private final Map<String, CompletableFuture<String>> probes = new TreeMap<>();
+    private long portsProbed;
+
+    private volatile Listener listener;
+    private WatchService watchService;
+    private Thread watchThread;
+
+    // When a port that did not answer may be probed again.
+    private static final class Retry {
+
+        final long delay;
+        final long time;
+
+        Retry(long delay) {
+            this.delay = delay;
+            time = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        }
+
+        boolean isDue() {
+            return System.nanoTime() - time >= 0;
+        }
+
+        Retry next() {
+            return new Retry(Math.min(delay * 2, MAX_RETRY_DELAY));
+        }
+    }
+
+    /**
+     * Discovery of the serial ports with hotplug seen in /dev.
+     *
+     * @param portInUse tells if a port is used by a running divider
+     */
+    PortDiscovery(Predicate<String> portInUse) {
+        this(portInUse, SerialCommHandler::getSerialPortNames, DEVICE_DIRECTORY);
+    }
+
+    /**
+     * @param candidates the ports to probe
+     * @param watchedDirectory where the device nodes are made, null if there
+     * is none
+     */
+    PortDiscovery(Predicate<String> portInUse, Supplier<List<String>> candidates, Path watchedDirectory) {
+        this.portInUse = portInUse;
+        this.candidates = candidates;
+        this.watchedDirectory = watchedDirectory;
+        timeout = Configuration.getConfiguration().getDiscoveryTimeout();
+        AtomicInteger threadNumber = new AtomicInteger();
+        pool = new ScheduledThreadPoolExecutor(2, r -> {
+            Thread thread = new Thread(r, "PortDiscovery-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.setRemoveOnCancelPolicy(true);
+        portExecutor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "PortDiscoveryOpen-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Probe the ports that are new since the last scan. Does not block.
+     *
+     * @return a future that is completed with the dividers found, by port
+     * name, when the probes are done
+     */
+    CompletableFuture<Map<String, String>> scan() {
+        List<String> ports = candidates.get();
+        List<CompletableFuture<String>> running = new ArrayList<>();
+        boolean changed;
+        synchronized (this) {
+            changed = dividers.keySet().retainAll(ports);
+            otherPorts.retainAll(ports);
+            retries.keySet().retainAll(ports);
+            for (String port : ports) {
+                CompletableFuture<String> probe = probes.get(port);
+                Retry retry = retries.get(port);
+                if (probe == null && !dividers.containsKey(port) && !otherPorts.contains(port)
+                        && (retry == null || retry.isDue()) && !portInUse.test(port)) {
+                    probe = probe(port);
+                    probes.put(port, probe);
+                    portsProbed++;
+                }
+                if (probe != null) {
+                    running.add(probe);
+                }
+            }
+        }
+        if (changed) {
+            dividersChanged();
+        }
+        return CompletableFuture.allOf(running.toArray(new CompletableFuture<?>[running.size()]))
+                .thenApply(done -> getDividers());
+    }
+
+    // Open the port with a divider of its own and ask for the status and the
+    // version when the handshake is done. Completed with the version, or null
+    // if the device is not a divider or did not answer.
+    private CompletableFuture<String> probe(String port) {
+        ArduinoDivider divider = new ArduinoDivider(new EventRouter(), new ComPortParameters(port),
+                ThreadModel.POOL, pool, null);
+        CompletableFuture<Void> ready = new CompletableFuture<>();
+        divider.getEventBus().subscribe(FromArduinoMessageEvent.class, event -> {
+            if (event.getMessageType() == FromArduinoMessageEvent.MessageType.COMMUNICATION_STARTED) {
+                ready.complete(null);
+            }
+        });
+        CompletableFuture<String> version = new CompletableFuture<>();
+        ScheduledFuture<?> timer = pool.schedule(() -> version.completeExceptionally(
+                new TimeoutException("No answer in " + timeout + " ms")), timeout, TimeUnit.MILLISECONDS);
+        CompletableFuture.runAsync(divider::startDivider, portExecutor)
+                .thenCompose(started -> ready)
+                .thenCompose(started -> divider.submitCommand(CommandToDivider.DividerCommand.GET_STATUS)
+                        .thenCombine(divider.submitCommand(CommandToDivider.DividerCommand.GET_VERSION),
+                                (status, response) -> status.equals("S0") || status.equals("S3")
+                                        ? response : null))
+                .whenComplete((response, failure) -> {
+                    if (failure != null) {
+                        version.completeExceptionally(failure);
+                    } else {
+                        version.complete(response);
+                    }
+                });
+        // Closed on a thread of its own, the divider can not stop itself.
+        return version.handleAsync((response, failure) -> {
+            timer.cancel(false);
+            divider.shutdown(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (failure != null) {
+                Utils.debugOutput("No divider on " + port + ": " + failure, 2);
+                probeFailed(port);
+                return null;
+            }
+            if (response == null) {
+                Utils.debugOutput("No divider on " + port + ", it did not answer S", 2);
+            }
+            probeDone(port, response);
+            return response;
+        }, portExecutor);
+    }
+
+    // The port did not answer in time or could not be opened.
+    private synchronized void probeFailed(String port) {
+        probes.remove(port);
+        Retry retry = retries.get(port);
+        retry = retry == null ? new Retry(RETRY_DELAY) : retry.next();
+        retries.put(port, retry);
+        Utils.debugOutput(port + " is probed again in " + retry.delay + " ms at the earliest", 2);
+    }
+
+    private void probeDone(String port, String version) {
+        synchronized (this) {
+            probes.remove(port);
+            retries.remove(port);
+            if (version == null) {
+                otherPorts.add(port);
+                return;
+            }
+            Utils.debugOutput("Divider " + version + " found on " + port, 2);
+            dividers.put(port, version);
+        }
+        dividersChanged();
+    }
+
+    private void dividersChanged() {
+        Listener listener = this.listener;
+        if (listener != null) {
+            listener.dividersChanged(getDividers());
+        }
+    }
+
+    /**
+     * Forget what was found on a port, it is probed again by the next scan.
+     */
+    synchronized void forget(String port) {
+        dividers.remove(port);
+        otherPorts.remove(port);
+        retries.remove(port);
+    }
+
+    /**
+     * @return the firmware version of the divider on each port found, by
+     * port name
+     */
+    synchronized Map<String, String> getDividers() {
+        return Collections.unmodifiableMap(new TreeMap<>(dividers));
+    }
+
+    synchronized long getPortsProbed() {
+        return portsProbed;
+    }
+
+    /**
+     * Scan now and each time a device is added or removed. Does nothing if
+     * there is no device directory or it can not be watched, scan has to be
+     * called then.
+     */
+    synchronized void startWatching() {
+        scan();
+        if (watchThread != null || watchedDirectory == null || !Files.isDirectory(watchedDirectory)) {
+            return;
+        }
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            watchedDirectory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException ex) {
+            Utils.debugOutput("Can not watch " + watchedDirectory + ": " + ex.getMessage(), 3);
+            return;
+        }
+        WatchService service = watchService;
+        watchThread = new Thread(() -> watch(service), "PortDiscoveryWatch");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    private void watch(WatchService service) {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                // A device often makes several nodes, wait for all of them.
+                Thread.sleep(DEVICE_SETTLE_TIME);
+                do {
+                    key.pollEvents();
+                    key.reset();
+                } while ((key = service.poll()) != null);
+                scan();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // Stopped.
+        }
+    }
+
+    /**
+     * Stop watching and end the probes.
+     */
+    void close() {
+        Thread thread;
+        synchronized (this) {
+            thread = watchThread;
+            watchThread = null;
+            if (watchService != null) {
+                try {
+                    watchService.close();
+                } catch (IOException ex) {
+                    Utils.debugOutput("IOException " + ex.getMessage(), 3);
+                }
+                watchService = null;
+            }
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+        pool.shutdown();
+        portExecutor.shutdown();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Port discovery: " + portsProbed + " ports probed, dividers " + dividers
+                + ", " + otherPorts.size() + " other ports, " + retries.size() + " ports to probe again";
+    }
+
+}
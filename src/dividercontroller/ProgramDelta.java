@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Edit scripts for the E command. Instead of the whole program the host
+ * sends the changes from the program the divider has to the new one, as
+ * ranges of instructions to replace. An instruction starts with a capital
+ * letter, like in ProgramUploadParser.
+ *
+ * The script is sent like a program, E, the script and EOF. It starts with
+ * "c" and the fingerprint of the program it was made for, see
+ * ProgramFingerprint, followed by one edit per range:
+ *
+ * e start,count instructions
+ *
+ * without spaces, where start is the index of the first instruction in the
+ * old program to replace, count the number of old instructions to remove
+ * and instructions the new ones to put in their place, maybe none. The
+ * edits are in the order of start and do not overlap. Lower case letters
+ * are never part of a program, so "e" always starts an edit.
+ *
+ * The firmware answers "Download finished" when the edits are made, and
+ * "Edit rejected" without changing anything when it has another program
+ * than the script was made for.
+ */
+final class ProgramDelta {
+
+    // In the answer to V when the firmware has the E command.
+    static final String CAPABILITY = "DELTA";
+
+    private static final char FINGERPRINT = 'c';
+    private static final char EDIT = 'e';
+    private static final int FINGERPRINT_LENGTH = 8;
+
+    private ProgramDelta() {
+    }
+
+    /**
+     * @param version the answer to V
+     * @return true if the firmware takes edit scripts
+     */
+    static boolean isSupportedBy(String version) {
+        return version != null && version.contains(CAPABILITY);
+    }
+
+    /**
+     * Make the script that turns oldProgram into newProgram.
+     *
+     * @return the script or null if it is not shorter than newProgram
+     */
+    static String script(String oldProgram, String newProgram) {
+        List<String> oldInstructions = split(oldProgram);
+        List<String> newInstructions = split(newProgram);
+        int[] a = new int[oldInstructions.size()];
+        int[] b = new int[newInstructions.size()];
+        Map<String, Integer> ids = new HashMap<>();
+        for (int i = 0; i < a.length; i++) {
+            a[i] = ids.computeIfAbsent(oldInstructions.get(i), key -> ids.size());
+        }
+        for (int i = 0; i < b.length; i++) {
+            b[i] = ids.computeIfAbsent(newInstructions.get(i), key -> ids.size());
+        }
+        boolean[] removed = new boolean[a.length];
+        boolean[] added = new boolean[b.length];
+        // With more changes than this the script is not shorter.
+        if (!diff(a, b, (a.length + b.length) / 2, removed, added)) {
+            return null;
+        }
+
+        StringBuilder script = new StringBuilder();
+        script.append(FINGERPRINT).append(ProgramFingerprint.of(oldProgram));
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            if (i < a.length && j < b.length && !removed[i] && !added[j]) {
+                // The same instruction in both.
+                i++;
+                j++;
+                continue;
+            }
+            int start = i;
+            while (i < a.length && removed[i]) {
+                i++;
+            }
+            script.append(EDIT).append(start).append(',').append(i - start);
+            while (j < b.length && added[j]) {
+                script.append(newInstructions.get(j++));
+            }
+            if (script.length() >= newProgram.length()) {
+                return null;
+            }
+        }
+        return script.toString();
+    }
+
+    /**
+     * Make the edits in a script, like the firmware does.
+     *
+     * @return the new program or null if the script was made for another
+     * program
+     * @throws IllegalArgumentException if the script is not valid
+     */
+    static String apply(String program, String script) {
+        if (script.length() < 1 + FINGERPRINT_LENGTH || script.charAt(0) != FINGERPRINT) {
+            throw new IllegalArgumentException("No fingerprint in the edit script");
+        }
+        if (!script.substring(1, 1 + FINGERPRINT_LENGTH).equalsIgnoreCase(ProgramFingerprint.of(program))) {
+            return null;
+        }
+        List<String> instructions = split(program);
+        StringBuilder newProgram = new StringBuilder(program.length());
+        int next = 0;
+        int pos = 1 + FINGERPRINT_LENGTH;
+        while (pos < script.length()) {
+            if (script.charAt(pos) != EDIT) {
+                throw new IllegalArgumentException("Bad edit at " + pos);
+            }
+            int comma = script.indexOf(',', pos);
+            int end = script.indexOf(EDIT, pos + 1);
+            if (end < 0) {
+                end = script.length();
+            }
+            if (comma < 0 || comma > end) {
+                throw new IllegalArgumentException("Bad edit at " + pos);
+            }
+            int countEnd = comma + 1;
+            while (countEnd < end && Character.isDigit(script.charAt(countEnd))) {
+                countEnd++;
+            }
+            int start;
+            int count;
+            try {
+                start = Integer.parseInt(script.substring(pos + 1, comma));
+                count = Integer.parseInt(script.substring(comma + 1, countEnd));
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Bad edit at " + pos);
+            }
+            if (start < next || start + count > instructions.size()) {
+                throw new IllegalArgumentException("Edit out of order at " + pos);
+            }
+            for (; next < start; next++) {
+                newProgram.append(instructions.get(next));
+            }
+            newProgram.append(script, countEnd, end);
+            next = start + count;
+            pos = end;
+        }
+        for (; next < instructions.size(); next++) {
+            newProgram.append(instructions.get(next));
+        }
+        return newProgram.toString();
+    }
+
+    /**
+     * @return the instructions of a program as it is downloaded
+     */
+    static List<String> split(String program) {
+        List<String> instructions = new ArrayList<>();
+        int start = 0;
+        for (int i = 1; i <= program.length(); i++) {
+            if (i == program.length() || isInstructionStart(program.charAt(i))) {
+                instructions.add(program.substring(start, i));
+                start = i;
+            }
+        }
+        return instructions;
+    }
+
+    private static boolean isInstructionStart(char c) {
+        return c >= 'A' && c <= 'Z';
+    }
+
+    // The shortest edit of a into b, Myers' O(ND) algorithm in the linear
+    // space variant. Marks the elements of a that are removed and the ones
+    // of b that are added. Returns false if more than about maxEdits
+    // elements differ.
+    private static boolean diff(int[] a, int[] b, int maxEdits, boolean[] removed, boolean[] added) {
+        return diff(a, 0, a.length, b, 0, b.length, maxEdits, removed, added);
+    }
+
+    private static boolean diff(int[] a, int aStart, int aEnd, int[] b, int bStart, int bEnd, int maxEdits,
+            boolean[] removed, boolean[] added) {
+        while (aStart < aEnd && bStart < bEnd && a[aStart] == b[bStart]) {
+            aStart++;
+            bStart++;
+        }
+        while (aStart < aEnd && bStart < bEnd && a[aEnd - 1] == b[bEnd - 1]) {
+            aEnd--;
+            bEnd--;
+        }
+        int n = aEnd - aStart;
+        int m = bEnd - bStart;
+        if (n == 0 || m == 0) {
+            Arrays.fill(removed, aStart, aEnd, true);
+            Arrays.fill(added, bStart, bEnd, true);
+            return n + m <= maxEdits;
+        }
+        // Search from both ends at once, one edit from each end per step,
+        // until the paths meet. The parts before and after the meeting
+        // point are then done the same way. Only the furthest x on each
+        // diagonal is kept, so the memory is linear.
+        int allSteps = (n + m + 1) / 2;
+        int maxSteps = Math.min(allSteps, maxEdits / 2 + 1);
+        int offset = maxSteps;
+        int[] forward = new int[2 * maxSteps + 2];
+        int[] backward = new int[2 * maxSteps + 2];
+        Arrays.fill(forward, -1);
+        Arrays.fill(backward, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        int delta = n - m;
+        // The paths meet on a forward step if delta is odd, else on a
+        // backward step.
+        boolean meetForward = (delta & 1) != 0;
+        // Diagonals that have left the edit graph are skipped.
+        int forwardStart = 0;
+        int forwardEnd = 0;
+        int backwardStart = 0;
+        int backwardEnd = 0;
+        for (int d = 0; d < maxSteps; d++) {
+            for (int k = -d + forwardStart; k <= d - forwardEnd; k += 2) {
+                int x;
+                if (k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1])) {
+                    x = forward[offset + k + 1];
+                } else {
+                    x = forward[offset + k - 1] + 1;
+                }
+                int y = x - k;
+                while (x < n && y < m && a[aStart + x] == b[bStart + y]) {
+                    x++;
+                    y++;
+                }
+                forward[offset + k] = x;
+                if (x > n) {
+                    forwardEnd += 2;
+                } else if (y > m) {
+                    forwardStart += 2;
+                } else if (meetForward) {
+                    int backwardIndex = offset + delta - k;
+                    if (backwardIndex >= 0 && backwardIndex < backward.length && backward[backwardIndex] != -1
+                            && x >= n - backward[backwardIndex]) {
+                        return split(a, aStart, aEnd, b, bStart, bEnd, x, y, removed, added);
+                    }
+                }
+            }
+            for (int k = -d + backwardStart; k <= d - backwardEnd; k += 2) {
+                int x;
+                if (k == -d || (k != d && backward[offset + k - 1] < backward[offset + k + 1])) {
+                    x = backward[offset + k + 1];
+                } else {
+                    x = backward[offset + k - 1] + 1;
+                }
+                int y = x - k;
+                while (x < n && y < m && a[aEnd - x - 1] == b[bEnd - y - 1]) {
+                    x++;
+                    y++;
+                }
+                backward[offset + k] = x;
+                if (x > n) {
+                    backwardEnd += 2;
+                } else if (y > m) {
+                    backwardStart += 2;
+                } else if (!meetForward) {
+                    int forwardIndex = offset + delta - k;
+                    if (forwardIndex >= 0 && forwardIndex < forward.length && forward[forwardIndex] != -1) {
+                        int forwardX = forward[forwardIndex];
+                        if (forwardX >= n - x) {
+                            return split(a, aStart, aEnd, b, bStart, bEnd, forwardX,
+                                    forwardX - (forwardIndex - offset), removed, added);
+                        }
+                    }
+                }
+            }
+        }
+        if (maxSteps < allSteps) {
+            return false;
+        }
+        // Nothing in common.
+        Arrays.fill(removed, aStart, aEnd, true);
+        Arrays.fill(added, bStart, bEnd, true);
+        return n + m <= maxEdits;
+    }
+
+    // The shortest edit goes through (x, y), counted from the starts.
+    private static boolean split(int[] a, int aStart, int aEnd, int[] b, int bStart, int bEnd, int x, int y,
+            boolean[] removed, boolean[] added) {
+        diff(a, aStart, aStart + x, b, bStart, bStart + y, Integer.MAX_VALUE, removed, added);
+        diff(a, aStart + x, aEnd, b, bStart + y, bEnd, Integer.MAX_VALUE, removed, added);
+        return true;
+    }
+
+}
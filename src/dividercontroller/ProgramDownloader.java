@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Sends a program to the divider in chunks so that the Arduino's 64 byte
+ * receive buffer is not overrun, and posts a DownloadProgressEvent for each
+ * chunk.
+ *
+ * Firmware that has BinaryProtocol.CHUNK_CAPABILITY answers each chunk with
+ * "K" and the chunk number. Up to ACK_WINDOW chunks are sent before the
+ * oldest is answered, and a chunk that is not answered in time is sent again,
+ * only that chunk. The download fails if a chunk has been sent MAX_RETRIES
+ * times without an answer.
+ *
+ * Other firmware gives no answers, so the chunks are paced to the speed of
+ * the line. At most PACED_WINDOW bytes are written ahead of what the line can
+ * have delivered.
+ *
+ * The send task calls send and the message receiver task calls
+ * acknowledged, so both are synchronized.
+ */
+class ProgramDownloader {
+
+    enum Mode {
+        // The program text followed by EOF, paced.
+        PACED_TEXT,
+        // PROGRAM frames and PROGRAM_END, paced.
+        PACED_FRAMES,
+        // CHUNK frames that the divider answers, then PROGRAM_END.
+        ACKNOWLEDGED
+    }
+
+    // The receive buffer of the Arduino.
+    static final int PACED_WINDOW = 64;
+    static final int PACED_CHUNK_SIZE = 32;
+    // A chunk frame of 32 bytes, two of them fill the receive buffer.
+    static final int ACK_CHUNK_SIZE = 25;
+    static final int ACK_WINDOW = 2;
+    static final long ACK_TIMEOUT = 250;
+    static final int MAX_RETRIES = 5;
+
+    private static final int BITS_PER_BYTE = 10;
+
+    private final Mode mode;
+    private final SerialCommHandler serialCommHandler;
+    private final EventRouter.Channel<DownloadProgressEvent> progressChannel;
+    // The bytes to write, one array per chunk. The last one ends the download
+    // and is not counted as a chunk.
+    private final List<byte[]> chunks;
+    private final int chunkCount;
+    private final long totalBytes;
+    private final long nanosPerByte;
+
+    // ACKNOWLEDGED: when each chunk was last sent, 0 if not sent, and how many
+    // times.
+    private final long[] sentTimes;
+    private final int[] sendCounts;
+    private final boolean[] acked;
+    // The oldest chunk that is not answered.
+    private int base = 0;
+    // PACED: the next chunk to write.
+    private int next = 0;
+    // When the line has delivered what has been written, System.nanoTime().
+    private long lineFreeTime;
+
+    private boolean endSent = false;
+    private boolean failed = false;
+    private long bytesDone = 0;
+    private int retransmissions = 0;
+    private final long startTime = System.nanoTime();
+    private long lastProgressTime = startTime;
+
+    /**
+     * @param program the program text, as from getDownloadToArduinoText
+     * @param baudRate the speed of the line, for the pacing and the answer
+     * timeout
+     */
+    ProgramDownloader(String program, Mode mode, int baudRate, SerialCommHandler serialCommHandler,
+            EventRouter.Channel<DownloadProgressEvent> progressChannel) {
+        this.mode = mode;
+        this.serialCommHandler = serialCommHandler;
+        this.progressChannel = progressChannel;
+        this.nanosPerByte = TimeUnit.SECONDS.toNanos(BITS_PER_BYTE) / Math.max(1, baudRate);
+        chunks = makeChunks(program, mode);
+        chunkCount = chunks.size() - 1;
+        long total = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            total += chunks.get(i).length;
+        }
+        totalBytes = total;
+        sentTimes = new long[chunkCount];
+        sendCounts = new int[chunkCount];
+        acked = new boolean[chunkCount];
+    }
+
+    private static List<byte[]> makeChunks(String program, Mode mode) {
+        List<byte[]> chunks = new ArrayList<>();
+        switch (mode) {
+            case PACED_TEXT: {
+                byte[] bytes = program.getBytes(StandardCharsets.ISO_8859_1);
+                for (int offset = 0; offset < bytes.length; offset += PACED_CHUNK_SIZE) {
+                    chunks.add(Arrays.copyOfRange(bytes, offset, Math.min(bytes.length, offset + PACED_CHUNK_SIZE)));
+                }
+                chunks.add(new byte[]{FrameReceiver.EOF_CHAR});
+                break;
+            }
+            case PACED_FRAMES: {
+                byte[] packed = BinaryProtocol.packProgram(program);
+                for (int offset = 0; offset < packed.length; offset += PACED_CHUNK_SIZE) {
+                    int length = Math.min(PACED_CHUNK_SIZE, packed.length - offset);
+                    byte[] frame = new byte[length + BinaryProtocol.FRAME_OVERHEAD];
+                    BinaryProtocol.writeFrame(BinaryProtocol.TYPE_PROGRAM, packed, offset, length, frame, 0);
+                    chunks.add(frame);
+                }
+                chunks.add(BinaryProtocol.frame(BinaryProtocol.TYPE_PROGRAM_END));
+                break;
+            }
+            default: {
+                byte[] packed = BinaryProtocol.packProgram(program);
+                int count = 0;
+                for (int offset = 0; offset < packed.length; offset += ACK_CHUNK_SIZE) {
+                    chunks.add(BinaryProtocol.chunkFrame(count++, packed, offset,
+                            Math.min(ACK_CHUNK_SIZE, packed.length - offset)));
+                }
+                chunks.add(BinaryProtocol.programEndFrame(count));
+                break;
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Write what may be written now.
+     *
+     * @return the time in ms, System.currentTimeMillis(), when send should be
+     * called again unless an answer arrives before that. Long.MAX_VALUE when
+     * everything is written or the download has failed.
+     */
+    synchronized long send() {
+        long now = System.nanoTime();
+        long wait = mode == Mode.ACKNOWLEDGED ? sendAcknowledged(now) : sendPaced(now);
+        if (wait == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return System.currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(wait) + 1;
+    }
+
+    // @return the time in ns to wait
+    private long sendPaced(long now) {
+        while (next < chunks.size()) {
+            byte[] chunk = chunks.get(next);
+            long ahead = lineFreeTime - now;
+            if (ahead > (PACED_WINDOW - chunk.length) * nanosPerByte) {
+                return ahead - (PACED_WINDOW - chunk.length) * nanosPerByte;
+            }
+            write(chunk, now);
+            if (next < chunkCount) {
+                progress(chunk.length, now);
+            }
+            next++;
+        }
+        endSent = true;
+        return Long.MAX_VALUE;
+    }
+
+    private long sendAcknowledged(long now) {
+        if (failed || endSent) {
+            return Long.MAX_VALUE;
+        }
+        long ackTimeout = TimeUnit.MILLISECONDS.toNanos(ACK_TIMEOUT)
+                + ACK_WINDOW * (ACK_CHUNK_SIZE + BinaryProtocol.FRAME_OVERHEAD + 2) * nanosPerByte;
+        long wait = Long.MAX_VALUE;
+        for (int i = base; i < Math.min(base + ACK_WINDOW, chunkCount); i++) {
+            if (acked[i]) {
+                continue;
+            }
+            if (sendCounts[i] > 0) {
+                long waited = now - sentTimes[i];
+                if (waited < ackTimeout) {
+                    wait = Math.min(wait, ackTimeout - waited);
+                    continue;
+                }
+                if (sendCounts[i] >= MAX_RETRIES) {
+                    Utils.debugOutput("No answer to chunk " + i + " of the program", 3);
+                    failed = true;
+                    return Long.MAX_VALUE;
+                }
+                retransmissions++;
+                Utils.debugOutput("Sending chunk " + i + " of the program again", 2);
+            }
+            write(chunks.get(i), now);
+            sentTimes[i] = now;
+            sendCounts[i]++;
+            wait = Math.min(wait, ackTimeout);
+        }
+        if (base == chunkCount) {
+            write(chunks.get(chunkCount), now);
+            endSent = true;
+        }
+        return wait;
+    }
+
+    private void write(byte[] chunk, long now) {
+        serialCommHandler.sendProgramChunk(chunk);
+        lineFreeTime = Math.max(lineFreeTime, now) + chunk.length * nanosPerByte;
+    }
+
+    /**
+     * Called when the divider has answered "K" and the chunk number.
+     *
+     * @return true if the send task has something new to send
+     */
+    synchronized boolean acknowledged(int chunk) {
+        if (mode != Mode.ACKNOWLEDGED || chunk < 0 || chunk >= chunkCount || acked[chunk]
+                || sendCounts[chunk] == 0) {
+            return false;
+        }
+        acked[chunk] = true;
+        progress(chunks.get(chunk).length, System.nanoTime());
+        boolean moved = false;
+        while (base < chunkCount && acked[base]) {
+            base++;
+            moved = true;
+        }
+        return moved;
+    }
+
+    private void progress(int bytes, long now) {
+        bytesDone += bytes;
+        lastProgressTime = now;
+        long elapsed = Math.max(1, now - startTime);
+        progressChannel.post(new DownloadProgressEvent(bytesDone, totalBytes,
+                bytesDone * TimeUnit.SECONDS.toNanos(1) / elapsed, retransmissions));
+    }
+
+    /**
+     * @return true if the whole program and its end has been written
+     */
+    synchronized boolean isEndSent() {
+        return endSent;
+    }
+
+    synchronized boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * @return when a chunk was last written or answered, System.nanoTime()
+     */
+    synchronized long getLastProgressTime() {
+        return lastProgressTime;
+    }
+
+    synchronized int getRetransmissions() {
+        return retransmissions;
+    }
+
+    int getChunkCount() {
+        return chunkCount;
+    }
+
+    long getTotalBytes() {
+        return totalBytes;
+    }
+
+}
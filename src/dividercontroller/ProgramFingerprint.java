@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * The fingerprint of a divider program, the CRC-32 of the program text as it
+ * is downloaded, written as eight hex digits. The host keeps the fingerprint
+ * of the program each divider last confirmed and firmware that has the C
+ * command answers with the fingerprint of the program it holds, "C" followed
+ * by the digits. Both are compared before a download so that a program the
+ * divider already has is not sent again.
+ */
+final class ProgramFingerprint {
+
+    // In the answer to V when the firmware has the C command.
+    static final String CAPABILITY = "CRC";
+
+    private ProgramFingerprint() {
+    }
+
+    /**
+     * @param program the program as from getDownloadToArduinoText or as
+     * uploaded from the divider
+     */
+    static String of(String program) {
+        CRC32 crc = new CRC32();
+        crc.update(program.getBytes(StandardCharsets.ISO_8859_1));
+        return String.format("%08X", crc.getValue());
+    }
+
+    /**
+     * @return true if the answer to V says the firmware has the C command
+     */
+    static boolean isQuerySupportedBy(String version) {
+        return version != null && version.contains(CAPABILITY);
+    }
+
+    /**
+     * @param response the answer to C
+     * @return the fingerprint in the answer, null if it is not one
+     */
+    static String fromResponse(String response) {
+        if (response == null || response.length() != 9 || response.charAt(0) != 'C') {
+            return null;
+        }
+        for (int i = 1; i < response.length(); i++) {
+            if (Character.digit(response.charAt(i), 16) < 0) {
+                return null;
+            }
+        }
+        return response.substring(1).toUpperCase();
+    }
+
+}
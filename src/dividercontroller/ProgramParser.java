@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Lexer and parser for divider programs. One pass over the program text
+ * removes comments and whitespace, converts to upper case, checks each line
+ * and builds the instruction list and the text to download to the divider.
+ *
+ * The language is one instruction per line:
+ * B, G, D, F, M and P followed by numbers, and R, R+ and R-. A number in B and
+ * P may have minus signs and decimals, P has two numbers separated by a comma.
+ * Comments are put within parentheses. Empty lines are errors, except at the
+ * end of the program. This is the same as the regular expression check that
+ * was used before.
+ */
+class ProgramParser {
+
+    private final String program;
+    private final StringBuilder downloadText;
+    private final List<Instruction> instructions = new ArrayList<>();
+    private final List<SyntaxError> syntaxErrors = new ArrayList<>();
+
+    /**
+     * An instruction in a divider program.
+     */
+    static class Instruction {
+
+        private final int lineNumber;
+        private final char code;
+        private final String firstArgument;
+        private final String secondArgument;
+
+        Instruction(int lineNumber, char code, String firstArgument, String secondArgument) {
+            this.lineNumber = lineNumber;
+            this.code = code;
+            this.firstArgument = firstArgument;
+            this.secondArgument = secondArgument;
+        }
+
+        public int getLineNumber() {
+            return lineNumber;
+        }
+
+        /**
+         * @return the instruction letter, B, G, D, F, M, P or R
+         */
+        public char getCode() {
+            return code;
+        }
+
+        /**
+         * @return the number after the letter, + or - after R or an empty
+         * string for a plain R
+         */
+        public String getFirstArgument() {
+            return firstArgument;
+        }
+
+        /**
+         * @return the second number of a P instruction, otherwise null
+         */
+        public String getSecondArgument() {
+            return secondArgument;
+        }
+
+        @Override
+        public String toString() {
+            return secondArgument == null ? code + firstArgument : code + firstArgument + "," + secondArgument;
+        }
+    }
+
+    /**
+     * A line that is not a correct instruction.
+     */
+    static class SyntaxError {
+
+        private final int lineNumber;
+        private final String lineText;
+
+        SyntaxError(int lineNumber, String lineText) {
+            this.lineNumber = lineNumber;
+            this.lineText = lineText;
+        }
+
+        /**
+         * @return the line number, counted from 1
+         */
+        public int getLineNumber() {
+            return lineNumber;
+        }
+
+        /**
+         * @return the line as it was written
+         */
+        public String getLineText() {
+            return lineText;
+        }
+
+        @Override
+        public String toString() {
+            return "Syntaxfel i rad " + lineNumber + ": " + lineText;
+        }
+    }
+
+    ProgramParser(String program) {
+        this.program = program;
+        downloadText = new StringBuilder(program.length());
+        parse();
+    }
+
+    public List<Instruction> getInstructions() {
+        return Collections.unmodifiableList(instructions);
+    }
+
+    public List<SyntaxError> getSyntaxErrors() {
+        return Collections.unmodifiableList(syntaxErrors);
+    }
+
+    /**
+     * @return the program without comments and whitespace, in upper case
+     */
+    public String getDownloadText() {
+        return downloadText.toString();
+    }
+
+    private void parse() {
+        // Empty lines at the end are not checked.
+        int end = program.length();
+        while (end > 0 && program.charAt(end - 1) == '\n') {
+            end--;
+        }
+        int lineStart = 0;
+        int lineNumber = 1;
+        // A '(' before this position has no matching ')' on the line.
+        int noCommentEndBefore = 0;
+        while (lineStart < end) {
+            int lineEnd = program.indexOf('\n', lineStart);
+            if (lineEnd < 0 || lineEnd > end) {
+                lineEnd = end;
+            }
+            int instructionStart = downloadText.length();
+            int pos = lineStart;
+            while (pos < lineEnd) {
+                char c = program.charAt(pos);
+                if (c == '(' && pos >= noCommentEndBefore) {
+                    int commentEnd = findCommentEnd(pos + 1, lineEnd);
+                    if (commentEnd < lineEnd && program.charAt(commentEnd) == ')') {
+                        pos = commentEnd + 1;
+                        continue;
+                    }
+                    noCommentEndBefore = commentEnd;
+                }
+                if (!isWhitespace(c)) {
+                    downloadText.append(toUpperCase(c));
+                }
+                pos++;
+            }
+            if (!parseInstruction(lineNumber, instructionStart, downloadText.length())) {
+                syntaxErrors.add(new SyntaxError(lineNumber, program.substring(lineStart, lineEnd)));
+            }
+            lineStart = lineEnd + 1;
+            lineNumber++;
+        }
+    }
+
+    /**
+     * Finds the ')' that ends a comment. A comment can not span line breaks.
+     *
+     * @return the position of the ')' or the position where the search
+     * stopped
+     */
+    private int findCommentEnd(int pos, int lineEnd) {
+        while (pos < lineEnd) {
+            char c = program.charAt(pos);
+            if (c == ')' || isLineTerminator(c)) {
+                return pos;
+            }
+            pos++;
+        }
+        return lineEnd;
+    }
+
+    private boolean parseInstruction(int lineNumber, int start, int end) {
+        // As $ in the regular expression, allow one line terminator at the end.
+        if (end > start && isLineTerminator(downloadText.charAt(end - 1))) {
+            end--;
+        }
+        if (start == end) {
+            return false;
+        }
+        char code = downloadText.charAt(start);
+        int pos;
+        switch (code) {
+            case 'B':
+                pos = parseNumber(start + 1, end);
+                if (pos != end) {
+                    return false;
+                }
+                addInstruction(lineNumber, code, start + 1, end, -1, -1);
+                return true;
+            case 'G':
+            case 'D':
+            case 'F':
+            case 'M':
+                pos = parseDigits(start + 1, end);
+                if (pos == start + 1 || pos != end) {
+                    return false;
+                }
+                addInstruction(lineNumber, code, start + 1, end, -1, -1);
+                return true;
+            case 'P':
+                pos = parseNumber(start + 1, end);
+                if (pos < 0 || pos >= end || downloadText.charAt(pos) != ',') {
+                    return false;
+                }
+                int comma = pos;
+                pos = parseNumber(comma + 1, end);
+                if (pos != end) {
+                    return false;
+                }
+                addInstruction(lineNumber, code, start + 1, comma, comma + 1, end);
+                return true;
+            case 'R':
+                if (end == start + 1) {
+                    addInstruction(lineNumber, code, end, end, -1, -1);
+                    return true;
+                }
+                char direction = downloadText.charAt(start + 1);
+                if (end == start + 2 && (direction == '+' || direction == '-')) {
+                    addInstruction(lineNumber, code, start + 1, end, -1, -1);
+                    return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    private void addInstruction(int lineNumber, char code, int firstStart, int firstEnd, int secondStart, int secondEnd) {
+        String first = downloadText.substring(firstStart, firstEnd);
+        String second = secondStart < 0 ? null : downloadText.substring(secondStart, secondEnd);
+        instructions.add(new Instruction(lineNumber, code, first, second));
+    }
+
+    /**
+     * A number is any number of minus signs, at least one digit and an
+     * optional decimal point with decimals.
+     *
+     * @return the position after the number or -1 if there is no number
+     */
+    private int parseNumber(int pos, int end) {
+        while (pos < end && downloadText.charAt(pos) == '-') {
+            pos++;
+        }
+        int digitsEnd = parseDigits(pos, end);
+        if (digitsEnd == pos) {
+            return -1;
+        }
+        pos = digitsEnd;
+        if (pos < end && downloadText.charAt(pos) == '.') {
+            pos = parseDigits(pos + 1, end);
+        }
+        return pos;
+    }
+
+    private int parseDigits(int pos, int end) {
+        while (pos < end && downloadText.charAt(pos) >= '0' && downloadText.charAt(pos) <= '9') {
+            pos++;
+        }
+        return pos;
+    }
+
+    // The same characters as \s in a regular expression.
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    // Characters that . in a regular expression does not match.
+    private static boolean isLineTerminator(char c) {
+        return c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static char toUpperCase(char c) {
+        if (c >= 'a' && c <= 'z') {
+            return (char) (c - ('a' - 'A'));
+        }
+        return c < 128 ? c : Character.toUpperCase(c);
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Builds an uploaded program as it arrives. The divider sends the program
+ * as the instructions without line breaks, like "B0G2D36", ended by ETB. Each
+ * instruction starts with a letter and gets a line of its own, and the lines
+ * are handed to the listener each time a chunk of bytes has been taken care
+ * of, so the editor can show the program while it is coming.
+ *
+ * The program is not limited by the receive buffer. A program longer than
+ * maxSize is cut there, the rest is read and thrown away.
+ *
+ * Used on the transport thread only, except for the getters which may be
+ * used when the parser is complete.
+ */
+class ProgramUploadParser {
+
+    /**
+     * Gets the lines that are complete since the last call.
+     */
+    interface LineListener {
+
+        /**
+         * @param lines one or more lines, each ended by a line break
+         * @param first true for the first call for the program
+         * @param last true for the last call for the program
+         */
+        void onLines(String lines, boolean first, boolean last);
+    }
+
+    private final int maxSize;
+    private final LineListener listener;
+
+    // The program as sent by the divider.
+    private final StringBuilder text = new StringBuilder();
+    // The program with one instruction per line.
+    private final StringBuilder lines = new StringBuilder();
+    // Where the lines not yet handed to the listener start.
+    private int linesReported = 0;
+    private boolean anyReported = false;
+    // Where the instruction that is not known to be complete starts.
+    private int instructionStart = 0;
+    private boolean truncated = false;
+    private volatile boolean complete = false;
+    private volatile long lastProgressTime = System.nanoTime();
+
+    /**
+     * @param maxSize the most characters of program to keep
+     */
+    ProgramUploadParser(int maxSize, LineListener listener) {
+        this.maxSize = maxSize;
+        this.listener = listener;
+    }
+
+    /**
+     * Take the bytes of the program as sent in the text protocol.
+     *
+     * @return the number of bytes used, up to and including the ETB that ends
+     * the program
+     */
+    int receive(byte[] data, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            byte b = data[i];
+            switch (b) {
+                case FrameReceiver.ETB_CHAR:
+                    finish();
+                    return i + 1 - offset;
+                case FrameReceiver.EOF_CHAR:
+                case FrameReceiver.CR_CHAR:
+                case FrameReceiver.LF_CHAR:
+                    break;
+                default:
+                    add((char) (b & 0xFF));
+                    break;
+            }
+        }
+        report(false);
+        return length;
+    }
+
+    /**
+     * Take program text, as unpacked from the binary protocol.
+     */
+    void receive(CharSequence programText) {
+        for (int i = 0; i < programText.length(); i++) {
+            add(programText.charAt(i));
+        }
+        report(false);
+    }
+
+    /**
+     * The whole program has been received.
+     */
+    void finish() {
+        if (complete) {
+            return;
+        }
+        if (lines.length() > instructionStart) {
+            lines.append('\n');
+        }
+        instructionStart = lines.length();
+        complete = true;
+        report(true);
+    }
+
+    private void add(char c) {
+        if (text.length() >= maxSize) {
+            truncated = true;
+            return;
+        }
+        text.append(c);
+        if (c >= 'A' && c <= 'Z' && lines.length() > instructionStart) {
+            // The previous instruction is complete.
+            lines.append('\n');
+            instructionStart = lines.length();
+        }
+        lines.append(c);
+    }
+
+    private void report(boolean last) {
+        lastProgressTime = System.nanoTime();
+        if (instructionStart > linesReported || last) {
+            String newLines = lines.substring(linesReported, instructionStart);
+            linesReported = instructionStart;
+            boolean first = !anyReported;
+            anyReported = true;
+            listener.onLines(newLines, first, last);
+        }
+    }
+
+    boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return true if the program was longer than maxSize
+     */
+    boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return the program as sent by the divider
+     */
+    String getText() {
+        return text.toString();
+    }
+
+    /**
+     * @return the program with one instruction per line
+     */
+    String getLines() {
+        return lines.toString();
+    }
+
+    /**
+     * @return when bytes last arrived, System.nanoTime()
+     */
+    long getLastProgressTime() {
+        return lastProgressTime;
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+}
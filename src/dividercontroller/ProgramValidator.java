@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Checks the program in the editor while it is written. Each edit is sent
+ * here as it is made and only the lines it touches are parsed again, on a
+ * thread of its own. The result for every line is kept so the complete
+ * program is ready to send or save without checking it again.
+ */
+class ProgramValidator {
+
+    // Number of error lines reported while editing.
+    private static final int MAX_REPORTED_ERROR_LINES = 10;
+
+    private final ThreadPoolExecutor executor;
+    private final Listener listener;
+
+    // Only used on the validator thread.
+    private final ArrayList<Line> lines = new ArrayList<>();
+    private int lineLengthSum;
+    private int errorLineCount;
+    // Line where the last edit was made, and the offset of its first character.
+    private int cursorLine;
+    private int cursorOffset;
+
+    /**
+     * Called on the validator thread when an edit has been checked and no
+     * other edits are waiting.
+     */
+    interface Listener {
+
+        void programValidated(Result result);
+    }
+
+    /**
+     * The result of the check of the program.
+     */
+    static class Result {
+
+        private final boolean programEmpty;
+        private final int errorCount;
+        private final List<ProgramParser.SyntaxError> syntaxErrors;
+        private final String downloadText;
+
+        Result(boolean programEmpty, int errorCount, List<ProgramParser.SyntaxError> syntaxErrors, String downloadText) {
+            this.programEmpty = programEmpty;
+            this.errorCount = errorCount;
+            this.syntaxErrors = syntaxErrors;
+            this.downloadText = downloadText;
+        }
+
+        public boolean isSyntaxOk() {
+            return !programEmpty && errorCount == 0;
+        }
+
+        public boolean isProgramEmpty() {
+            return programEmpty;
+        }
+
+        public int getErrorCount() {
+            return errorCount;
+        }
+
+        /**
+         * @return the first errors while editing, all errors from getProgram
+         */
+        public List<ProgramParser.SyntaxError> getSyntaxErrors() {
+            return syntaxErrors;
+        }
+
+        /**
+         * @return the same as DividerProgram.getSyntaxErrorMessage
+         */
+        public String getSyntaxErrorMessage() {
+            if (programEmpty) {
+                return "Filen tom.";
+            }
+            StringBuilder sb = new StringBuilder();
+            for (ProgramParser.SyntaxError syntaxError : syntaxErrors) {
+                sb.append(syntaxError).append('\n');
+            }
+            return sb.toString();
+        }
+
+        /**
+         * @return the text to download to the divider, only from getProgram
+         * and only if the syntax is ok
+         */
+        public String getDownloadText() {
+            return downloadText;
+        }
+    }
+
+    private static class Line {
+
+        private final String text;
+        private final String downloadText;
+        private final boolean syntaxOk;
+
+        Line(String text) {
+            this.text = text;
+            if (text.isEmpty()) {
+                // Empty lines are errors, except at the end of the program.
+                downloadText = "";
+                syntaxOk = false;
+            } else {
+                ProgramParser parser = new ProgramParser(text);
+                downloadText = parser.getDownloadText();
+                syntaxOk = parser.getSyntaxErrors().isEmpty();
+            }
+        }
+    }
+
+    ProgramValidator(Listener listener) {
+        this.listener = listener;
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "ProgramValidator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        lines.add(new Line(""));
+        errorLineCount = 1;
+    }
+
+    /**
+     * Replaces the characters from start to end with the text, as in
+     * TextInputControl.replaceText. Called on the FX thread for each change
+     * of the editor text.
+     */
+    void edit(int start, int end, String text) {
+        executor.execute(() -> {
+            applyEdit(start, end, text);
+            if (executor.getQueue().isEmpty()) {
+                listener.programValidated(getResult(false));
+            }
+        });
+    }
+
+    /**
+     * @return the complete result, with all errors and the download text,
+     * when all edits made before the call have been checked
+     */
+    CompletableFuture<Result> getProgram() {
+        return CompletableFuture.supplyAsync(() -> getResult(true), executor);
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void applyEdit(int start, int end, String text) {
+        int firstLine = findLine(start);
+        int firstLineOffset = cursorOffset;
+        int lastLine = findLine(end);
+        String before = lines.get(firstLine).text.substring(0, start - firstLineOffset);
+        String after = lines.get(lastLine).text.substring(end - cursorOffset);
+
+        for (int i = firstLine; i <= lastLine; i++) {
+            removeLine(lines.get(i));
+        }
+        lines.subList(firstLine, lastLine + 1).clear();
+
+        String changedText = before + text + after;
+        List<Line> changedLines = new ArrayList<>();
+        int lineStart = 0;
+        int lineEnd;
+        while ((lineEnd = changedText.indexOf('\n', lineStart)) >= 0) {
+            changedLines.add(addLine(changedText.substring(lineStart, lineEnd)));
+            lineStart = lineEnd + 1;
+        }
+        changedLines.add(addLine(changedText.substring(lineStart)));
+        lines.addAll(firstLine, changedLines);
+
+        cursorLine = firstLine;
+        cursorOffset = firstLineOffset;
+    }
+
+    private Line addLine(String text) {
+        Line line = new Line(text);
+        lineLengthSum += text.length();
+        if (!line.syntaxOk) {
+            errorLineCount++;
+        }
+        return line;
+    }
+
+    private void removeLine(Line line) {
+        lineLengthSum -= line.text.length();
+        if (!line.syntaxOk) {
+            errorLineCount--;
+        }
+    }
+
+    /**
+     * Moves the cursor to the line with the character offset. Edits are
+     * usually made close to the last one, so the search starts there.
+     *
+     * @return the line index, cursorOffset is the offset of the line
+     */
+    private int findLine(int offset) {
+        while (offset < cursorOffset) {
+            cursorLine--;
+            cursorOffset -= lines.get(cursorLine).text.length() + 1;
+        }
+        while (offset > cursorOffset + lines.get(cursorLine).text.length()) {
+            cursorOffset += lines.get(cursorLine).text.length() + 1;
+            cursorLine++;
+        }
+        return cursorLine;
+    }
+
+    private Result getResult(boolean complete) {
+        // Empty lines at the end are not errors.
+        int checkedLines = lines.size();
+        while (checkedLines > 0 && lines.get(checkedLines - 1).text.isEmpty()) {
+            checkedLines--;
+        }
+        int errorCount = errorLineCount - (lines.size() - checkedLines);
+        boolean programEmpty = lines.size() == 1 && lines.get(0).text.isEmpty();
+
+        List<ProgramParser.SyntaxError> syntaxErrors = new ArrayList<>();
+        int maxReported = complete ? errorCount : Math.min(errorCount, MAX_REPORTED_ERROR_LINES);
+        for (int i = 0; i < checkedLines && syntaxErrors.size() < maxReported; i++) {
+            Line line = lines.get(i);
+            if (!line.syntaxOk) {
+                syntaxErrors.add(new ProgramParser.SyntaxError(i + 1, line.text));
+            }
+        }
+
+        String downloadText = null;
+        if (complete && errorCount == 0 && !programEmpty) {
+            StringBuilder sb = new StringBuilder(lineLengthSum);
+            for (Line line : lines) {
+                sb.append(line.downloadText);
+            }
+            downloadText = sb.toString();
+        }
+        return new Result(programEmpty, errorCount, syntaxErrors, downloadText);
+    }
+
+}
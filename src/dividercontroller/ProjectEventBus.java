@@ -18,20 +18,18 @@
  */
 package dividercontroller;
 
-import com.google.common.eventbus.EventBus;
-
 /**
  *
  * @author Mats Andersson <mats.andersson@mecona.se>
  */
 public class ProjectEventBus {
-    private final static EventBus INSTANCE = new EventBus();
+    private final static EventRouter INSTANCE = new EventRouter();
     
     private ProjectEventBus() {
         
     }
     
-    public static EventBus getInstance() {
+    public static EventRouter getInstance() {
         return INSTANCE;
     }
 }
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Transport over a pseudo terminal, for instance one end of a
+ * "socat -d -d pty,raw,echo=0 pty,raw,echo=0" pair or a pty that a test
+ * firmware runs on. The port name is pty:/dev/pts/N, a plain /dev/pts/N
+ * works too. The terminal must already be in raw mode, Java can not set the
+ * line discipline.
+ *
+ * Terminal devices can not be used with a selector so a reader thread blocks
+ * in read and buffers what arrives.
+ */
+class PtyTransport implements SerialTransport {
+
+    static final String PREFIX = "pty:";
+    private static final String PTS_DIRECTORY = "/dev/pts/";
+
+    private static final int READ_CHUNK_SIZE = 4096;
+
+    private final String name;
+    private final String path;
+    private FileInputStream input;
+    private FileOutputStream output;
+    private volatile boolean open = false;
+    private volatile Listener listener;
+    private volatile IOException readerException;
+
+    // Bytes read by the reader thread and not yet taken by read.
+    private byte[] readBuffer = new byte[READ_CHUNK_SIZE];
+    private int readCount = 0;
+
+    PtyTransport(String portName) {
+        name = portName;
+        path = portName.startsWith(PREFIX) ? portName.substring(PREFIX.length()) : portName;
+    }
+
+    static boolean isPtyPortName(String portName) {
+        return portName.startsWith(PREFIX) || portName.startsWith(PTS_DIRECTORY);
+    }
+
+    @Override
+    public void open(ComPortParameters parameters) throws IOException {
+        input = new FileInputStream(path);
+        output = new FileOutputStream(path);
+        readerException = null;
+        open = true;
+        Thread readerThread = new Thread(this::readLoop, "PtyTransport " + path);
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    private void readLoop() {
+        byte[] chunk = new byte[READ_CHUNK_SIZE];
+        try {
+            while (open) {
+                int count = input.read(chunk);
+                if (count < 0) {
+                    throw new IOException("End of stream on " + path);
+                }
+                synchronized (this) {
+                    if (readCount + count > readBuffer.length) {
+                        byte[] larger = new byte[Math.max(readBuffer.length * 2, readCount + count)];
+                        System.arraycopy(readBuffer, 0, larger, 0, readCount);
+                        readBuffer = larger;
+                    }
+                    System.arraycopy(chunk, 0, readBuffer, readCount, count);
+                    readCount += count;
+                }
+                notifyListener();
+            }
+        } catch (IOException ex) {
+            if (open) {
+                readerException = ex;
+                // Let the listener see the failure on its next read.
+                notifyListener();
+            }
+        }
+    }
+
+    private void notifyListener() {
+        Listener currentListener = listener;
+        if (currentListener != null) {
+            currentListener.dataAvailable();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        open = false;
+        // The reader thread may stay blocked in read until the next byte
+        // arrives, it exits when it sees that the transport is closed.
+        try {
+            if (input != null) {
+                input.close();
+            }
+        } finally {
+            if (output != null) {
+                output.close();
+            }
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+        if (readCount == 0) {
+            IOException ex = readerException;
+            if (ex != null) {
+                throw ex;
+            }
+            return 0;
+        }
+        int count = Math.min(length, readCount);
+        System.arraycopy(readBuffer, 0, buffer, offset, count);
+        System.arraycopy(readBuffer, count, readBuffer, 0, readCount - count);
+        readCount -= count;
+        return count;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        if (!open) {
+            throw new IOException("Transport " + name + " is not open");
+        }
+        output.write(data, offset, length);
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * A selector and the thread that waits on it. Each registered channel has a
+ * handler that is called on the selector thread when the channel is ready,
+ * so one thread can watch the channels of many transports. Handlers must be
+ * quick, they hold up every other channel on the loop.
+ *
+ * A channel can not be registered while another thread waits in select, so
+ * registrations are handed to the selector thread.
+ */
+class SelectorLoop {
+
+    private final String name;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean open = true;
+
+    SelectorLoop(String name) throws IOException {
+        this.name = name;
+        selector = Selector.open();
+        thread = new Thread(this::selectLoop, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Watch a channel.
+     *
+     * @param channel a non-blocking channel
+     * @param interestOps the operations to watch
+     * @param handler called on the selector thread when the channel is ready
+     * @return the key, with the handler as attachment
+     */
+    SelectionKey register(SelectableChannel channel, int interestOps, Runnable handler) throws IOException {
+        if (Thread.currentThread() == thread) {
+            return channel.register(selector, interestOps, handler);
+        }
+        CompletableFuture<SelectionKey> key = new CompletableFuture<>();
+        pendingRegistrations.add(() -> {
+            try {
+                key.complete(channel.register(selector, interestOps, handler));
+            } catch (IOException | RuntimeException ex) {
+                key.completeExceptionally(ex);
+            }
+        });
+        selector.wakeup();
+        if (!open) {
+            throw new IOException("Selector loop " + name + " is closed");
+        }
+        try {
+            return key.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while registering with " + name, ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("Could not register with " + name, ex.getCause());
+        }
+    }
+
+    /**
+     * Change what a key watches.
+     */
+    void setInterestOps(SelectionKey key, int interestOps) {
+        if (key.isValid()) {
+            key.interestOps(interestOps);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Stop watching the channel of a key. The selector lets go of the channel
+     * in its next round, so a channel that is closed after this is really
+     * closed.
+     */
+    void cancel(SelectionKey key) {
+        key.cancel();
+        selector.wakeup();
+    }
+
+    void close() throws IOException {
+        open = false;
+        selector.close();
+        Runnable registration;
+        while ((registration = pendingRegistrations.poll()) != null) {
+            registration.run();
+        }
+    }
+
+    private void selectLoop() {
+        try {
+            while (open) {
+                selector.select();
+                Runnable registration;
+                while ((registration = pendingRegistrations.poll()) != null) {
+                    registration.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) {
+                        try {
+                            ((Runnable) key.attachment()).run();
+                        } catch (RuntimeException ex) {
+                            Utils.debugOutput("Exception in " + name + ": " + ex, 3);
+                        }
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException ex) {
+            Utils.debugOutput("Selector loop " + name + " stopped: " + ex.getMessage(), 3);
+        }
+    }
+
+}
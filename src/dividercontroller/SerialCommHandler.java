@@ -18,62 +18,137 @@
  */
 package dividercontroller;
 
-import com.google.common.eventbus.EventBus;
-import com.google.common.eventbus.Subscribe;
 import com.sun.javafx.collections.ImmutableObservableList;
-import java.text.DecimalFormat;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Observable;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import javafx.collections.ObservableList;
-import jssc.SerialPort;
-import jssc.SerialPortEvent;
-import jssc.SerialPortEventListener;
-import jssc.SerialPortException;
 import jssc.SerialPortList;
 
 /**
  *
  * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Handles the byte stream to and from the divider. The stream itself is a
+ * SerialTransport which is chosen from the port name:
+ *
+ * SIMULATOR       the built in DividerSimulator
+ * tcp://host:port a serial-over-IP bridge
+ * pty:/dev/pts/N  a pseudo terminal, /dev/pts/N works too
+ * anything else   a serial port opened with jSSC
+ *
+ * The text protocol is used until switchToBinary is called, see
+ * BinaryProtocol. Each time the port is opened the text protocol is used
+ * again.
  */
-public class SerialCommHandler implements SerialPortEventListener {
+public class SerialCommHandler implements SerialTransport.Listener {
 
-    private SerialPort serialPort;
+    private SerialTransport transport;
     private final int SIZE_OF_RECEIVE_BUFFER = 500;
-    private int numBytesInBuffer = 0;
+    private final int SIZE_OF_READ_BUFFER = 4096;
+
+    // Reused for every read from the transport.
+    private final byte[] readBuffer = new byte[SIZE_OF_READ_BUFFER];
+
+    private static final byte BINARY_COMMAND = 'B';
+    private static final byte BINARY_ACK = 'B';
+    private static final byte UPLOAD_ACK = 'U';
+
+    private final int SIZE_OF_MESSAGE_RING = 64;
+
+    // Bytes on the wire in each direction.
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    // Received frames waiting for the message receiver task.
+    private final FrameRing messageRing = new FrameRing(SIZE_OF_MESSAGE_RING, SIZE_OF_RECEIVE_BUFFER);
+    // Only used by the consumer of the message ring.
+    private final byte[] consumerBuffer = new byte[SIZE_OF_RECEIVE_BUFFER];
 
-    private final byte ETB_CHAR = 23;
-    private final byte EOF_CHAR = 27;
-    private static final int LF_CHAR = 10;
-    private static final int CR_CHAR = 13;
+    // Told when a message has been put in the message ring, for a consumer
+    // that does not wait in waitForMessage.
+    private volatile Runnable messageListener;
 
-    private final byte[] receiveBuffer = new byte[SIZE_OF_RECEIVE_BUFFER];
-    private final ConcurrentLinkedQueue<String> messageQueue = new ConcurrentLinkedQueue();
+    // Assembles the received bytes into ETB terminated frames.
+    private final FrameReceiver frameReceiver = new FrameReceiver(SIZE_OF_RECEIVE_BUFFER,
+            this::onTextFrame);
+
+    // The same for the binary protocol.
+    private final BinaryProtocol.MessageDecoder binaryMessageDecoder
+            = new BinaryProtocol.MessageDecoder(SIZE_OF_RECEIVE_BUFFER, this::onMessage);
+    private final BinaryProtocol.Decoder binaryReceiver = new BinaryProtocol.Decoder(binaryMessageDecoder);
+
+    // Set when B has been sent and the "B" that ends the text protocol from
+    // the divider has not arrived yet.
+    private volatile boolean waitingForBinaryAck = false;
+    // Only used on the transport thread.
+    private boolean binaryReceive = false;
+    private volatile boolean binarySend = false;
+
+    // The parser for an upload that has been asked for, set until the "U"
+    // that comes before the program arrives.
+    private volatile ProgramUploadParser expectedUpload;
+    // The upload that is arriving. Only used on the transport thread.
+    private ProgramUploadParser upload;
+
+    // Reused by sendPosition.
+    private final StringBuilder positionText = new StringBuilder();
+    private final byte[] positionBytes = new byte[64];
 
     public static List<String> getAvailablePorts() {
-        String[] portArray = SerialPortList.getPortNames();
-        List<String> portList = new ArrayList<>();
-        portList.addAll(Arrays.asList(portArray));
+        List<String> portList = getSerialPortNames();
+        portList.add(DividerSimulator.PORT_NAME);
         return portList;
     }
 
-    public void sendProgram(String programToDownload) {
-        try {
-            serialPort.writeString(programToDownload);
-            serialPort.writeByte(EOF_CHAR);
-        } catch (SerialPortException ex) {
-            Utils.debugOutput("SerialPortException " + ex.getMessage(), 3);
+    /**
+     * @return the serial ports of the computer, without the simulator
+     */
+    static List<String> getSerialPortNames() {
+        return new ArrayList<>(Arrays.asList(SerialPortList.getPortNames()));
+    }
+
+    /**
+     * Write part of a program download, already encoded by
+     * ProgramDownloader.
+     */
+    void sendProgramChunk(byte[] chunk) {
+        if (commStatus == CommStatus.UP) {
+            try {
+                write(chunk);
+            } catch (IOException ex) {
+                Utils.debugOutput("IOException " + ex.getMessage(), 3);
+                failed(ex);
+            }
         }
     }
 
     void stopReader() {
-        try {
-            serialPort.removeEventListener();
-            serialPort.closePort();
-        } catch (SerialPortException ex) {
-            Utils.debugOutput("SerialPortException " + ex.getMessage(), 3);
+        if (transport != null) {
+            try {
+                transport.setListener(null);
+                transport.close();
+            } catch (IOException ex) {
+                Utils.debugOutput("IOException " + ex.getMessage(), 3);
+            }
+        }
+        commStatus = CommStatus.DOWN;
+    }
+
+    /**
+     * Stop the simulator, which is otherwise kept while the port is closed
+     * and opened again. Called when the port is closed for good.
+     */
+    void stopSimulator() {
+        if (simulator != null) {
+            simulator.shutdown();
+            simulator = null;
         }
     }
 
@@ -81,148 +156,414 @@ public class SerialCommHandler implements SerialPortEventListener {
         UP, DOWN
     };
 
-    private CommStatus commStatus = CommStatus.DOWN;
+    private volatile CommStatus commStatus = CommStatus.DOWN;
+    private volatile Consumer<IOException> failureListener;
+    private volatile int baudRate;
+    private volatile String portName;
+
+    private DividerSimulator simulator;
+
+    // Null means the port in the configuration, read each time the port is
+    // opened.
+    private final ComPortParameters portParameters;
+    // Shared with other dividers, null when this handler has its own threads.
+    private final ScheduledExecutorService pool;
+    private final SelectorLoop selectorLoop;
 
     public SerialCommHandler() {
-        eventBus = ProjectEventBus.getInstance();
-        eventBus.register(this);
+        this(null, null, null);
+    }
+
+    /**
+     * @param portParameters the port to use, null for the configured port
+     * @param pool runs the simulator, null to give it its own thread
+     * @param selectorLoop watches the transport, null to give it its own
+     * thread
+     */
+    SerialCommHandler(ComPortParameters portParameters, ScheduledExecutorService pool,
+            SelectorLoop selectorLoop) {
+        this.portParameters = portParameters;
+        this.pool = pool;
+        this.selectorLoop = selectorLoop;
     }
-    private final EventBus eventBus;
 
     public void startReader() {         // Start serial communication thread
         // Init serial comm parameters.
         initSerialComm();
-        try {
-            int availableChars = serialPort.getInputBufferBytesCount();
-            serialPort.readString(availableChars);
-        } catch (SerialPortException ex) {
-            Utils.debugOutput("SerialPortException " + ex.getMessage(), 3);
-            Utils.debugOutput("while emptying buffer at start.", 3);
+        if (commStatus == CommStatus.UP) {
+            try {
+                // Throw away anything left from before.
+                while (transport.read(readBuffer, 0, readBuffer.length) > 0) {
+                }
+                frameReceiver.reset();
+                binaryReceiver.reset();
+                binaryMessageDecoder.reset();
+                expectedUpload = null;
+                upload = null;
+                waitingForBinaryAck = false;
+                binaryReceive = false;
+                binarySend = false;
+            } catch (IOException ex) {
+                Utils.debugOutput("IOException " + ex.getMessage(), 3);
+                Utils.debugOutput("while emptying buffer at start.", 3);
+            }
         }
 
         initSerialReader();
     }
 
     private void initSerialComm() {
-        ComPortParameters comPortParams = new ComPortParameters();
-        serialPort = new SerialPort(comPortParams.getComPort());
+        ComPortParameters comPortParams = portParameters != null ? portParameters : new ComPortParameters();
+        baudRate = comPortParams.getBaudRate();
+        portName = comPortParams.getComPort();
         try {
-            serialPort.openPort();
-            serialPort.setParams(comPortParams.getBaudRate(),
-                    comPortParams.getDataBits(),
-                    comPortParams.getStopBits(),
-                    comPortParams.getParity());
+            transport = createTransport(comPortParams.getComPort());
+            transport.open(comPortParams);
             commStatus = CommStatus.UP;
 
-        } catch (SerialPortException ex) {
+        } catch (IOException ex) {
             System.out.println(ex.getMessage());
             commStatus = CommStatus.DOWN;
         }
     }
 
-    @Subscribe
-    private void handleProgramEvents(ProgramEvent event) {
-        if (event.getCommand() == ProgramEvent.Command.NEW_SERIAL_PORT_SELECTED) {
-            
-            // Restart serial port reading with new port parameters.
-            stopReader();
-            startReader();
+    private SerialTransport createTransport(String portName) throws IOException {
+        if (portName.equals(DividerSimulator.PORT_NAME)) {
+            return new SimulatorTransport(getSimulator(), selectorLoop);
+        } else if (TcpTransport.isTcpPortName(portName)) {
+            return new TcpTransport(portName, selectorLoop);
+        } else if (PtyTransport.isPtyPortName(portName)) {
+            return new PtyTransport(portName);
+        }
+        return new JsscTransport(portName);
+    }
+
+    // The simulator is kept when the port is reopened so that it remembers
+    // its program and position like the real divider.
+    private DividerSimulator getSimulator() {
+        if (simulator == null) {
+            Configuration config = Configuration.getConfiguration();
+            simulator = new DividerSimulator(config.getSimulatorStepsPerRevolution(),
+                    config.getSimulatorDegreesPerSecond(),
+                    config.getSimulatorResponseDelay(), pool);
+            simulator.setBootTime(config.getSimulatorBootTime());
         }
+        return simulator;
     }
 
     // Start up serial receiver event listener.
     private void initSerialReader() {
-        try {
-            serialPort.addEventListener(this);
-        } catch (SerialPortException ex) {
-            Utils.debugOutput("SerialPortException " + ex.getMessage(), 3);
+        if (transport != null) {
+            transport.setListener(this);
         }
     }
 
     @Override
-    public void serialEvent(SerialPortEvent event) {
-        //Object type SerialPortEvent carries information about which event occurred and a value.
-        //For example, if the data came a method event.getEventValue() returns us the number of bytes in the input buffer.
-
-        if (event.isRXCHAR()) {  // If there are characters recieved
-            try {
-                // Get the characters read and add them to our serial buffer. When an etbChar (chr 23) comes we will
-                // make a string of it and put it in a queue.
-                while (serialPort.getInputBufferBytesCount() > 0) {
-                    byte readByte = serialPort.readBytes(1)[0];
-
-                    // etb received. Convert the buffer to a string and put it in the answer queue.
-                    if (readByte == ETB_CHAR) {
-                        if (numBytesInBuffer > 0) {
-                            StringBuilder sb = new StringBuilder();
-                            for (int i = 0; i < numBytesInBuffer; i++) {
-                                byte rb = receiveBuffer[i];
-                                switch (rb) {
-                                    case EOF_CHAR:
-                                        break;
-                                    case CR_CHAR:
-                                        break;
-                                    case LF_CHAR:
-                                        break;
-                                    case ETB_CHAR:
-                                        break;
-                                    default:
-                                        sb.append((char) receiveBuffer[i]);
-                                        break;
-                                }
-                            }
-                            messageQueue.add(sb.toString());
-                            numBytesInBuffer = 0;
-                            Utils.debugOutput("Message added: " + sb, 2);
+    public void dataAvailable() {
+        try {
+            // Drain everything that is available, a buffer at a time, and let
+            // the frame receiver split it into messages on the etb chars.
+            int count;
+            while ((count = transport.read(readBuffer, 0, readBuffer.length)) > 0) {
+                bytesReceived.addAndGet(count);
+                int used = 0;
+                while (used < count && !binaryReceive) {
+                    if (upload != null) {
+                        used += upload.receive(readBuffer, used, count - used);
+                        if (upload.isComplete()) {
+                            upload = null;
                         }
                     } else {
-                        receiveBuffer[numBytesInBuffer] = readByte;
-                        numBytesInBuffer++;
-                        if (numBytesInBuffer >= SIZE_OF_RECEIVE_BUFFER) {
-                            Utils.debugOutput("Buffer Overrun!!", 3);
-                            StringBuilder sb = new StringBuilder();
-                            for (int i = 0; i < numBytesInBuffer; i++) {
-                                sb.append((char) receiveBuffer[i]);
-                            }
-                            Utils.debugOutput(sb.toString(), 2);
-
-                            numBytesInBuffer = 0;
-                        }
+                        used += frameReceiver.receive(readBuffer, used, count - used);
                     }
                 }
-
-            } catch (SerialPortException ex) {
-                Utils.debugOutput(ex.getMessage(), 3);
+                if (used < count) {
+                    binaryReceiver.receive(readBuffer, used, count - used);
+                }
             }
+
+        } catch (IOException ex) {
+            Utils.debugOutput(ex.getMessage(), 3);
+            failed(ex);
+        }
+    }
+
+    // The port does not work any more. Nothing more is written until it is
+    // opened again, the failure listener is told once.
+    private void failed(IOException ex) {
+        if (commStatus != CommStatus.UP) {
+            return;
+        }
+        commStatus = CommStatus.DOWN;
+        Consumer<IOException> listener = failureListener;
+        if (listener != null) {
+            listener.accept(ex);
+        }
+    }
+
+    /**
+     * Set a listener that is called when reading or writing the open port
+     * fails, on the thread that found it. Null removes it.
+     */
+    void setFailureListener(Consumer<IOException> failureListener) {
+        this.failureListener = failureListener;
+    }
+
+    /**
+     * @return true if the port is open and has not failed
+     */
+    boolean isUp() {
+        return commStatus == CommStatus.UP;
+    }
+
+    private void onTextFrame(byte[] frame, int length) {
+        if (waitingForBinaryAck && length == 1 && frame[0] == BINARY_ACK) {
+            // The divider sends frames after this.
+            waitingForBinaryAck = false;
+            binaryReceive = true;
+            frameReceiver.stopAfterFrame();
+        }
+        ProgramUploadParser expected = expectedUpload;
+        if (expected != null && length == 1 && frame[0] == UPLOAD_ACK) {
+            // The program follows, it goes to the parser instead of the
+            // frame buffer.
+            expectedUpload = null;
+            upload = expected;
+            frameReceiver.stopAfterFrame();
+        }
+        onMessage(frame, length);
+    }
+
+    private void onMessage(byte[] frame, int length) {
+        if (!messageRing.offer(frame, length)) {
+            Utils.debugOutput("Message ring full, frame dropped. Dropped frames: "
+                    + messageRing.getFramesDropped(), 3);
+            return;
+        }
+        Runnable listener = messageListener;
+        if (listener != null) {
+            listener.run();
         }
     }
 
     public void sendCommand(char commandChar) {
         if (commStatus == CommStatus.UP) {
             try {
-                serialPort.writeByte((byte) commandChar);
+                if (binarySend) {
+                    write(BinaryProtocol.frame((byte) commandChar));
+                } else {
+                    transport.write((byte) commandChar);
+                    bytesSent.incrementAndGet();
+                }
                 Utils.debugOutput("Serial send command " + commandChar, 2);
-            } catch (SerialPortException ex) {
-                Utils.debugOutput("serialPort.writeString exception " + ex.getMessage(), 3);
+            } catch (IOException ex) {
+                Utils.debugOutput("transport.write exception " + ex.getMessage(), 3);
+                failed(ex);
             }
         }
     }
 
+    /**
+     * Send the P command with its position.
+     */
+    public void sendPositionTo(double position) {
+        if (binarySend) {
+            if (commStatus == CommStatus.UP) {
+                long hundredths = Utils.toHundredths(Math.abs(position));
+                if (Double.isNaN(position) || hundredths > Integer.MAX_VALUE) {
+                    Utils.debugOutput("Position " + position + " can not be sent", 3);
+                    return;
+                }
+                try {
+                    write(BinaryProtocol.frame((byte) 'P', (int) (position < 0 ? -hundredths : hundredths)));
+                } catch (IOException ex) {
+                    Utils.debugOutput("transport.write exception " + ex.getMessage(), 3);
+                    failed(ex);
+                }
+            }
+            return;
+        }
+        sendCommand('P');
+        sendPosition(position);
+    }
+
+    /**
+     * Send the J command with its number of steps, negative for steps in the
+     * negative direction.
+     */
+    public void sendJog(int steps) {
+        if (commStatus != CommStatus.UP) {
+            return;
+        }
+        try {
+            if (binarySend) {
+                write(BinaryProtocol.frame((byte) 'J', steps));
+                return;
+            }
+            positionText.setLength(0);
+            positionText.append('J').append(steps);
+            int length = Math.min(positionText.length(), positionBytes.length);
+            for (int i = 0; i < length; i++) {
+                positionBytes[i] = (byte) positionText.charAt(i);
+            }
+            transport.write(positionBytes, 0, length);
+            bytesSent.addAndGet(length);
+        } catch (IOException ex) {
+            Utils.debugOutput("transport.write exception " + ex.getMessage(), 3);
+            failed(ex);
+        }
+    }
+
+    /**
+     * Send the position of a P command in the text protocol.
+     */
     public void sendPosition(double position) {
         if (commStatus == CommStatus.UP) {
-            DecimalFormat df = new DecimalFormat("0.00");
-            String textToSend = df.format(position).replaceAll(",", ".");
-            //System.out.println("Serial sending :"+textToSend);
+            positionText.setLength(0);
+            Utils.formatPosition(position, positionText);
+            int length = Math.min(positionText.length(), positionBytes.length);
+            for (int i = 0; i < length; i++) {
+                positionBytes[i] = (byte) positionText.charAt(i);
+            }
+            try {
+                transport.write(positionBytes, 0, length);
+                bytesSent.addAndGet(length);
+            } catch (IOException ex) {
+                Utils.debugOutput("transport.write exception " + ex.getMessage(), 3);
+                failed(ex);
+            }
+        }
+    }
+
+    /**
+     * Send B, which makes a divider that has BinaryProtocol.CAPABILITY in its
+     * version answer "B" and use the binary protocol after that. Everything
+     * sent after this is sent in frames. Call switchToText if the answer does
+     * not arrive.
+     */
+    void switchToBinary() {
+        if (commStatus == CommStatus.UP) {
+            waitingForBinaryAck = true;
+            binarySend = true;
             try {
-                serialPort.writeString(textToSend);
-            } catch (SerialPortException ex) {
-                Utils.debugOutput("serialPort.writeString exception " + ex.getMessage(), 3);
+                transport.write(BINARY_COMMAND);
+                bytesSent.incrementAndGet();
+                Utils.debugOutput("Serial send command " + (char) BINARY_COMMAND, 2);
+            } catch (IOException ex) {
+                Utils.debugOutput("transport.write exception " + ex.getMessage(), 3);
+                failed(ex);
             }
         }
     }
 
+    /**
+     * Let the next uploaded program go to a parser as it arrives instead of
+     * arriving as one message. Called before U is sent.
+     */
+    void expectUpload(ProgramUploadParser parser) {
+        if (binarySend) {
+            binaryMessageDecoder.setUpload(parser);
+        } else {
+            expectedUpload = parser;
+        }
+    }
+
+    /**
+     * Go back to sending in the text protocol.
+     */
+    void switchToText() {
+        waitingForBinaryAck = false;
+        binarySend = false;
+    }
+
+    boolean isBinary() {
+        return binarySend;
+    }
+
+    /**
+     * @return the speed of the open port
+     */
+    int getBaudRate() {
+        return baudRate;
+    }
+
+    /**
+     * @return the name of the port as last opened, null before that
+     */
+    String getPortName() {
+        return portName;
+    }
+
+    private void write(byte[] data) throws IOException {
+        transport.write(data);
+        bytesSent.addAndGet(data.length);
+    }
+
+    /**
+     * Set a listener that is called on the transport thread each time a
+     * message can be taken with getMessageFromReceiveQueue. Null removes it.
+     */
+    void setMessageListener(Runnable messageListener) {
+        this.messageListener = messageListener;
+    }
+
+    /**
+     * Make a consumer that waits in waitForMessage return at once, without a
+     * message if none has arrived.
+     */
+    void wakeUpMessageConsumer() {
+        messageRing.wakeUp();
+    }
+
     public String getMessageFromReceiveQueue() {
-        return messageQueue.poll();
+        String message = messageRing.pollString(consumerBuffer);
+        if (message != null) {
+            Utils.debugOutput("Message received: " + message, 2);
+        }
+        return message;
+    }
+
+    /**
+     * Wait for the next received message.
+     *
+     * @param timeout the longest time to wait
+     * @param unit unit of timeout
+     * @return the message or null if nothing was received in time
+     */
+    public String waitForMessage(long timeout, TimeUnit unit) {
+        String message = messageRing.takeString(consumerBuffer, timeout, unit);
+        if (message != null) {
+            Utils.debugOutput("Message received: " + message, 2);
+        }
+        return message;
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getDroppedMessageCount() {
+        return messageRing.getFramesDropped();
+    }
+
+    public long getTruncatedMessageCount() {
+        return messageRing.getFramesTruncated();
+    }
+
+    /**
+     * @return the number of frames in the binary protocol that were thrown
+     * away for a bad CRC
+     */
+    public long getBadFrameCount() {
+        return binaryReceiver.getBadFrames();
+    }
+
+    public int getMessageRingHighWaterMark() {
+        return messageRing.getHighWaterMark();
     }
 
 }
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.io.IOException;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * The byte stream between the host and the divider. SerialCommHandler only
+ * talks to this interface so the same protocol code can run over a real
+ * serial port, a pseudo terminal, a TCP serial bridge or an in-memory pipe.
+ *
+ * Reads never block. The listener is told when there is something to read
+ * and is expected to read until read returns 0.
+ */
+interface SerialTransport {
+
+    /**
+     * Called from the transport's own thread when data can be read.
+     */
+    interface Listener {
+
+        void dataAvailable();
+    }
+
+    /**
+     * Open the transport. Settings that do not apply to the transport, like
+     * the baud rate for a TCP connection, are ignored.
+     */
+    void open(ComPortParameters parameters) throws IOException;
+
+    void close() throws IOException;
+
+    boolean isOpen();
+
+    /**
+     * Read what is available without blocking.
+     *
+     * @return the number of bytes read, 0 if nothing was available
+     * @throws IOException if the transport failed or was closed by the other
+     * end
+     */
+    int read(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Write all the bytes.
+     */
+    void write(byte[] data, int offset, int length) throws IOException;
+
+    default void write(byte[] data) throws IOException {
+        write(data, 0, data.length);
+    }
+
+    default void write(byte singleByte) throws IOException {
+        write(new byte[]{singleByte}, 0, 1);
+    }
+
+    /**
+     * Set the listener that is told when data is available. Null removes the
+     * listener.
+     */
+    void setListener(Listener listener);
+
+    /**
+     * @return the port name the transport was created for
+     */
+    String getName();
+
+}
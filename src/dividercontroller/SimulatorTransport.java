@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.io.IOException;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Transport to a DividerSimulator running in the same process. The host and
+ * the simulator are connected with an in-memory pipe.
+ */
+class SimulatorTransport implements SerialTransport {
+
+    private final DividerSimulator simulator;
+    private final SelectorLoop selectorLoop;
+    private PipeTransport hostEnd;
+    private PipeTransport simulatorEnd;
+    private volatile Listener listener;
+
+    /**
+     * @param selectorLoop watches both ends of the pipe, null to give each
+     * end its own loop
+     */
+    SimulatorTransport(DividerSimulator simulator, SelectorLoop selectorLoop) {
+        this.simulator = simulator;
+        this.selectorLoop = selectorLoop;
+    }
+
+    @Override
+    public void open(ComPortParameters parameters) throws IOException {
+        PipeTransport[] pair = PipeTransport.createPair(DividerSimulator.PORT_NAME, selectorLoop);
+        hostEnd = pair[0];
+        simulatorEnd = pair[1];
+        hostEnd.setListener(listener);
+        hostEnd.open(parameters);
+        simulatorEnd.open(parameters);
+        simulator.connected();
+
+        PipeTransport toHost = simulatorEnd;
+        byte[] buffer = new byte[1024];
+        simulatorEnd.setListener(() -> {
+            try {
+                int count;
+                while ((count = toHost.read(buffer, 0, buffer.length)) > 0) {
+                    simulator.receive(buffer, count);
+                }
+            } catch (IOException ex) {
+                Utils.debugOutput("Simulator input stopped: " + ex.getMessage(), 3);
+            }
+        });
+        simulator.setOutputListener(data -> {
+            try {
+                toHost.write(data);
+            } catch (IOException ex) {
+                Utils.debugOutput("Simulator output stopped: " + ex.getMessage(), 3);
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        simulator.setOutputListener(null);
+        if (simulatorEnd != null) {
+            simulatorEnd.close();
+        }
+        if (hostEnd != null) {
+            hostEnd.close();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return hostEnd != null && hostEnd.isOpen();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        return hostEnd.read(buffer, offset, length);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        hostEnd.write(data, offset, length);
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+        if (hostEnd != null) {
+            hostEnd.setListener(listener);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return DividerSimulator.PORT_NAME;
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Runs tasks one at a time and in the order they were given, on a pool that
+ * is shared with other strands. Code that only runs on one strand does not
+ * need locks even if the pool has many threads, which lets many dividers
+ * share a few threads.
+ *
+ * A strand runs at most MAX_TASKS_PER_TURN tasks before it gives the pool
+ * thread back, so a busy strand can not starve the others.
+ */
+class Strand implements Executor {
+
+    private static final int MAX_TASKS_PER_TURN = 64;
+
+    private final String name;
+    private final ScheduledExecutorService pool;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // True while a turn is queued on or running in the pool.
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    Strand(String name, ScheduledExecutorService pool) {
+        this.name = name;
+        this.pool = pool;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (scheduled.compareAndSet(false, true)) {
+            pool.execute(this::runTurn);
+        }
+    }
+
+    /**
+     * Run a task on the strand after a delay.
+     */
+    ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return pool.schedule(() -> execute(task), delay, unit);
+    }
+
+    private void runTurn() {
+        try {
+            Runnable task;
+            int count = 0;
+            while (count++ < MAX_TASKS_PER_TURN && (task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    Utils.debugOutput("Exception in " + name + ": " + ex, 3);
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            // A task may have been added after the last poll.
+            if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+                pool.execute(this::runTurn);
+            }
+        }
+    }
+
+}
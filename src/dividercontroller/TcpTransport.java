@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.SocketChannel;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Transport over a raw TCP connection, for serial-over-IP bridges like
+ * ser2net or socat. The port name is written as tcp://host:port. The serial
+ * parameters are set in the bridge.
+ */
+class TcpTransport extends ChannelTransport {
+
+    static final String PREFIX = "tcp://";
+
+    private static final int CONNECT_TIMEOUT = 3000;
+
+    private final InetSocketAddress address;
+    private SocketChannel socketChannel;
+
+    TcpTransport(String portName, SelectorLoop selectorLoop) throws IOException {
+        super(portName, selectorLoop);
+        try {
+            URI uri = new URI(portName);
+            if (uri.getHost() == null || uri.getPort() < 0) {
+                throw new IOException("Expected " + PREFIX + "host:port, got " + portName);
+            }
+            address = new InetSocketAddress(uri.getHost(), uri.getPort());
+        } catch (URISyntaxException ex) {
+            throw new IOException("Bad address " + portName, ex);
+        }
+    }
+
+    static boolean isTcpPortName(String portName) {
+        return portName.startsWith(PREFIX);
+    }
+
+    @Override
+    public void open(ComPortParameters parameters) throws IOException {
+        socketChannel = SocketChannel.open();
+        try {
+            socketChannel.socket().connect(address, CONNECT_TIMEOUT);
+            socketChannel.socket().setTcpNoDelay(true);
+        } catch (IOException ex) {
+            socketChannel.close();
+            throw ex;
+        }
+        startChannels(socketChannel, socketChannel);
+    }
+
+    @Override
+    protected void closeChannels() throws IOException {
+        if (socketChannel != null) {
+            socketChannel.close();
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * How the send and receive tasks of the dividers are run.
+ *
+ * PLATFORM  two daemon threads per divider, as it has always been
+ * VIRTUAL   two virtual threads per divider. The tasks park on the real
+ *           conditions, a queued command, an arriving frame or the next
+ *           deadline, so hundreds of dividers need only a few carrier
+ *           threads.
+ * POOL      short steps on a pool shared by all dividers, see Strand
+ *
+ * Virtual threads need Java 21. The program is built for Java 8 so they are
+ * created through reflection, and on an older JVM VIRTUAL falls back to
+ * platform threads.
+ */
+public enum ThreadModel {
+    PLATFORM,
+    VIRTUAL,
+    POOL;
+
+    // Thread.ofVirtual and the name and unstarted methods of the builder it
+    // returns. Null when the JVM has no virtual threads.
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderUnstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = ofVirtual.getReturnType();
+            builderName = builder.getMethod("name", String.class);
+            builderUnstarted = builder.getMethod("unstarted", Runnable.class);
+            // Java 19 and 20 have the methods but they only work as a
+            // preview feature.
+            builderUnstarted.invoke(ofVirtual.invoke(null), (Runnable) () -> {
+            });
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_UNSTARTED = builderUnstarted;
+    }
+
+    /**
+     * @return true if the JVM can create virtual threads
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Get a thread model from its name, as in the configuration.
+     *
+     * @return the model, PLATFORM if the name is not known
+     */
+    public static ThreadModel fromName(String name) {
+        for (ThreadModel threadModel : values()) {
+            if (threadModel.name().equalsIgnoreCase(name)) {
+                return threadModel;
+            }
+        }
+        Utils.debugOutput("Unknown thread model " + name + ", using " + PLATFORM, 3);
+        return PLATFORM;
+    }
+
+    /**
+     * @return this model, or PLATFORM if this is VIRTUAL and the JVM has no
+     * virtual threads
+     */
+    public ThreadModel supported() {
+        if (this == VIRTUAL && !isVirtualThreadsSupported()) {
+            Utils.debugOutput("Virtual threads need Java 21, using platform threads", 3);
+            return PLATFORM;
+        }
+        return this;
+    }
+
+    /**
+     * Create a thread for a task of a divider. The thread is not started.
+     * Platform threads are daemon threads, virtual threads always are.
+     */
+    Thread newThread(Runnable task, String name) {
+        if (this == VIRTUAL && isVirtualThreadsSupported()) {
+            try {
+                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                return (Thread) BUILDER_UNSTARTED.invoke(builder, task);
+            } catch (IllegalAccessException | InvocationTargetException ex) {
+                Utils.debugOutput("Could not create a virtual thread: " + ex, 3);
+            }
+        }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+}
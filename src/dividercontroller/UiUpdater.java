@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Collects updates of the user interface from other threads and applies them
+ * on the FX thread once per pulse. Each label or control has a slot that
+ * only keeps the latest value, so a burst of messages from the divider
+ * becomes one update of the screen instead of one Platform.runLater each.
+ *
+ * The animation timer only runs while there are updates to apply.
+ */
+class UiUpdater {
+
+    private final List<Slot> slots = new ArrayList<>();
+    private final AtomicBoolean timerRunning = new AtomicBoolean();
+    private final AnimationTimer timer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            flush();
+        }
+    };
+
+    private final AtomicLong updatesRequested = new AtomicLong();
+    private final AtomicLong updatesDropped = new AtomicLong();
+    private final AtomicLong updatesApplied = new AtomicLong();
+    private final AtomicLong pulses = new AtomicLong();
+    private volatile int maxPendingUpdates;
+    private final LatencyHistogram updateLatency = new LatencyHistogram("Update to screen");
+
+    /**
+     * Keeps the latest value for one part of the user interface.
+     */
+    abstract class Slot {
+
+        // When the oldest pending value was set, 0 if none.
+        private final AtomicLong pendingSince = new AtomicLong();
+
+        // Called by set before the new value is stored.
+        void beforeSet() {
+            updatesRequested.incrementAndGet();
+            pendingSince.compareAndSet(0, System.nanoTime());
+        }
+
+        // Called by set after the new value is stored.
+        void afterSet(boolean replaced) {
+            if (replaced) {
+                updatesDropped.incrementAndGet();
+            } else {
+                startTimer();
+            }
+        }
+
+        abstract boolean isPending();
+
+        // On the FX thread. Shows the pending value, if there is one.
+        abstract boolean applyPending();
+
+        private boolean apply() {
+            if (!applyPending()) {
+                return false;
+            }
+            long since = pendingSince.getAndSet(0);
+            if (since != 0) {
+                updateLatency.record(System.nanoTime() - since);
+            }
+            updatesApplied.incrementAndGet();
+            return true;
+        }
+    }
+
+    class ValueSlot<T> extends Slot {
+
+        private final AtomicReference<T> pending = new AtomicReference<>();
+        private final Consumer<T> updater;
+
+        private ValueSlot(Consumer<T> updater) {
+            this.updater = updater;
+        }
+
+        /**
+         * Set the value to show. May be called from any thread.
+         */
+        void set(T value) {
+            beforeSet();
+            afterSet(pending.getAndSet(value) != null);
+        }
+
+        @Override
+        boolean isPending() {
+            return pending.get() != null;
+        }
+
+        @Override
+        boolean applyPending() {
+            T value = pending.getAndSet(null);
+            if (value == null) {
+                return false;
+            }
+            updater.accept(value);
+            return true;
+        }
+    }
+
+    /**
+     * Slot for a double, the value is not boxed.
+     */
+    class DoubleSlot extends Slot {
+
+        private final AtomicLong valueBits = new AtomicLong();
+        private final AtomicBoolean pending = new AtomicBoolean();
+        private final DoubleConsumer updater;
+
+        private DoubleSlot(DoubleConsumer updater) {
+            this.updater = updater;
+        }
+
+        /**
+         * Set the value to show. May be called from any thread.
+         */
+        void set(double value) {
+            beforeSet();
+            valueBits.set(Double.doubleToRawLongBits(value));
+            afterSet(pending.getAndSet(true));
+        }
+
+        @Override
+        boolean isPending() {
+            return pending.get();
+        }
+
+        @Override
+        boolean applyPending() {
+            if (!pending.getAndSet(false)) {
+                return false;
+            }
+            updater.accept(Double.longBitsToDouble(valueBits.get()));
+            return true;
+        }
+    }
+
+    /**
+     * Add a slot. Slots are applied in the order they were added.
+     */
+    <T> ValueSlot<T> addSlot(Consumer<T> updater) {
+        ValueSlot<T> slot = new ValueSlot<>(updater);
+        slots.add(slot);
+        return slot;
+    }
+
+    DoubleSlot addDoubleSlot(DoubleConsumer updater) {
+        DoubleSlot slot = new DoubleSlot(updater);
+        slots.add(slot);
+        return slot;
+    }
+
+    private void startTimer() {
+        if (timerRunning.compareAndSet(false, true)) {
+            Platform.runLater(timer::start);
+        }
+    }
+
+    // On the FX thread, once per pulse while the timer runs.
+    private void flush() {
+        pulses.incrementAndGet();
+        int applied = 0;
+        for (Slot slot : slots) {
+            if (slot.apply()) {
+                applied++;
+            }
+        }
+        if (applied > maxPendingUpdates) {
+            maxPendingUpdates = applied;
+        }
+        if (applied == 0) {
+            // Nothing happened during the last pulse. Stop unless a value
+            // was set after the slots were checked.
+            timerRunning.set(false);
+            for (Slot slot : slots) {
+                if (slot.isPending() && timerRunning.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+            timer.stop();
+        }
+    }
+
+    public long getUpdatesRequested() {
+        return updatesRequested.get();
+    }
+
+    /**
+     * @return the updates that were replaced by a newer value before they
+     * were shown
+     */
+    public long getUpdatesDropped() {
+        return updatesDropped.get();
+    }
+
+    public long getUpdatesApplied() {
+        return updatesApplied.get();
+    }
+
+    /**
+     * @return the number of pulses the updates were applied in, each one a
+     * single task on the FX thread
+     */
+    public long getPulses() {
+        return pulses.get();
+    }
+
+    /**
+     * @return the largest number of updates waiting for the same pulse
+     */
+    public int getMaxPendingUpdates() {
+        return maxPendingUpdates;
+    }
+
+    public LatencyHistogram getUpdateLatency() {
+        return updateLatency;
+    }
+
+    @Override
+    public String toString() {
+        return "UI updates: " + getUpdatesRequested() + " requested, " + getUpdatesApplied() + " applied, "
+                + getUpdatesDropped() + " dropped, " + getPulses() + " pulses, max "
+                + getMaxPendingUpdates() + " per pulse\n" + updateLatency;
+    }
+
+}
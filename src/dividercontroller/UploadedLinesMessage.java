@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2016 Mats Andersson <mats.andersson@mecona.se>.
+ *
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this code; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package dividercontroller;
+
+/**
+ *
+ * @author Mats Andersson <mats.andersson@mecona.se>
+ *
+ * Part of an uploaded program, posted while the program arrives. The lines
+ * of all the messages for an upload, from the one that is first to the one
+ * that is last, make up the program with one instruction per line.
+ *
+ * Firmware that does not answer U with "U" gives the program in one
+ * UploadedProgramMessage instead.
+ */
+class UploadedLinesMessage {
+
+    private final String lines;
+    private final boolean first;
+    private final boolean last;
+    private final boolean truncated;
+
+    UploadedLinesMessage(String lines, boolean first, boolean last, boolean truncated) {
+        this.lines = lines;
+        this.first = first;
+        this.last = last;
+        this.truncated = truncated;
+    }
+
+    String getLines() {
+        return lines;
+    }
+
+    boolean isFirst() {
+        return first;
+    }
+
+    boolean isLast() {
+        return last;
+    }
+
+    /**
+     * @return true if the program was too long and the end is missing, only
+     * in the last message
+     */
+    boolean isTruncated() {
+        return truncated;
+    }
+
+}
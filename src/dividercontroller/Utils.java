@@ -49,6 +49,49 @@ public class Utils {
         return result.get() == btYes;
     }
 
+    /**
+     * Appends a position with two decimals and a decimal point, the same as
+     * DecimalFormat("0.00") with a point, without creating any objects.
+     */
+    public static StringBuilder formatPosition(double position, StringBuilder sb) {
+        if (Double.isNaN(position) || Double.isInfinite(position) || Math.abs(position) >= 1e15) {
+            return sb.append(position);
+        }
+        long hundredths = toHundredths(Math.abs(position));
+        if (position < 0 || 1 / position < 0) {
+            // DecimalFormat keeps the sign of small negative values.
+            sb.append('-');
+        }
+        sb.append(hundredths / 100).append('.');
+        long decimals = hundredths % 100;
+        if (decimals < 10) {
+            sb.append('0');
+        }
+        return sb.append(decimals);
+    }
+
+    /**
+     * Rounds a value to hundredths the same way as formatPosition.
+     *
+     * @param value zero or more and less than 1e15
+     * @return the value in hundredths
+     */
+    public static long toHundredths(double value) {
+        double scaled = value * 100;
+        long hundredths = (long) Math.floor(scaled);
+        // Round half even on the exact value, as DecimalFormat. The part
+        // lost when multiplying by 100 is found with Dekker's product.
+        double split = 134217729.0 * value;
+        double high = split - (split - value);
+        double low = value - high;
+        double productError = (high * 100 - scaled) + low * 100;
+        double overHalf = (scaled - hundredths - 0.5) + productError;
+        if (overHalf > 0 || (overHalf == 0 && (hundredths & 1) == 1)) {
+            hundredths++;
+        }
+        return hundredths;
+    }
+
     public static void debugOutput(String message, int debugLevel ) {
         if ( debugLevel >= Configuration.DEBUG_LEVEL ) {
             System.out.println(message);